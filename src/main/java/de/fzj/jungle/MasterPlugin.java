@@ -241,7 +241,7 @@ public class MasterPlugin implements Command
 		// Get the calibration of the image only once
 		Calibration calibration = imgPlus.getCalibration();
 
-		// finalResults is a TreeMap and thus is ordered
+		// finalResults is an ordered map (by frame number)
 		for ( Map.Entry< Integer, ? > entry : results.entrySet() )
 		{
 			int frame = entry.getKey();
@@ -294,7 +294,7 @@ public class MasterPlugin implements Command
 		// Get the calibration of the image only once
 		Calibration calibration = imgPlus.getCalibration();
 
-		// finalResults is a TreeMap and thus is ordered
+		// finalResults is an ordered map (by frame number)
 		for ( Map.Entry< Integer, ? > entry : results.entrySet() )
 		{
 			int frame = entry.getKey();
@@ -17,13 +17,17 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import de.fzj.jungle.preprocessing.boxdetection.BoxClassifier;
+import de.fzj.jungle.preprocessing.boxdetection.BoxDetectionCache;
+import de.fzj.jungle.preprocessing.boxdetection.BoxDetectionCache.Box;
 import de.fzj.jungle.preprocessing.boxdetection.EdgeDetector;
 import de.fzj.jungle.preprocessing.boxdetection.HoughRectangle;
 import de.fzj.jungle.preprocessing.boxdetection.RatioBoxClassifier;
 import de.fzj.jungle.preprocessing.hough.LinearHT;
 import de.fzj.jungle.preprocessing.hough.LinearHT.HoughLine;
 import de.fzj.jungle.preprocessing.hough.LinearHT.HoughLinePair;
+import de.fzj.jungle.preprocessing.registration.ImageWarp;
 import de.fzj.jungle.preprocessing.registration.MultiChannelStackReg_;
+import de.fzj.jungle.preprocessing.registration.TransformedVirtualStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -96,41 +100,23 @@ public class PreprocessorPlugin implements PlugInFilter, Command
 
 		if ( !imgPlusHasActiveRoi )
 		{
-			/*
-			 * Apply custom edge detection
-			 */
 			imgPlus.setProcessor( ip );
-			EdgeDetector edgeDetector = new EdgeDetector();
-			edgeDetector.setup( "", imgPlus );
-			ImageProcessor test = edgeDetector.process( ip );
-			ImagePlus edgesImgPlus = new ImagePlus( "", test );
 
-			if ( IJ.debugMode )
+			// The chamber is only detected once per stage position
+			BoxDetectionCache cache = BoxDetectionCache.forImage( imgPlus );
+			Box box = cache.get( ip );
+			if ( box == null )
 			{
-				edgesImgPlus.show();
-			}
-
-			/*
-			 * Apply Hough transform
-			 */
-			// TODO ImageJ2: use Ops for Hough transform when available
-			LinearHT houghTransform = new LinearHT( edgesImgPlus.getProcessor(), 1440, 256 );
-			List< HoughLine > houghLines = houghTransform.getMaxLines( 100, 50 );
+				box = detectBox( ip );
 
-			if ( IJ.debugMode )
-			{
-				drawHoughLines( edgesImgPlus.getProcessor(), houghLines );
-				edgesImgPlus.show();
+				if ( box != null )
+				{
+					cache.put( ip, box );
+				}
 			}
 
-			BoxClassifier boxClassifier = new RatioBoxClassifier();
-			TreeSet< HoughRectangle > boxRectangles = boxClassifier.classify( houghLines );
-
-			Iterator< HoughRectangle > iter = boxRectangles.descendingIterator();
-			HoughRectangle rect = iter.hasNext() ? iter.next() : null;
-
 			// A box could not be detected: ask user for input
-			if ( boxRectangles.size() < 1 || rect == null )
+			if ( box == null )
 			{
 				/*
 				 * Insert modeless dialog
@@ -141,63 +127,34 @@ public class PreprocessorPlugin implements PlugInFilter, Command
 			}
 			else
 			{
-				if ( IJ.debugMode )
-				{
-					ImageProcessor ipHoughDebug = edgesImgPlus.getProcessor();
-
-					// Horizontal 1
-					drawHoughLine( ipHoughDebug, rect.houghPair1.getH1() );
-
-					// Horizontal 2
-					drawHoughLine( ipHoughDebug, rect.houghPair1.getH2() );
-
-					// Vertical 1
-					drawHoughLine( ipHoughDebug, rect.houghPair2.getH1() );
-
-					// Vertical 2
-					drawHoughLine( ipHoughDebug, rect.houghPair2.getH2() );
-
-					edgesImgPlus.show();
-				}
-
-				HoughLinePair horizontalPair = rect.houghPair1;
-				if ( horizontalPair.getH1().getRadius() < horizontalPair.getH2().getRadius() )
-				{
-					// Switch
-					horizontalPair = new HoughLinePair( horizontalPair.getH2(), horizontalPair.getH1(), horizontalPair.getSumOfScores() );
-				}
-
-				HoughLinePair verticalPair = rect.houghPair2;
-				if ( verticalPair.getH1().getRadius() > verticalPair.getH2().getRadius() )
-				{
-					// Switch
-					verticalPair = new HoughLinePair( verticalPair.getH2(), verticalPair.getH1(), verticalPair.getSumOfScores() );
-				}
 				/*
 				 * Rotate whole image
 				 */
-				double rotationAngleRadians = verticalPair.getH1().getAngle() > ( 3 * Math.PI / 4 ) ? Math.PI - verticalPair.getH1().getAngle() : verticalPair.getH1().getAngle();
-				double rotationAngleDegrees = rotationAngleRadians / Math.PI * 180;
-				for ( int i = 1; i <= imgPlus.getStack().getSize() && rotationAngleRadians > 0.0; i++ )
+				double rotationAngleDegrees = box.getRotationAngleDegrees();
+				if ( imgPlus.getStack() instanceof TransformedVirtualStack )
 				{
-					ImageProcessor ip2 = imgPlus.getStack().getProcessor( i );
-					ip2.setInterpolationMethod( ImageProcessor.BICUBIC );
-					// TODO ImageJ2: use Views/Ops for rotating
-					ip2.rotate( -rotationAngleDegrees );
+					// Rotate together with the registration when slices are
+					// accessed (changes of individual slices would be lost)
+					if ( rotationAngleDegrees > 0.0 )
+					{
+						( ( TransformedVirtualStack ) imgPlus.getStack() ).concatenate( ImageWarp.rotation( -rotationAngleDegrees, imgPlus.getWidth(), imgPlus.getHeight() ) );
+					}
+				}
+				else
+				{
+					for ( int i = 1; i <= imgPlus.getStack().getSize() && rotationAngleDegrees > 0.0; i++ )
+					{
+						ImageProcessor ip2 = imgPlus.getStack().getProcessor( i );
+						ip2.setInterpolationMethod( ImageProcessor.BICUBIC );
+						// TODO ImageJ2: use Views/Ops for rotating
+						ip2.rotate( -rotationAngleDegrees );
+					}
 				}
 
 				/*
 				 * Create ROI from selected box
 				 */
-				Point2D.Double p1 = horizontalPair.getH1().intersectWith( verticalPair.getH1() );
-				Point2D.Double p2 = horizontalPair.getH1().intersectWith( verticalPair.getH2() );
-				Point2D.Double p3 = horizontalPair.getH2().intersectWith( verticalPair.getH2() );
-				Point2D.Double p4 = horizontalPair.getH2().intersectWith( verticalPair.getH1() );
-
-				int[] xPoints = { ( int ) p1.x, ( int ) p2.x, ( int ) p3.x, ( int ) p4.x };
-				int[] yPoints = { ( int ) p1.y, ( int ) p2.y, ( int ) p3.y, ( int ) p4.y };
-
-				roi = new PolygonRoi( xPoints, yPoints, 4, Roi.POLYGON );
+				roi = new PolygonRoi( box.getXPoints(), box.getYPoints(), 4, Roi.POLYGON );
 
 				// Scale
 				// TODO Make scale factor a parameter
@@ -233,6 +190,99 @@ public class PreprocessorPlugin implements PlugInFilter, Command
 		imgPlus.setStack( stack2 );
 	}
 
+	/**
+	 * Detects the growth chamber in {@code ip} (edge detection, Hough
+	 * transform and classification of the resulting rectangles).
+	 * 
+	 * @param ip
+	 *            {@link ImageProcessor} to detect the chamber in
+	 * @return the detected {@link Box} or {@code null} if no chamber has been
+	 *         found
+	 */
+	private Box detectBox( ImageProcessor ip )
+	{
+		/*
+		 * Apply custom edge detection
+		 */
+		EdgeDetector edgeDetector = new EdgeDetector();
+		edgeDetector.setup( "", imgPlus );
+		ImageProcessor test = edgeDetector.process( ip );
+		ImagePlus edgesImgPlus = new ImagePlus( "", test );
+
+		if ( IJ.debugMode )
+		{
+			edgesImgPlus.show();
+		}
+
+		/*
+		 * Apply Hough transform
+		 */
+		// TODO ImageJ2: use Ops for Hough transform when available
+		LinearHT houghTransform = new LinearHT( edgesImgPlus.getProcessor(), 1440, 256 );
+		List< HoughLine > houghLines = houghTransform.getMaxLines( 100, 50 );
+
+		if ( IJ.debugMode )
+		{
+			drawHoughLines( edgesImgPlus.getProcessor(), houghLines );
+			edgesImgPlus.show();
+		}
+
+		BoxClassifier boxClassifier = new RatioBoxClassifier();
+		TreeSet< HoughRectangle > boxRectangles = boxClassifier.classify( houghLines );
+
+		Iterator< HoughRectangle > iter = boxRectangles.descendingIterator();
+		HoughRectangle rect = iter.hasNext() ? iter.next() : null;
+
+		if ( rect == null ) { return null; }
+
+		if ( IJ.debugMode )
+		{
+			ImageProcessor ipHoughDebug = edgesImgPlus.getProcessor();
+
+			// Horizontal 1
+			drawHoughLine( ipHoughDebug, rect.houghPair1.getH1() );
+
+			// Horizontal 2
+			drawHoughLine( ipHoughDebug, rect.houghPair1.getH2() );
+
+			// Vertical 1
+			drawHoughLine( ipHoughDebug, rect.houghPair2.getH1() );
+
+			// Vertical 2
+			drawHoughLine( ipHoughDebug, rect.houghPair2.getH2() );
+
+			edgesImgPlus.show();
+		}
+
+		HoughLinePair horizontalPair = rect.houghPair1;
+		if ( horizontalPair.getH1().getRadius() < horizontalPair.getH2().getRadius() )
+		{
+			// Switch
+			horizontalPair = new HoughLinePair( horizontalPair.getH2(), horizontalPair.getH1(), horizontalPair.getSumOfScores() );
+		}
+
+		HoughLinePair verticalPair = rect.houghPair2;
+		if ( verticalPair.getH1().getRadius() > verticalPair.getH2().getRadius() )
+		{
+			// Switch
+			verticalPair = new HoughLinePair( verticalPair.getH2(), verticalPair.getH1(), verticalPair.getSumOfScores() );
+		}
+
+		// Angle by which the image has to be rotated
+		double rotationAngleRadians = verticalPair.getH1().getAngle() > ( 3 * Math.PI / 4 ) ? Math.PI - verticalPair.getH1().getAngle() : verticalPair.getH1().getAngle();
+		double rotationAngleDegrees = rotationAngleRadians / Math.PI * 180;
+
+		Point2D.Double p1 = horizontalPair.getH1().intersectWith( verticalPair.getH1() );
+		Point2D.Double p2 = horizontalPair.getH1().intersectWith( verticalPair.getH2() );
+		Point2D.Double p3 = horizontalPair.getH2().intersectWith( verticalPair.getH2() );
+		Point2D.Double p4 = horizontalPair.getH2().intersectWith( verticalPair.getH1() );
+
+		int[] xPoints = { ( int ) p1.x, ( int ) p2.x, ( int ) p3.x, ( int ) p4.x };
+		int[] yPoints = { ( int ) p1.y, ( int ) p2.y, ( int ) p3.y, ( int ) p4.y };
+
+		return new Box( rotationAngleDegrees, xPoints, yPoints );
+	}
+
 	/**
 	 * Draw a set of {@link HoughLine}s as red lines into the provided image.
 	 * <p>
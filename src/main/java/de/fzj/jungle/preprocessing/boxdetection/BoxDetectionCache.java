@@ -0,0 +1,291 @@
+package de.fzj.jungle.preprocessing.boxdetection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ImageProcessor;
+
+/**
+ * Persistent cache of detected growth chambers.
+ * <p>
+ * The detected box (the corners of the chamber and the rotation angle of the
+ * image) is stored in a properties file next to the image. Entries are keyed
+ * by a hash of the image that the detection is run on, hence, every stage
+ * position of a multi-position experiment gets its own entry and an entry
+ * is never used for modified images. Images that have not been loaded from
+ * disk are cached in memory only, in a bounded cache that is shared by all
+ * instances (the least recently used entries are evicted).
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class BoxDetectionCache
+{
+
+	/** Suffix of the cache file (appended to the file name of the image). */
+	public static final String SUFFIX = ".boxes";
+
+	/**
+	 * Is included in the hash; increment when the box detection changes to
+	 * invalidate existing entries.
+	 */
+	private static final int VERSION = 1;
+
+	/** Maximal number of entries of the cache in memory. */
+	private static final int MEMORY_CAPACITY = 64;
+
+	/** Entries of images that have not been loaded from disk. */
+	private static final Map< String, String > memoryEntries = Collections.synchronizedMap( new LinkedHashMap< String, String >( 16, 0.75f, true )
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry< String, String > eldest )
+		{
+			return size() > MEMORY_CAPACITY;
+		}
+
+	} );
+
+	private final File file;
+
+	private final Properties entries = new Properties();
+
+	/**
+	 * @param file
+	 *            cache file ({@code null} for the shared cache in memory)
+	 */
+	public BoxDetectionCache( File file )
+	{
+		this.file = file;
+
+		if ( file != null && file.isFile() )
+		{
+			try (InputStream in = Files.newInputStream( file.toPath() ))
+			{
+				entries.load( in );
+			}
+			catch ( IOException e )
+			{
+				// NB: start with an empty cache
+				IJ.log( "Could not read box detection cache " + file + ": " + e.getMessage() );
+			}
+		}
+	}
+
+	/**
+	 * @param imp
+	 *            an image
+	 * @return a cache stored next to the file of {@code imp} (the shared cache
+	 *         in memory if the image has not been loaded from disk)
+	 */
+	public static BoxDetectionCache forImage( ImagePlus imp )
+	{
+		FileInfo fi = imp.getOriginalFileInfo();
+		if ( fi == null || fi.directory == null || fi.directory.isEmpty() || fi.fileName == null ) { return new BoxDetectionCache( null ); }
+
+		return new BoxDetectionCache( new File( fi.directory, fi.fileName + SUFFIX ) );
+	}
+
+	/**
+	 * @param ip
+	 *            image the box detection is run on
+	 * @return the cached {@link Box} of {@code ip} or {@code null}
+	 */
+	public synchronized Box get( ImageProcessor ip )
+	{
+		final String key = hash( ip );
+		String entry = ( file == null ) ? memoryEntries.get( key ) : entries.getProperty( key );
+		if ( entry == null ) { return null; }
+
+		String[] values = entry.trim().split( "\\s+" );
+		if ( values.length != 9 ) { return null; }
+
+		try
+		{
+			int[] xPoints = new int[ 4 ];
+			int[] yPoints = new int[ 4 ];
+			for ( int i = 0; i < 4; i++ )
+			{
+				xPoints[ i ] = Integer.parseInt( values[ 1 + 2 * i ] );
+				yPoints[ i ] = Integer.parseInt( values[ 2 + 2 * i ] );
+			}
+
+			return new Box( Double.parseDouble( values[ 0 ] ), xPoints, yPoints );
+		}
+		catch ( NumberFormatException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the {@link Box} detected in {@code ip} (and writes the cache
+	 * file).
+	 *
+	 * @param ip
+	 *            image the box detection has been run on
+	 * @param box
+	 *            the detected {@link Box}
+	 */
+	public synchronized void put( ImageProcessor ip, Box box )
+	{
+		StringBuilder entry = new StringBuilder( Double.toString( box.getRotationAngleDegrees() ) );
+		for ( int i = 0; i < 4; i++ )
+		{
+			entry.append( ' ' ).append( box.xPoints[ i ] ).append( ' ' ).append( box.yPoints[ i ] );
+		}
+		if ( file == null )
+		{
+			memoryEntries.put( hash( ip ), entry.toString() );
+			return;
+		}
+
+		entries.setProperty( hash( ip ), entry.toString() );
+
+		// Write to a temporary file first, an interrupted run must not corrupt
+		// the cache
+		File tmp = new File( file.getPath() + ".tmp" );
+		try
+		{
+			try (OutputStream out = Files.newOutputStream( tmp.toPath() ))
+			{
+				entries.store( out, "JuNGLE box detection (rotation angle, corners)" );
+			}
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( IOException e )
+		{
+			// NB: the cache is optional
+			IJ.log( "Could not write box detection cache " + file + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * @param ip
+	 *            an image
+	 * @return hex-encoded SHA-1 of the dimensions and the pixels of
+	 *         {@code ip}
+	 */
+	public static String hash( ImageProcessor ip )
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-1" );
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			// NB: every Java platform supports SHA-1
+			throw new IllegalStateException( e );
+		}
+
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Object pixels = ip.getPixels();
+
+		ByteBuffer buffer = ByteBuffer.allocate( Math.max( 16, 4 * width ) ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.putInt( VERSION ).putInt( width ).putInt( height ).putInt( ip.getBitDepth() );
+		buffer.flip();
+		digest.update( buffer );
+
+		if ( pixels instanceof byte[] )
+		{
+			digest.update( ( byte[] ) pixels );
+		}
+		else
+		{
+			// Digest row by row
+			for ( int y = 0; y < height; y++ )
+			{
+				buffer.clear();
+				int offset = y * width;
+				if ( pixels instanceof short[] )
+				{
+					buffer.asShortBuffer().put( ( short[] ) pixels, offset, width );
+					buffer.limit( 2 * width );
+				}
+				else if ( pixels instanceof float[] )
+				{
+					buffer.asFloatBuffer().put( ( float[] ) pixels, offset, width );
+					buffer.limit( 4 * width );
+				}
+				else
+				{
+					buffer.asIntBuffer().put( ( int[] ) pixels, offset, width );
+					buffer.limit( 4 * width );
+				}
+				digest.update( buffer );
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : digest.digest() )
+		{
+			hex.append( String.format( "%02x", b ) );
+		}
+
+		return hex.toString();
+	}
+
+	/**
+	 * Detected growth chamber, i.e. the corners of the chamber and the angle
+	 * by which the image has to be rotated.
+	 */
+	public static class Box
+	{
+
+		private final double rotationAngleDegrees;
+
+		private final int[] xPoints;
+
+		private final int[] yPoints;
+
+		/**
+		 * @param rotationAngleDegrees
+		 *            angle by which the image has to be rotated
+		 * @param xPoints
+		 *            x coordinates of the four corners (before rotation)
+		 * @param yPoints
+		 *            y coordinates of the four corners (before rotation)
+		 */
+		public Box( double rotationAngleDegrees, int[] xPoints, int[] yPoints )
+		{
+			this.rotationAngleDegrees = rotationAngleDegrees;
+			this.xPoints = xPoints.clone();
+			this.yPoints = yPoints.clone();
+		}
+
+		public double getRotationAngleDegrees()
+		{
+			return rotationAngleDegrees;
+		}
+
+		public int[] getXPoints()
+		{
+			return xPoints.clone();
+		}
+
+		public int[] getYPoints()
+		{
+			return yPoints.clone();
+		}
+	}
+
+}
@@ -2,21 +2,22 @@ package de.fzj.jungle.preprocessing.boxdetection;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.io.Opener;
 import ij.plugin.filter.PlugInFilter;
-import ij.process.Blitter;
-import ij.process.ByteBlitter;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
-import java.io.InputStream;
+import java.util.List;
+
+import de.fzj.jungle.preprocessing.boxdetection.NormalizedCrossCorrelation.Kernel;
 
 /**
  * Detects edges in an image of rectangular microfluidic growth chamber.
  * <p>
  * Uses manually predefined templates (find them in
  * {@code src/main/resources/kernels} that are matched by computing and
- * thresholding a cross-correlation image of the input.
+ * thresholding a cross-correlation image of the input. The templates (and
+ * their mirror images) are provided by the {@link KernelRegistry} and are
+ * matched by a {@link NormalizedCrossCorrelation} in a single pass.
  * </p>
  * 
  * @author Stefan Helfrich
@@ -24,6 +25,8 @@ import java.io.InputStream;
 public class EdgeDetector implements PlugInFilter
 {
 
+	private String kernelSet = KernelRegistry.DEFAULT;
+
 	@Override
 	public int setup( String arg, ImagePlus imp )
 	{
@@ -45,58 +48,26 @@ public class EdgeDetector implements PlugInFilter
 		int imgWidth = ip.getWidth();
 		int imgHeight = ip.getHeight();
 
-		float[][] origimg = new float[ imgWidth ][ imgHeight ];
-		for ( int w = 0; w < imgWidth; w++ )
-		{
-			for ( int h = 0; h < imgHeight; h++ )
-			{
-				origimg[ w ][ h ] = ip.getPixel( w, h );
-			}
-		}
-
-		// Rotate kernel and repeat for each direction
-		// Load top kernel from file
-		InputStream in = this.getClass().getResourceAsStream( "/kernels/top.tif" );
-		Opener o = new Opener();
-		ImagePlus kernelImp = o.openTiff( in, "kernel" );
-		ImageProcessor kernelIp = kernelImp.getProcessor();
+		// TOP, BOTTOM, LEFT, RIGHT (decoded once)
+		List< Kernel > kernels = KernelRegistry.getKernels( kernelSet );
 
-		// TOP
-		ByteProcessor verticalIp = crossCorrelate( origimg, kernelIp );
-		ByteBlitter verticalBlitter = new ByteBlitter( verticalIp );
-
-		{
-			// BOTTOM
-			kernelIp.flipVertical();
-			ByteProcessor correlatedIp180 = crossCorrelate( origimg, kernelIp );
-			verticalBlitter.copyBits( correlatedIp180, 0, 0, Blitter.OR );
-		}
-
-		// Load left kernel from file
-		in = this.getClass().getResourceAsStream( "/kernels/left.tif" );
-		o = new Opener();
-		kernelImp = o.openTiff( in, "kernel" );
-		kernelIp = kernelImp.getProcessor();
-
-		ByteProcessor horizontalIp = crossCorrelate( origimg, kernelIp );
-		ByteBlitter horizontalBlitter = new ByteBlitter( horizontalIp );
+		NormalizedCrossCorrelation correlation = new NormalizedCrossCorrelation( ip );
+		float[][] correlations = correlation.correlate( kernels.toArray( new Kernel[ kernels.size() ] ) );
 
+		// Combine the thresholded correlation images
+		float thresh = 0.90f;
+		byte[] finalPixels = new byte[ imgWidth * imgHeight ];
+		for ( float[] corrimg : correlations )
 		{
-			// RIGHT
-			kernelIp.flipHorizontal();
-			ByteProcessor correlatedIp180 = crossCorrelate( origimg, kernelIp );
-			horizontalBlitter.copyBits( correlatedIp180, 0, 0, Blitter.OR );
+			for ( int i = 0; i < finalPixels.length; i++ )
+			{
+				if ( corrimg[ i ] > thresh )
+				{
+					finalPixels[ i ] = ( byte ) 0xff;
+				}
+			}
 		}
-
-		ByteProcessor finalIp = new ByteProcessor( imgWidth, imgHeight );
-		ByteBlitter finalBlitter = new ByteBlitter( finalIp );
-		int xloc = ( int ) Math.floor( ( imgWidth - verticalIp.getWidth() ) / 2 );
-		int yloc = ( int ) Math.floor( ( imgHeight - verticalIp.getHeight() ) / 2 );
-		finalBlitter.copyBits( verticalIp, xloc, yloc, Blitter.OR );
-
-		xloc = ( int ) Math.floor( ( imgWidth - horizontalIp.getWidth() ) / 2 );
-		yloc = ( int ) Math.floor( ( imgHeight - horizontalIp.getHeight() ) / 2 );
-		finalBlitter.copyBits( horizontalIp, xloc, yloc, Blitter.OR );
+		ByteProcessor finalIp = new ByteProcessor( imgWidth, imgHeight, finalPixels );
 
 		if ( IJ.debugMode )
 		{
@@ -106,41 +77,18 @@ public class EdgeDetector implements PlugInFilter
 		return finalIp;
 	}
 
-	private ByteProcessor crossCorrelate( float[][] originalImage, ImageProcessor kernelIp )
+	public String getKernelSet()
 	{
-		int kernelWidth = kernelIp.getWidth();
-		int kernelHeight = kernelIp.getHeight();
-
-		if ( kernelIp.isInvertedLut() )
-		{
-			kernelIp.invert();
-		}
-
-		float[][] kernelimg = new float[ kernelWidth ][ kernelHeight ];
-		for ( int w = 0; w < kernelWidth; w++ )
-		{
-			for ( int h = 0; h < kernelHeight; h++ )
-			{
-				kernelimg[ w ][ h ] = kernelIp.getPixel( w, h );
-			}
-		}
-
-		// Compute normalized cross correlation
-		float[][] corrimg = ImageTools.statsCorrelation( originalImage, kernelimg );
-		float thresh = 0.90f;
-		int corrWidth = corrimg.length;
-		int corrHeight = corrimg[ 0 ].length;
-
-		byte[] corrPixels = new byte[ corrWidth * corrHeight ];
-		for ( int h = 0; h < corrHeight; h++ )
-		{
-			for ( int w = 0; w < corrWidth; w++ )
-			{
-				float value = corrimg[ w ][ h ];
-				corrPixels[ h * corrWidth + w ] = ( byte ) ( ( value > thresh ) ? 0xff : 0x00 );
-			}
-		}
+		return kernelSet;
+	}
 
-		return new ByteProcessor( corrWidth, corrHeight, corrPixels );
+	/**
+	 * @param kernelSet
+	 *            name of the set of {@link Kernel}s in the
+	 *            {@link KernelRegistry} that is matched
+	 */
+	public void setKernelSet( String kernelSet )
+	{
+		this.kernelSet = kernelSet;
 	}
 }
@@ -1,5 +1,6 @@
 package de.fzj.jungle.preprocessing.boxdetection;
 
+import de.fzj.jungle.preprocessing.hough.LinearHT.HoughLine;
 import de.fzj.jungle.preprocessing.hough.LinearHT.HoughLinePair;
 
 /**
@@ -29,11 +30,35 @@ public class HoughRectangle implements Comparable< HoughRectangle >
 		return houghPair1.getSumOfScores() + houghPair2.getSumOfScores();
 	}
 
+	/**
+	 * Orders rectangles by their score. Rectangles with equal scores are
+	 * ordered by the angles and radii of their lines, i.e. only rectangles
+	 * made of the same lines are considered equal (and collapse in a
+	 * {@link java.util.TreeSet}).
+	 */
 	@Override
 	public int compareTo( HoughRectangle rect )
 	{
-		Integer score = this.getSumOfScores();
-		return score.compareTo( rect.getSumOfScores() );
+		int result = Integer.compare( getSumOfScores(), rect.getSumOfScores() );
+		if ( result != 0 ) { return result; }
+
+		result = comparePairs( houghPair1, rect.houghPair1 );
+		return ( result != 0 ) ? result : comparePairs( houghPair2, rect.houghPair2 );
+	}
+
+	private static int comparePairs( HoughLinePair pair1, HoughLinePair pair2 )
+	{
+		int result = compareLines( pair1.getH1(), pair2.getH1() );
+		return ( result != 0 ) ? result : compareLines( pair1.getH2(), pair2.getH2() );
+	}
+
+	private static int compareLines( HoughLine line1, HoughLine line2 )
+	{
+		int result = Double.compare( line1.getAngle(), line2.getAngle() );
+		if ( result != 0 ) { return result; }
+
+		result = Double.compare( line1.getRadius(), line2.getRadius() );
+		return ( result != 0 ) ? result : Integer.compare( line1.getCount(), line2.getCount() );
 	}
 
 }
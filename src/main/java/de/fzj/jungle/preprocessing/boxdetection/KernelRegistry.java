@@ -0,0 +1,155 @@
+package de.fzj.jungle.preprocessing.boxdetection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.fzj.jungle.preprocessing.boxdetection.NormalizedCrossCorrelation.Kernel;
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+/**
+ * Central storage for the sets of {@link Kernel}s that are matched by the
+ * {@link EdgeDetector}.
+ * <p>
+ * Kernels are decoded once per JVM and are immutable, hence, they are shared
+ * by all {@link EdgeDetector}s. The {@link #DEFAULT} set consists of the
+ * templates {@code /kernels/top.tif} and {@code /kernels/left.tif} and their
+ * mirror images. Kernel sets for other chamber geometries can be added with
+ * {@link #register(String, Kernel, Kernel)}.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class KernelRegistry
+{
+
+	/** Name of the kernel set of the bundled templates. */
+	public static final String DEFAULT = "Default";
+
+	private static final Map< String, List< Kernel > > kernelSets = new ConcurrentHashMap<>();
+
+	private KernelRegistry()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * @param name
+	 *            name of a kernel set
+	 * @return the (unmodifiable) kernel set
+	 * @throws IllegalArgumentException
+	 *             if no kernel set with that name has been registered
+	 */
+	public static List< Kernel > getKernels( String name )
+	{
+		List< Kernel > kernels;
+		if ( DEFAULT.equals( name ) )
+		{
+			// Decode the bundled templates on first use
+			kernels = kernelSets.computeIfAbsent( DEFAULT, n -> edgeKernels( loadResource( "/kernels/top.tif" ), loadResource( "/kernels/left.tif" ) ) );
+		}
+		else
+		{
+			kernels = kernelSets.get( name );
+		}
+
+		if ( kernels == null ) { throw new IllegalArgumentException( "Unknown kernel set: " + name ); }
+
+		return kernels;
+	}
+
+	/**
+	 * Registers the templates of the top and the left edge of a chamber. The
+	 * bottom and the right edge are matched by their mirror images.
+	 *
+	 * @param name
+	 *            name of the kernel set
+	 * @param top
+	 *            template of the top edge
+	 * @param left
+	 *            template of the left edge
+	 */
+	public static void register( String name, Kernel top, Kernel left )
+	{
+		register( name, edgeKernels( top, left ) );
+	}
+
+	/**
+	 * Registers an arbitrary set of kernels (replaces a previously registered
+	 * set of the same name).
+	 *
+	 * @param name
+	 *            name of the kernel set
+	 * @param kernels
+	 *            {@link Kernel}s that are matched
+	 */
+	public static void register( String name, List< Kernel > kernels )
+	{
+		kernelSets.put( name, Collections.unmodifiableList( Arrays.asList( kernels.toArray( new Kernel[ kernels.size() ] ) ) ) );
+	}
+
+	/**
+	 * @return the names of all registered kernel sets
+	 */
+	public static Set< String > getNames()
+	{
+		getKernels( DEFAULT );
+
+		return Collections.unmodifiableSet( kernelSets.keySet() );
+	}
+
+	/**
+	 * Decodes a kernel from a TIFF file. Images with an inverted LUT are
+	 * inverted.
+	 *
+	 * @param in
+	 *            {@link InputStream} of the TIFF file
+	 * @return a new {@link Kernel}
+	 * @throws IOException
+	 *             if the stream cannot be decoded
+	 */
+	public static Kernel load( InputStream in ) throws IOException
+	{
+		Opener o = new Opener();
+		ImagePlus kernelImp = o.openTiff( in, "kernel" );
+		if ( kernelImp == null ) { throw new IOException( "Could not decode kernel." ); }
+		ImageProcessor kernelIp = kernelImp.getProcessor();
+
+		if ( kernelIp.isInvertedLut() )
+		{
+			kernelIp.invert();
+		}
+
+		return Kernel.fromProcessor( kernelIp );
+	}
+
+	/**
+	 * @return the kernels for the top, bottom, left, and right edge
+	 */
+	private static List< Kernel > edgeKernels( Kernel top, Kernel left )
+	{
+		return Collections.unmodifiableList( Arrays.asList( top, top.flipVertical(), left, left.flipHorizontal() ) );
+	}
+
+	private static Kernel loadResource( String resource )
+	{
+		try (InputStream in = KernelRegistry.class.getResourceAsStream( resource ))
+		{
+			if ( in == null ) { throw new IllegalStateException( "Missing kernel " + resource ); }
+
+			return load( in );
+		}
+		catch ( IOException e )
+		{
+			throw new IllegalStateException( "Could not load kernel " + resource, e );
+		}
+	}
+
+}
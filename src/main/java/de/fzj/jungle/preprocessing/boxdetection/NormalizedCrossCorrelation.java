@@ -0,0 +1,472 @@
+package de.fzj.jungle.preprocessing.boxdetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import de.fzj.jungle.util.FFT;
+import ij.process.ImageProcessor;
+
+/**
+ * Computes the normalized cross-correlation (the statistical correlation
+ * coefficient of {@link ImageTools#statsCorrelation(float[][], float[][])})
+ * of an image with a set of kernels.
+ * <p>
+ * The local sums and sums of squares of the image are taken from integral
+ * images, i.e. the local mean and variance cost O(1) per pixel. Only the
+ * cross term is computed over the kernel window, using kernels from which
+ * their mean has been subtracted.
+ * </p>
+ * <p>
+ * Small kernels are evaluated in a single pass over the image in the spatial
+ * domain (rows are processed in parallel). For kernels with more than
+ * {@link #getFourierThreshold()} elements, the cross term is computed by
+ * {@link FFT}: the image is transformed once and two kernels are correlated
+ * per inverse transform (as real and imaginary part).
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class NormalizedCrossCorrelation
+{
+
+	private final float[] pixels;
+
+	private final int width;
+
+	private final int height;
+
+	/** Integral image of the pixels, {@code (width + 1) * (height + 1)}. */
+	private final double[] sum;
+
+	/** Integral image of the squared pixels. */
+	private final double[] sumOfSquares;
+
+	/**
+	 * Default number of kernel elements above which kernels are correlated in
+	 * the frequency domain.
+	 */
+	public static final int DEFAULT_FOURIER_THRESHOLD = 128;
+
+	private int fourierThreshold = DEFAULT_FOURIER_THRESHOLD;
+
+	/* Spectrum of the image (computed on demand) */
+	private int fftWidth;
+
+	private int fftHeight;
+
+	private double[] spectrumRe;
+
+	private double[] spectrumIm;
+
+	/**
+	 * Prepares the correlation of an image.
+	 *
+	 * @param ip
+	 *            image to correlate (the values of {@link ImageProcessor#get(int)}
+	 *            are used)
+	 */
+	public NormalizedCrossCorrelation( ImageProcessor ip )
+	{
+		this( toPixels( ip ), ip.getWidth(), ip.getHeight() );
+	}
+
+	/**
+	 * Prepares the correlation of an image.
+	 *
+	 * @param pixels
+	 *            pixels of the image (row by row)
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 */
+	public NormalizedCrossCorrelation( float[] pixels, int width, int height )
+	{
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+
+		final int stride = width + 1;
+		this.sum = new double[ stride * ( height + 1 ) ];
+		this.sumOfSquares = new double[ stride * ( height + 1 ) ];
+		for ( int y = 0; y < height; y++ )
+		{
+			double rowSum = 0;
+			double rowSumOfSquares = 0;
+			for ( int x = 0; x < width; x++ )
+			{
+				final double value = pixels[ y * width + x ];
+				rowSum += value;
+				rowSumOfSquares += value * value;
+				sum[ ( y + 1 ) * stride + x + 1 ] = sum[ y * stride + x + 1 ] + rowSum;
+				sumOfSquares[ ( y + 1 ) * stride + x + 1 ] = sumOfSquares[ y * stride + x + 1 ] + rowSumOfSquares;
+			}
+		}
+	}
+
+	/**
+	 * Correlates the image with all {@code kernels}.
+	 * <p>
+	 * The correlation of pixel {@code (x, y)} is computed for the kernel
+	 * window centered at {@code (x, y)}. Pixels closer to the border than
+	 * half the kernel size are set to 0, as are windows of constant
+	 * intensity.
+	 * </p>
+	 *
+	 * @param kernels
+	 *            {@link Kernel}s of odd width and height
+	 * @return a correlation image (values in [-1, 1], row by row) of the size
+	 *         of the input for each kernel
+	 */
+	public float[][] correlate( final Kernel... kernels )
+	{
+		final int nKernels = kernels.length;
+		final float[][] correlations = new float[ nKernels ][ width * height ];
+
+		final List< Integer > spatial = new ArrayList<>();
+		final List< Integer > fourier = new ArrayList<>();
+		for ( int n = 0; n < nKernels; n++ )
+		{
+			( ( kernels[ n ].values.length > fourierThreshold ) ? fourier : spatial ).add( n );
+		}
+
+		if ( !spatial.isEmpty() )
+		{
+			IntStream.range( 0, height ).parallel().forEach( y -> {
+				for ( int n : spatial )
+				{
+					final int kw = kernels[ n ].width;
+					final int kh = kernels[ n ].height;
+					final int ew = kw / 2;
+					final int eh = kh / 2;
+					if ( y < eh || y >= height - eh )
+					{
+						continue;
+					}
+
+					final float[] kernel = kernels[ n ].centered;
+					final float[] correlation = correlations[ n ];
+					for ( int x = ew; x < width - ew; x++ )
+					{
+						// Sum of (image - local mean) * (kernel - kernel mean)
+						// equals the sum of image * (kernel - kernel mean)
+						double crossSum = 0;
+						for ( int j = 0, offset = ( y - eh ) * width + x - ew; j < kh; j++, offset += width )
+						{
+							final int row = j * kw;
+							for ( int i = 0; i < kw; i++ )
+							{
+								crossSum += pixels[ offset + i ] * kernel[ row + i ];
+							}
+						}
+
+						correlation[ y * width + x ] = normalize( crossSum, x - ew, y - eh, kw, kh, kernels[ n ].sumOfSquares );
+					}
+				}
+			} );
+		}
+
+		// Two kernels per transform
+		for ( int k = 0; k < fourier.size(); k += 2 )
+		{
+			final int n1 = fourier.get( k );
+			final int n2 = ( k + 1 < fourier.size() ) ? fourier.get( k + 1 ) : -1;
+			final double[][] crossSums = crossSumsFourier( kernels[ n1 ], ( n2 < 0 ) ? null : kernels[ n2 ] );
+
+			normalizeFourier( crossSums[ 0 ], kernels[ n1 ], correlations[ n1 ] );
+			if ( n2 >= 0 )
+			{
+				normalizeFourier( crossSums[ 1 ], kernels[ n2 ], correlations[ n2 ] );
+			}
+		}
+
+		return correlations;
+	}
+
+	public int getFourierThreshold()
+	{
+		return fourierThreshold;
+	}
+
+	/**
+	 * @param fourierThreshold
+	 *            kernels with more elements are correlated in the frequency
+	 *            domain ({@code 0} for all kernels, {@link Integer#MAX_VALUE}
+	 *            for none)
+	 */
+	public void setFourierThreshold( int fourierThreshold )
+	{
+		this.fourierThreshold = fourierThreshold;
+	}
+
+	/**
+	 * Computes the cross terms of up to two (mean-free) kernels for all
+	 * window positions by a circular correlation. Windows that lie within the
+	 * image do not wrap around, since the transform is at least as large as
+	 * the image.
+	 *
+	 * @return the cross terms of both kernels indexed by the upper left
+	 *         corner of the window ({@code fftWidth} values per row)
+	 */
+	private double[][] crossSumsFourier( Kernel kernel1, Kernel kernel2 )
+	{
+		if ( spectrumRe == null )
+		{
+			fftWidth = FFT.nextPowerOfTwo( width );
+			fftHeight = FFT.nextPowerOfTwo( height );
+			spectrumRe = new double[ fftWidth * fftHeight ];
+			spectrumIm = new double[ fftWidth * fftHeight ];
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					spectrumRe[ y * fftWidth + x ] = pixels[ y * width + x ];
+				}
+			}
+			FFT.transform2D( spectrumRe, spectrumIm, fftWidth, fftHeight, false );
+		}
+
+		// Reversed kernels, i.e. k(-x, -y), as real and imaginary part
+		final double[] re = new double[ fftWidth * fftHeight ];
+		final double[] im = new double[ fftWidth * fftHeight ];
+		reverse( kernel1, re );
+		if ( kernel2 != null )
+		{
+			reverse( kernel2, im );
+		}
+		FFT.transform2D( re, im, fftWidth, fftHeight, false );
+
+		for ( int k = 0; k < re.length; k++ )
+		{
+			final double r = re[ k ] * spectrumRe[ k ] - im[ k ] * spectrumIm[ k ];
+			final double i = re[ k ] * spectrumIm[ k ] + im[ k ] * spectrumRe[ k ];
+			re[ k ] = r;
+			im[ k ] = i;
+		}
+		FFT.transform2D( re, im, fftWidth, fftHeight, true );
+
+		return new double[][] { re, im };
+	}
+
+	private void reverse( Kernel kernel, double[] target )
+	{
+		for ( int j = 0; j < kernel.height; j++ )
+		{
+			final int y = ( fftHeight - j ) % fftHeight;
+			for ( int i = 0; i < kernel.width; i++ )
+			{
+				target[ y * fftWidth + ( fftWidth - i ) % fftWidth ] = kernel.centered[ j * kernel.width + i ];
+			}
+		}
+	}
+
+	private void normalizeFourier( final double[] crossSums, final Kernel kernel, final float[] correlation )
+	{
+		final int kw = kernel.width;
+		final int kh = kernel.height;
+		final int ew = kw / 2;
+		final int eh = kh / 2;
+
+		IntStream.range( eh, height - eh ).parallel().forEach( y -> {
+			for ( int x = ew; x < width - ew; x++ )
+			{
+				correlation[ y * width + x ] = normalize( crossSums[ ( y - eh ) * fftWidth + x - ew ], x - ew, y - eh, kw, kh, kernel.sumOfSquares );
+			}
+		} );
+	}
+
+	/**
+	 * @return the correlation coefficient of the window with upper left corner
+	 *         {@code (x, y)}
+	 */
+	private float normalize( double crossSum, int x, int y, int kw, int kh, double kernelSumOfSquares )
+	{
+		final double denominator = localSumOfSquares( x, y, kw, kh ) * kernelSumOfSquares;
+
+		return ( crossSum == 0 || denominator <= 0 ) ? 0f : ( float ) ( crossSum / Math.sqrt( denominator ) );
+	}
+
+	/**
+	 * @return the sum of squared deviations from the mean within a window
+	 */
+	private double localSumOfSquares( int x, int y, int w, int h )
+	{
+		final int stride = width + 1;
+		final int topLeft = y * stride + x;
+		final int topRight = topLeft + w;
+		final int bottomLeft = topLeft + h * stride;
+		final int bottomRight = bottomLeft + w;
+
+		final double s = sum[ bottomRight ] - sum[ bottomLeft ] - sum[ topRight ] + sum[ topLeft ];
+		final double ss = sumOfSquares[ bottomRight ] - sumOfSquares[ bottomLeft ] - sumOfSquares[ topRight ] + sumOfSquares[ topLeft ];
+
+		return ss - s * s / ( w * h );
+	}
+
+	private static float[] toPixels( ImageProcessor ip )
+	{
+		final float[] pixels = new float[ ip.getWidth() * ip.getHeight() ];
+		for ( int i = 0; i < pixels.length; i++ )
+		{
+			pixels[ i ] = ip.get( i );
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * An immutable correlation kernel (template). The mean-free values and
+	 * their sum of squares (the self-correlation of the kernel) are computed
+	 * once.
+	 */
+	public static class Kernel
+	{
+
+		private final float[] values;
+
+		private final int width;
+
+		private final int height;
+
+		private final float[] centered;
+
+		private final double mean;
+
+		private final double sumOfSquares;
+
+		/**
+		 * @param values
+		 *            values of the kernel (row by row, copied)
+		 * @param width
+		 *            width of the kernel
+		 * @param height
+		 *            height of the kernel
+		 */
+		public Kernel( float[] values, int width, int height )
+		{
+			if ( values.length != width * height ) { throw new IllegalArgumentException( "Expected " + width * height + " kernel values." ); }
+
+			this.values = values.clone();
+			this.width = width;
+			this.height = height;
+
+			double sum = 0;
+			for ( float value : values )
+			{
+				sum += value;
+			}
+			this.mean = sum / values.length;
+
+			this.centered = new float[ values.length ];
+			double squares = 0;
+			for ( int k = 0; k < values.length; k++ )
+			{
+				centered[ k ] = ( float ) ( values[ k ] - mean );
+				squares += ( values[ k ] - mean ) * ( values[ k ] - mean );
+			}
+			this.sumOfSquares = squares;
+		}
+
+		/**
+		 * Creates a {@link Kernel} from the values of
+		 * {@link ImageProcessor#getPixel(int, int)}.
+		 *
+		 * @param ip
+		 *            image of the kernel
+		 * @return a new {@link Kernel}
+		 */
+		public static Kernel fromProcessor( ImageProcessor ip )
+		{
+			final int w = ip.getWidth();
+			final int h = ip.getHeight();
+			final float[] values = new float[ w * h ];
+			for ( int y = 0; y < h; y++ )
+			{
+				for ( int x = 0; x < w; x++ )
+				{
+					values[ y * w + x ] = ip.getPixel( x, y );
+				}
+			}
+
+			return new Kernel( values, w, h );
+		}
+
+		/**
+		 * @return a copy of the kernel that is mirrored at its horizontal axis
+		 */
+		public Kernel flipVertical()
+		{
+			final float[] flipped = new float[ values.length ];
+			for ( int y = 0; y < height; y++ )
+			{
+				System.arraycopy( values, y * width, flipped, ( height - 1 - y ) * width, width );
+			}
+
+			return new Kernel( flipped, width, height );
+		}
+
+		/**
+		 * @return a copy of the kernel that is mirrored at its vertical axis
+		 */
+		public Kernel flipHorizontal()
+		{
+			final float[] flipped = new float[ values.length ];
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					flipped[ y * width + width - 1 - x ] = values[ y * width + x ];
+				}
+			}
+
+			return new Kernel( flipped, width, height );
+		}
+
+		/**
+		 * @return a copy of the kernel that is rotated by 90 degrees
+		 *         (clockwise)
+		 */
+		public Kernel rotateRight()
+		{
+			final float[] rotated = new float[ values.length ];
+			for ( int y = 0; y < height; y++ )
+			{
+				for ( int x = 0; x < width; x++ )
+				{
+					rotated[ x * height + height - 1 - y ] = values[ y * width + x ];
+				}
+			}
+
+			return new Kernel( rotated, height, width );
+		}
+
+		public int getWidth()
+		{
+			return width;
+		}
+
+		public int getHeight()
+		{
+			return height;
+		}
+
+		/**
+		 * @return the mean of the kernel values
+		 */
+		public double getMean()
+		{
+			return mean;
+		}
+
+		/**
+		 * @return the sum of squared deviations from the mean
+		 */
+		public double getSumOfSquares()
+		{
+			return sumOfSquares;
+		}
+
+	}
+
+}
@@ -1,5 +1,8 @@
 package de.fzj.jungle.preprocessing.boxdetection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.TreeSet;
 
@@ -9,88 +12,226 @@ import de.fzj.jungle.preprocessing.hough.LinearHT.HoughLinePair;
 
 /**
  * Classifies a growth chamber according to some predefined ratios.
- * 
+ * <p>
+ * Lines are bucketed by their orientation, so that pairs of parallel lines
+ * are only built within neighboring buckets. Pairs are sorted by distance,
+ * hence, the candidates for the second pair of a rectangle are found with a
+ * range query for each predefined ratio instead of comparing all pairs.
+ * </p>
+ *
  * @author Stefan Helfrich
  */
 public class RatioBoxClassifier implements BoxClassifier
 {
 
+	/**
+	 * Default number of rectangles that are returned by
+	 * {@link #classify(List)}.
+	 */
+	public static final int DEFAULT_MAX_RECTANGLES = 10;
+
+	/**
+	 * Maximal difference of the angles of two parallel lines (also the width
+	 * of the angle buckets).
+	 */
+	private static final double PARALLEL_EPSILON = 0.05;
+
+	private final int maxRectangles;
+
+	public RatioBoxClassifier()
+	{
+		this( DEFAULT_MAX_RECTANGLES );
+	}
+
+	/**
+	 * @param maxRectangles
+	 *            maximal number of (best scoring) rectangles that are returned
+	 */
+	public RatioBoxClassifier( int maxRectangles )
+	{
+		this.maxRectangles = maxRectangles;
+	}
+
 	@Override
 	public TreeSet< HoughRectangle > classify( List< HoughLine > lines )
 	{
 		/*
-		 * 1. Check if distances matches one of the widths 2. Check if other
-		 * distances match the associated height 3. If that's the case store
-		 * both it in boxHoughLines as a pair
+		 * 1. Pair lines with the same orientation on opposite sides of the
+		 * center 2. Look up pairs with a different orientation whose distance
+		 * matches one of the ratios 3. Keep the best scoring rectangles
 		 */
+		List< HoughLinePair > linePairs = pairParallelLines( lines );
+
+		// Sort pairs by distance for the range queries
+		HoughLinePair[] pairs = linePairs.toArray( new HoughLinePair[ linePairs.size() ] );
+		Arrays.sort( pairs, Comparator.comparingInt( HoughLinePair::getDistance ) );
+		int[] distances = new int[ pairs.length ];
+		double[] angles = new double[ pairs.length ];
+		for ( int i = 0; i < pairs.length; i++ )
+		{
+			distances[ i ] = pairs[ i ].getDistance();
+			angles[ i ] = foldAngle( pairs[ i ].getH1() );
+		}
 
-		TreeSet< HoughLinePair > linePairs = new TreeSet<>();
+		TreeSet< HoughRectangle > houghRectangles = new TreeSet<>();
 
-		for ( HoughLine h1 : lines )
+		for ( int i = 0; i < pairs.length; i++ )
 		{
-			for ( HoughLine h2 : lines )
+			double distance1 = distances[ i ];
+
+			// For each structure query the pairs whose ratio fits
+			for ( Structure s : StructureStorage.getStructures() )
 			{
-				// compare lines with similar angle
-				if ( h1.equals( h2 ) )
-				{
-					continue;
-				}
+				double ratio = s.getRatio();
 
-				/*
-				 * Only look at lines with same orientation, i.e., same angle,
-				 * and opposite sides of the center. We need a little hack here,
-				 * since angles around pi are close to angle near 0 ..
-				 */
-				double angle1 = ( h1.getAngle() > ( 3 * Math.PI / 4 ) ) ? ( Math.PI - h1.getAngle() ) : h1.getAngle();
-				double angle2 = ( h2.getAngle() > ( 3 * Math.PI / 4 ) ) ? ( Math.PI - h2.getAngle() ) : h2.getAngle();
+				// distance1 / distance2 ~ ratio (bounds are widened by one to
+				// account for rounding, the ratio is checked exactly)
+				double upper = ratio > BoxClassifier.RATIO_EPSILON ? distance1 / ( ratio - BoxClassifier.RATIO_EPSILON ) + 1 : Integer.MAX_VALUE;
+				addRectangles( houghRectangles, pairs, distances, angles, i, ratio, distance1 / ( ratio + BoxClassifier.RATIO_EPSILON ) - 1, upper );
 
-				if ( ( Math.abs( angle1 - angle2 ) < 0.05 ) && ( Math.signum( h1.getRadius() ) != Math.signum( h2.getRadius() ) ) )
-				{
-					HoughLinePair pair = new LinearHT.HoughLinePair( h1, h2, h1.getCount() + h2.getCount() );
-					linePairs.add( pair );
-				}
+				// distance2 / distance1 ~ ratio
+				addRectangles( houghRectangles, pairs, distances, angles, i, ratio, distance1 * ( ratio - BoxClassifier.RATIO_EPSILON ) - 1, distance1 * ( ratio + BoxClassifier.RATIO_EPSILON ) + 1 );
 			}
 		}
 
-		TreeSet< HoughRectangle > houghRectangles = new TreeSet<>();
+		return houghRectangles;
+	}
 
-		for ( HoughLinePair pair1 : linePairs )
+	/**
+	 * Pairs lines with (almost) the same orientation that are located on
+	 * opposite sides of the center.
+	 */
+	private static List< HoughLinePair > pairParallelLines( List< HoughLine > lines )
+	{
+		HoughLine[] l = lines.toArray( new HoughLine[ lines.size() ] );
+
+		// Bucket lines by their orientation
+		double minAngle = Double.POSITIVE_INFINITY;
+		for ( HoughLine h : l )
 		{
-			for ( HoughLinePair pair2 : linePairs )
-			{
-				if ( pair1 == pair2 )
-				{
-					continue;
-				}
+			minAngle = Math.min( minAngle, foldAngle( h ) );
+		}
+
+		int[] bucket = new int[ l.length ];
+		int nBuckets = 0;
+		for ( int i = 0; i < l.length; i++ )
+		{
+			bucket[ i ] = ( int ) ( ( foldAngle( l[ i ] ) - minAngle ) / PARALLEL_EPSILON );
+			nBuckets = Math.max( nBuckets, bucket[ i ] + 1 );
+		}
 
-				double distance1 = pair1.getDistance();
-				double distance2 = pair2.getDistance();
+		List< List< Integer > > buckets = new ArrayList<>( nBuckets );
+		for ( int b = 0; b < nBuckets; b++ )
+		{
+			buckets.add( new ArrayList<>() );
+		}
+		for ( int i = 0; i < l.length; i++ )
+		{
+			buckets.get( bucket[ i ] ).add( i );
+		}
 
-				double angle1 = ( pair1.getH1().getAngle() > ( 3 * Math.PI / 4 ) ) ? ( Math.PI - pair1.getH1().getAngle() ) : pair1.getH1().getAngle();
-				double angle2 = ( pair2.getH1().getAngle() > ( 3 * Math.PI / 4 ) ) ? ( Math.PI - pair2.getH1().getAngle() ) : pair2.getH1().getAngle();
+		List< HoughLinePair > linePairs = new ArrayList<>();
 
-				if ( Math.abs( angle1 - angle2 ) < Math.PI / 4 )
-				{
-					continue;
-				}
+		for ( int i = 0; i < l.length; i++ )
+		{
+			HoughLine h1 = l[ i ];
+			double angle1 = foldAngle( h1 );
 
-				// For each structure check if the ratio fits
-				for ( Structure s : StructureStorage.getStructures() )
+			// Parallel lines are in the same or in a neighboring bucket
+			for ( int b = Math.max( 0, bucket[ i ] - 1 ); b <= Math.min( nBuckets - 1, bucket[ i ] + 1 ); b++ )
+			{
+				for ( int j : buckets.get( b ) )
 				{
-					double deviation = Math.abs( ( distance1 / distance2 ) - s.getRatio() );
-					double deviationInverse = Math.abs( ( distance2 / distance1 ) - s.getRatio() );
+					HoughLine h2 = l[ j ];
 
-					if ( deviation < BoxClassifier.RATIO_EPSILON || deviationInverse < BoxClassifier.RATIO_EPSILON )
+					// Every pair is only built once
+					if ( j <= i || h1.equals( h2 ) )
 					{
-						HoughRectangle rect = new HoughRectangle( pair1, pair2 );
-						houghRectangles.add( rect );
-						break;
+						continue;
+					}
+
+					if ( ( Math.abs( angle1 - foldAngle( h2 ) ) < PARALLEL_EPSILON ) && ( Math.signum( h1.getRadius() ) != Math.signum( h2.getRadius() ) ) )
+					{
+						linePairs.add( new LinearHT.HoughLinePair( h1, h2, h1.getCount() + h2.getCount() ) );
 					}
 				}
 			}
 		}
 
-		return houghRectangles;
+		return linePairs;
+	}
+
+	/**
+	 * Adds a rectangle for each pair (with index > {@code i}) whose distance
+	 * is in the range [{@code lower}, {@code upper}], whose ratio fits and
+	 * whose orientation differs from pair {@code i}. The best scoring
+	 * {@link #maxRectangles} rectangles are kept.
+	 */
+	private void addRectangles( TreeSet< HoughRectangle > houghRectangles, HoughLinePair[] pairs, int[] distances, double[] angles, int i, double ratio, double lower, double upper )
+	{
+		double distance1 = distances[ i ];
+
+		for ( int j = Math.max( i + 1, lowerBound( distances, ( int ) Math.floor( lower ) ) ); j < pairs.length && distances[ j ] <= upper; j++ )
+		{
+			double distance2 = distances[ j ];
+
+			double deviation = Math.abs( ( distance1 / distance2 ) - ratio );
+			double deviationInverse = Math.abs( ( distance2 / distance1 ) - ratio );
+
+			if ( !( deviation < BoxClassifier.RATIO_EPSILON || deviationInverse < BoxClassifier.RATIO_EPSILON ) || Math.abs( angles[ i ] - angles[ j ] ) < Math.PI / 4 )
+			{
+				continue;
+			}
+
+			// Skip rectangles that do not make it into the best scoring ones
+			// (ties are resolved by the geometric order of HoughRectangle)
+			if ( houghRectangles.size() >= maxRectangles && pairs[ i ].getSumOfScores() + pairs[ j ].getSumOfScores() < houghRectangles.first().getSumOfScores() )
+			{
+				continue;
+			}
+
+			// The first pair is the horizontal one (angle near pi/2)
+			HoughRectangle rect = angles[ i ] > angles[ j ] ? new HoughRectangle( pairs[ i ], pairs[ j ] ) : new HoughRectangle( pairs[ j ], pairs[ i ] );
+			houghRectangles.add( rect );
+
+			if ( houghRectangles.size() > maxRectangles )
+			{
+				houghRectangles.pollFirst();
+			}
+		}
+	}
+
+	/**
+	 * @return index of the first element of {@code sorted} that is greater
+	 *         than or equal to {@code key}
+	 */
+	private static int lowerBound( int[] sorted, int key )
+	{
+		int lo = 0;
+		int hi = sorted.length;
+		while ( lo < hi )
+		{
+			int mid = ( lo + hi ) >>> 1;
+			if ( sorted[ mid ] < key )
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	/**
+	 * We need a little hack here, since angles around pi are close to angle
+	 * near 0 ..
+	 */
+	private static double foldAngle( HoughLine h )
+	{
+		return ( h.getAngle() > ( 3 * Math.PI / 4 ) ) ? ( Math.PI - h.getAngle() ) : h.getAngle();
 	}
 
 }
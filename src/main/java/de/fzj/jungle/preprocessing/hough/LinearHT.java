@@ -8,6 +8,8 @@ import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
 
 /**
  * This sample code is made available as part of the book "Digital Image
@@ -28,12 +30,25 @@ public class LinearHT {
 	int cRad;				// array index for zero radius (r = 0)
 	double dAng;			// increment of angle
 	double dRad; 			// increment of radius
-	int[][] houghArray; 	// Hough accumulator array
-	int[][] localMaxArray;	// array of accumulator local maxima
+	double[] cosTable;		// cos(theta) / dRad for each angle index
+	double[] sinTable;		// sin(theta) / dRad for each angle index
+	double sampling;		// fraction of edge pixels that vote
+	int[] houghArray; 		// Hough accumulator array (flat, index ai * nRad + ri)
 
 	// --------------  public methods ------------------------
 	
 	public LinearHT(ImageProcessor ip, int nAng, int nRad) {
+		this(ip, nAng, nRad, 1.0);
+	}
+
+	/*
+	 * Probabilistic Hough transform: only a random subset of the edge pixels
+	 * (the given fraction, 0 < sampling <= 1) votes. The counts are scaled by
+	 * 1 / sampling, i.e. they estimate the counts of the full transform.
+	 */
+	public LinearHT(ImageProcessor ip, int nAng, int nRad, double sampling) {
+		if (sampling <= 0 || sampling > 1)
+			throw new IllegalArgumentException("sampling must be in (0, 1]: " + sampling);
 		this.ip = ip;
 		this.uc = ip.getWidth()/2; 
 		this.vc = ip.getHeight()/2;
@@ -43,9 +58,15 @@ public class LinearHT {
 		this.cRad = nRad / 2;
 		this.rMax = Math.sqrt(uc * uc + vc * vc);
 		this.dRad = (2.0 * rMax) / nRad;
-		this.houghArray = new int[nAng][nRad]; // cells are initialized to zero
+		this.sampling = sampling;
+		this.cosTable = new double[nAng];
+		this.sinTable = new double[nAng];
+		for (int ai = 0; ai < nAng; ai++) {
+			double theta = dAng * ai;
+			cosTable[ai] = Math.cos(theta) / dRad;
+			sinTable[ai] = Math.sin(theta) / dRad;
+		}
 		fillHoughArray();
-		findLocalMaxima();
 	}
 	
 	/* 
@@ -53,34 +74,51 @@ public class LinearHT {
 	 * strongest lines (with max. pixel counts)
 	 */
 	public List<HoughLine> getMaxLines(int maxCnt, int minPts) {
-		HoughLine[] linArr = new HoughLine[maxCnt];
-		// create an array of n blank HoughLine objects
-		for (int i = 0; i < linArr.length; i++) {
-			linArr[i] = new HoughLine(0, 0, -1);
-		}
+		return getMaxLines(maxCnt, minPts, 1);
+	}
 
-		for (int ri = 0; ri < nRad; ri++) {
+	/*
+	 * Find and return the parameters of the n strongest lines that are local
+	 * maxima within a (2 * window + 1) x (2 * window + 1) neighbourhood of the
+	 * accumulator (non-maximum suppression). The candidates are kept in a
+	 * bounded min-heap, i.e. the accumulator is scanned only once. Lines with
+	 * equal counts are returned in scan order (radius first, then angle).
+	 * The window half-width has to be at least 1.
+	 */
+	public List<HoughLine> getMaxLines(int maxCnt, int minPts, int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("window must be >= 1: " + window);
+		// heap keys: count in the upper 32 bits, the inverted scan position in
+		// the lower ones (the weakest and latest candidate is at the root)
+		long[] heap = new long[maxCnt];
+		int size = 0;
+
+		for (int ri = 1; ri < nRad - 1; ri++) {
 			for (int ai = 0; ai < nAng; ai++) {
-				int hcount = localMaxArray[ai][ri];
-				if (hcount >= minPts) {
-					HoughLine last = linArr[linArr.length - 1];
-					if (hcount > last.count) {
-						last.angle = realAngle(ai);
-						last.radius = realRadius(ri);
-						last.count = hcount;
-						Arrays.sort(linArr);	// this may be more efficient with insert sort
-					}
+				int hcount = houghArray[ai * nRad + ri];
+				if (hcount < minPts || (size == maxCnt && hcount <= (int) (heap[0] >>> 32)))
+					continue;
+				if (!isLocalMax(ai, ri, window))
+					continue;
+				long key = ((long) hcount << 32) | (0xFFFFFFFFL - (ri * nAng + ai));
+				if (size < maxCnt) {
+					heap[size] = key;
+					siftUp(heap, size++);
+				} else {
+					heap[0] = key;
+					siftDown(heap, size);
 				}
 			}
 		}
-		
+
+		long[] keys = Arrays.copyOf(heap, size);
+		Arrays.sort(keys);
 		List<HoughLine> lineList = new ArrayList<>();
-		for (HoughLine hl : linArr) {
-			if (hl.getCount() < minPts) break;
-			lineList.add(hl);
+		for (int i = keys.length - 1; i >= 0; i--) {
+			int scan = (int) (0xFFFFFFFFL - (keys[i] & 0xFFFFFFFFL));
+			lineList.add(new HoughLine(realAngle(scan % nAng), realRadius(scan / nAng), (int) (keys[i] >>> 32)));
 		}
 		return lineList;
-		//return Arrays.asList(lines);
 	}
 	
 	public FloatProcessor getAccumulatorImage() {
@@ -89,7 +127,7 @@ public class LinearHT {
 		FloatProcessor fp = new FloatProcessor(nAng,nRad);
 		for (int ri = 0; ri < nRad; ri++) {
 			for (int ai = 0; ai < nAng; ai++) {
-				fp.setf(ai, ri, houghArray[ai][ri]);
+				fp.setf(ai, ri, houghArray[ai * nRad + ri]);
 			}
 		}
 		fp.resetMinAndMax();
@@ -97,11 +135,11 @@ public class LinearHT {
 	}
 	
 	public FloatProcessor getLocalMaxImage() {
-		assert localMaxArray != null;
 		FloatProcessor fp = new FloatProcessor(nAng,nRad);
-		for (int ri = 0; ri < nRad; ri++) {
+		for (int ri = 1; ri < nRad - 1; ri++) {
 			for (int ai = 0; ai < nAng; ai++) {
-				fp.setf(ai, ri, localMaxArray[ai][ri]);
+				if (isLocalMax(ai, ri, 1))
+					fp.setf(ai, ri, houghArray[ai * nRad + ri]);
 			}
 		}
 		fp.resetMinAndMax();
@@ -112,58 +150,123 @@ public class LinearHT {
 	
 	// --------------  nonpublic methods ------------------------
 	
+	/*
+	 * Collects the (sampled) edge pixels and lets them vote in parallel.
+	 * Each chunk of pixels fills its own accumulator, the accumulators are
+	 * summed afterwards.
+	 */
 	void fillHoughArray() {
 		IJ.showStatus("filling accumulator ...");
+		int[] edges = collectEdgePixels();
+		final int nEdges = (sampling < 1) ? sample(edges, (int) Math.round(sampling * edges.length)) : edges.length;
+		final int w = ip.getWidth();
+		final int nChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), nEdges / 1024));
+		houghArray = IntStream.range(0, nChunks).parallel().mapToObj(chunk -> {
+			int[] acc = new int[nAng * nRad];
+			for (int k = (int) ((long) chunk * nEdges / nChunks); k < (int) ((long) (chunk + 1) * nEdges / nChunks); k++) {
+				doPixel(acc, edges[k] % w, edges[k] / w);
+			}
+			return acc;
+		}).reduce((a, b) -> {
+			for (int i = 0; i < a.length; i++) {
+				a[i] += b[i];
+			}
+			return a;
+		}).get();
+		if (sampling < 1) {
+			for (int i = 0; i < houghArray.length; i++) {
+				houghArray[i] = (int) Math.round(houghArray[i] / sampling);
+			}
+		}
+	}
+
+	/*
+	 * Returns the coordinates of all edge pixels (packed as v * width + u, i.e.
+	 * the pixel index).
+	 */
+	int[] collectEdgePixels() {
 		int h = ip.getHeight();
 		int w = ip.getWidth();
+		int[] edges = new int[w * h];
+		int n = 0;
 		for (int v = 0; v < h; v++) {
-			IJ.showProgress(v, h);
 			for (int u = 0; u < w; u++) {
-				if (ip.get(u, v) > 0) {		// this is an edge pixel
-					doPixel(u, v);
+				if (ip.get(v * w + u) > 0) {		// this is an edge pixel
+					edges[n++] = v * w + u;
 				}
 			}
 		}
-		IJ.showProgress(1, 1);
+		return Arrays.copyOf(edges, n);
 	}
 
-	void doPixel(int u, int v) {
+	/*
+	 * Moves a random subset of m edge pixels to the front (partial
+	 * Fisher-Yates shuffle with a fixed seed, i.e. results are reproducible).
+	 */
+	static int sample(int[] edges, int m) {
+		Random random = new Random(0);
+		for (int i = 0; i < m; i++) {
+			int j = i + random.nextInt(edges.length - i);
+			int tmp = edges[i];
+			edges[i] = edges[j];
+			edges[j] = tmp;
+		}
+		return m;
+	}
+
+	void doPixel(int[] acc, int u, int v) {
 		int x = u - uc;
 		int y = v - vc;
-		for (int ai = 0; ai < nAng; ai++) {
-			double theta = dAng * ai;
-			double r = x * Math.cos(theta) + y * Math.sin(theta);
-			int ri =  cRad + (int) Math.rint(r / dRad);
+		for (int ai = 0, offset = 0; ai < nAng; ai++, offset += nRad) {
+			int ri =  cRad + (int) Math.rint(x * cosTable[ai] + y * sinTable[ai]);
 			if (ri >= 0 && ri < nRad) {
-				houghArray[ai][ri]++;
+				acc[offset + ri]++;
 			}
 		}
 	}
 	
-	void findLocalMaxima() {
-		IJ.showStatus("finding local maxima");
-		localMaxArray = new int[nAng][nRad]; //initialized to zero
-		for (int ai = 0; ai < nAng; ai++) {
-			// angle dimension is treated cyclically:
-			int a1 = (ai > 0) ? ai-1 : nAng-1;
-			int a2 = (ai < nAng-1) ? ai+1 : 0;
-			for (int ri = 1; ri < nRad - 1; ri++) {
-				int ha = houghArray[ai][ri];
-				// this test is problematic if 2 identical cell values 
-				// appear next to each other!
-				boolean ismax =
-					ha > houghArray[a1][ri-1] &&
-					ha > houghArray[a1][ri] &&
-					ha > houghArray[a1][ri+1] &&
-					ha > houghArray[ai][ri-1] &&
-					ha > houghArray[ai][ri+1] &&
-					ha > houghArray[a2][ri-1] &&
-					ha > houghArray[a2][ri] &&
-					ha > houghArray[a2][ri+1] ;
-				if (ismax)
-					localMaxArray[ai][ri] = ha;
+	/*
+	 * Tests if cell (ai, ri) is a maximum within the given window (the angle
+	 * dimension is treated cyclically). Ties are broken by the position in
+	 * the accumulator, i.e. a plateau of equal counts yields a maximum, too.
+	 */
+	boolean isLocalMax(int ai, int ri, int window) {
+		int index = ai * nRad + ri;
+		int ha = houghArray[index];
+		for (int da = -window; da <= window; da++) {
+			int a = Math.floorMod(ai + da, nAng) * nRad;
+			for (int r = Math.max(0, ri - window); r <= Math.min(nRad - 1, ri + window); r++) {
+				int neighbour = a + r;
+				int hn = houghArray[neighbour];
+				if (hn > ha || (hn == ha && neighbour < index))
+					return false;
 			}
 		}
+		return true;
+	}
+
+	static void siftUp(long[] heap, int i) {
+		long key = heap[i];
+		while (i > 0 && heap[(i - 1) / 2] > key) {
+			heap[i] = heap[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		heap[i] = key;
+	}
+
+	static void siftDown(long[] heap, int size) {
+		long key = heap[0];
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && heap[child + 1] < heap[child])
+				child++;
+			if (heap[child] >= key)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = key;
 	}
 	
 	//returns real angle for angle index ai
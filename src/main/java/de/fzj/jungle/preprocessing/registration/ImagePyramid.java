@@ -0,0 +1,110 @@
+package de.fzj.jungle.preprocessing.registration;
+
+/**
+ * Dyadic image pyramid of {@code float} pixels.
+ * <p>
+ * Level 0 is the original image, each further level is reduced by averaging
+ * blocks of 2x2 pixels. Hence, pixel {@code x} of level {@code l} is centered
+ * at {@code 2^l * x + (2^l - 1) / 2} of level 0. Levels are added as long as
+ * both dimensions of the coarsest level are at least {@code 2 * minSize}.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class ImagePyramid
+{
+
+	/* Private fields */
+	private final float[][] pixels;
+
+	private final int[] widths;
+
+	private final int[] heights;
+
+	/**
+	 * Constructs an {@link ImagePyramid}.
+	 *
+	 * @param image
+	 *            pixels of level 0 (not copied)
+	 * @param width
+	 *            width of level 0
+	 * @param height
+	 *            height of level 0
+	 * @param minSize
+	 *            minimum size of the coarsest level
+	 */
+	public ImagePyramid( float[] image, int width, int height, int minSize )
+	{
+		if ( image.length < width * height ) { throw new IllegalArgumentException( "Image has less than " + width + "x" + height + " pixels." ); }
+
+		int levels = 1;
+		for ( int w = width, h = height; Math.min( w, h ) >= 2 * Math.max( minSize, 1 ); w /= 2, h /= 2 )
+		{
+			levels++;
+		}
+
+		this.pixels = new float[ levels ][];
+		this.widths = new int[ levels ];
+		this.heights = new int[ levels ];
+
+		pixels[ 0 ] = image;
+		widths[ 0 ] = width;
+		heights[ 0 ] = height;
+
+		for ( int l = 1; l < levels; l++ )
+		{
+			reduce( l );
+		}
+	}
+
+	/**
+	 * @return the number of levels
+	 */
+	public int getLevels()
+	{
+		return pixels.length;
+	}
+
+	public float[] getPixels( int level )
+	{
+		return pixels[ level ];
+	}
+
+	public int getWidth( int level )
+	{
+		return widths[ level ];
+	}
+
+	public int getHeight( int level )
+	{
+		return heights[ level ];
+	}
+
+	/**
+	 * Computes {@code level} from the next finer level.
+	 */
+	private void reduce( int level )
+	{
+		final float[] fine = pixels[ level - 1 ];
+		final int fineWidth = widths[ level - 1 ];
+		final int w = fineWidth / 2;
+		final int h = heights[ level - 1 ] / 2;
+
+		float[] coarse = new float[ w * h ];
+		for ( int y = 0; y < h; y++ )
+		{
+			int row0 = 2 * y * fineWidth;
+			int row1 = row0 + fineWidth;
+			for ( int x = 0; x < w; x++ )
+			{
+				int i = 2 * x;
+				coarse[ y * w + x ] = 0.25f * ( fine[ row0 + i ] + fine[ row0 + i + 1 ] + fine[ row1 + i ] + fine[ row1 + i + 1 ] );
+			}
+		}
+
+		pixels[ level ] = coarse;
+		widths[ level ] = w;
+		heights[ level ] = h;
+	}
+
+}
@@ -0,0 +1,764 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import java.util.Arrays;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Intensity-based registration of two images in memory.
+ * <p>
+ * Follows the pyramid approach of TurboReg (Thevenaz, Ruttimann, and Unser,
+ * 1998): the transformation is estimated on the coarsest level of an
+ * {@link ImagePyramid} first and then refined on each finer level. On each
+ * level, the sum of squared differences between the target and the warped
+ * source is minimized with the Levenberg-Marquardt algorithm using bilinear
+ * interpolation of the source and its gradient.
+ * </p>
+ * <p>
+ * The estimated transformation is returned as a homogeneous 3x3 matrix that
+ * maps coordinates of the target to coordinates of the source, i.e. the same
+ * convention as the matrices MultiStackReg derives from the landmarks of
+ * TurboReg. Hence, {@link ImageWarp#warp(ImageProcessor, double[][])} aligns
+ * the source to the target.
+ * </p>
+ * <p>
+ * Starting from an initial estimate, only the finest pyramid levels are
+ * refined and each level terminates once the error stagnates. For drifting
+ * time series, this roughly halves the evaluations on the finest level per
+ * frame (the dominant cost), not an order of magnitude: each frame still
+ * needs a few iterations on the finest level to reach the tolerance.
+ * </p>
+ * <p>
+ * {@link Transformation#PHASE_CORRELATION} is delegated to a
+ * {@link PhaseCorrelation} instead. If many images are registered to the same
+ * target, a single {@link PhaseCorrelation} should be used directly such that
+ * the spectrum of the target is computed only once.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class ImageRegistration
+{
+
+	/** Default minimum size of the coarsest pyramid level. */
+	public static final int DEFAULT_MIN_SIZE = 32;
+
+	/** Default maximum number of iterations per pyramid level. */
+	public static final int DEFAULT_MAX_ITERATIONS = 100;
+
+	/** Default displacement (in pixels) below which an estimate is final. */
+	public static final double DEFAULT_TOLERANCE = 1e-3;
+
+	private static final double MAX_LAMBDA = 1e10;
+
+	/**
+	 * Displacement (in pixels of the respective level) below which the
+	 * estimate of a coarse pyramid level is final. The next finer level only
+	 * needs an estimate within its capture range.
+	 */
+	private static final double COARSE_TOLERANCE = 0.05;
+
+	/**
+	 * Number of the finest pyramid levels that are refined when starting from
+	 * an initial estimate. An estimate that is off by a few pixels is within
+	 * the capture range of these levels, hence, coarser levels would only
+	 * repeat work.
+	 */
+	private static final int WARM_START_LEVELS = 2;
+
+	/**
+	 * Relative decrease of the error below which an accepted step terminates
+	 * the optimization of a pyramid level.
+	 */
+	private static final double MIN_RELATIVE_DECREASE = 1e-4;
+
+	/* Private fields */
+	private final Transformation transformation;
+
+	private int minSize = DEFAULT_MIN_SIZE;
+
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+	private double tolerance = DEFAULT_TOLERANCE;
+
+	/**
+	 * Constructs an {@link ImageRegistration}.
+	 *
+	 * @param transformation
+	 *            {@link Transformation} to estimate
+	 */
+	public ImageRegistration( Transformation transformation )
+	{
+		this.transformation = transformation;
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to
+	 * {@code target}.
+	 *
+	 * @param source
+	 *            image that is to be aligned
+	 * @param target
+	 *            reference image of the same size
+	 * @return the transformation matrix from target to source coordinates
+	 */
+	public double[][] align( ImageProcessor source, ImageProcessor target )
+	{
+		if ( source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight() ) { throw new IllegalArgumentException( "Source and target have to be of the same size." ); }
+
+		return align( toFloatPixels( source ), toFloatPixels( target ), source.getWidth(), source.getHeight() );
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to
+	 * {@code target}.
+	 *
+	 * @param source
+	 *            pixels of the image that is to be aligned
+	 * @param target
+	 *            pixels of the reference image
+	 * @param width
+	 *            width of both images
+	 * @param height
+	 *            height of both images
+	 * @return the transformation matrix from target to source coordinates
+	 */
+	public double[][] align( float[] source, float[] target, int width, int height )
+	{
+		if ( transformation == Transformation.PHASE_CORRELATION ) { return new PhaseCorrelation( target, width, height ).align( source ); }
+
+		return align( source, createPyramid( target, width, height ), null );
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to a target
+	 * whose pyramid has been computed before, starting from an initial
+	 * estimate (e.g. the solution of the previous frame of a time series).
+	 * Starting from an estimate, only the finest pyramid levels are refined.
+	 *
+	 * @param source
+	 *            image that is to be aligned
+	 * @param target
+	 *            {@link ImagePyramid} of the reference image (see
+	 *            {@link #createPyramid(ImageProcessor)})
+	 * @param initial
+	 *            initial transformation matrix from target to source
+	 *            coordinates or {@code null} for the identity
+	 * @return the transformation matrix from target to source coordinates
+	 */
+	public double[][] align( ImageProcessor source, ImagePyramid target, double[][] initial )
+	{
+		if ( source.getWidth() != target.getWidth( 0 ) || source.getHeight() != target.getHeight( 0 ) ) { throw new IllegalArgumentException( "Source and target have to be of the same size." ); }
+
+		return align( toFloatPixels( source ), target, initial );
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to a target
+	 * whose pyramid has been computed before, starting from an initial
+	 * estimate.
+	 *
+	 * @param source
+	 *            pixels of the image that is to be aligned
+	 * @param target
+	 *            {@link ImagePyramid} of the reference image
+	 * @param initial
+	 *            initial transformation matrix from target to source
+	 *            coordinates or {@code null} for the identity
+	 * @return the transformation matrix from target to source coordinates
+	 */
+	public double[][] align( float[] source, ImagePyramid target, double[][] initial )
+	{
+		final int width = target.getWidth( 0 );
+		final int height = target.getHeight( 0 );
+
+		if ( transformation == Transformation.PHASE_CORRELATION ) { return new PhaseCorrelation( target.getPixels( 0 ), width, height ).align( source ); }
+
+		return align( new ImagePyramid( source, width, height, minSize ), target, initial );
+	}
+
+	/**
+	 * Estimates the transformation that aligns a source to a target whose
+	 * pyramids have both been computed before. In a sequence of images that
+	 * are each registered to their predecessor, the pyramid of each image is
+	 * thus computed only once.
+	 *
+	 * @param sourcePyramid
+	 *            {@link ImagePyramid} of the image that is to be aligned
+	 * @param target
+	 *            {@link ImagePyramid} of the reference image
+	 * @param initial
+	 *            initial transformation matrix from target to source
+	 *            coordinates or {@code null} for the identity
+	 * @return the transformation matrix from target to source coordinates
+	 */
+	public double[][] align( ImagePyramid sourcePyramid, ImagePyramid target, double[][] initial )
+	{
+		final int width = target.getWidth( 0 );
+		final int height = target.getHeight( 0 );
+
+		if ( sourcePyramid.getWidth( 0 ) != width || sourcePyramid.getHeight( 0 ) != height ) { throw new IllegalArgumentException( "Source and target have to be of the same size." ); }
+
+		if ( transformation == Transformation.PHASE_CORRELATION ) { return new PhaseCorrelation( target.getPixels( 0 ), width, height ).align( sourcePyramid.getPixels( 0 ) ); }
+
+		final int levels = Math.min( sourcePyramid.getLevels(), target.getLevels() );
+
+		final double xCenter = 0.5 * ( width - 1 );
+		final double yCenter = 0.5 * ( height - 1 );
+
+		double[] parameters = ( initial == null ) ? identity() : toParameters( initial, xCenter, yCenter );
+		final int coarsest = ( initial == null ) ? levels - 1 : Math.min( levels, WARM_START_LEVELS ) - 1;
+		for ( int level = coarsest; level >= 0; level-- )
+		{
+			optimize( sourcePyramid, target, level, xCenter, yCenter, parameters );
+		}
+
+		return toMatrix( parameters, xCenter, yCenter );
+	}
+
+	/**
+	 * Computes the {@link ImagePyramid} of a reference image such that it can
+	 * be reused for registering multiple images.
+	 *
+	 * @param target
+	 *            reference image
+	 * @return the {@link ImagePyramid} of {@code target}
+	 */
+	public ImagePyramid createPyramid( ImageProcessor target )
+	{
+		return createPyramid( toFloatPixels( target ), target.getWidth(), target.getHeight() );
+	}
+
+	/**
+	 * Computes the {@link ImagePyramid} of a reference image such that it can
+	 * be reused for registering multiple images.
+	 *
+	 * @param target
+	 *            pixels of the reference image
+	 * @param width
+	 *            width of the reference image
+	 * @param height
+	 *            height of the reference image
+	 * @return the {@link ImagePyramid} of {@code target}
+	 */
+	public ImagePyramid createPyramid( float[] target, int width, int height )
+	{
+		return new ImagePyramid( target, width, height, minSize );
+	}
+
+	public Transformation getTransformation()
+	{
+		return transformation;
+	}
+
+	public int getMinSize()
+	{
+		return minSize;
+	}
+
+	/**
+	 * @param minSize
+	 *            minimum size of the coarsest pyramid level
+	 */
+	public void setMinSize( int minSize )
+	{
+		this.minSize = minSize;
+	}
+
+	public int getMaxIterations()
+	{
+		return maxIterations;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            maximum number of iterations per pyramid level
+	 */
+	public void setMaxIterations( int maxIterations )
+	{
+		this.maxIterations = maxIterations;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
+	/**
+	 * @param tolerance
+	 *            displacement (in pixels) of the image corners below which an
+	 *            update terminates the optimization of a pyramid level
+	 */
+	public void setTolerance( double tolerance )
+	{
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Converts an {@link ImageProcessor} to {@code float} pixels. Color images
+	 * are converted to their luminance.
+	 *
+	 * @param ip
+	 *            {@link ImageProcessor} to convert
+	 * @return the pixels of {@code ip} (not copied for a
+	 *         {@link ij.process.FloatProcessor})
+	 */
+	public static float[] toFloatPixels( ImageProcessor ip )
+	{
+		if ( ip instanceof ColorProcessor ) { return ( float[] ) ip.convertToFloatProcessor().getPixels(); }
+
+		return ( float[] ) ip.toFloat( 0, null ).getPixels();
+	}
+
+	/*
+	 * Parameters: all transformations are parametrized about the image center
+	 * c, i.e. x -> A (x - c) + c + t. The translation t is always stored in the
+	 * last two parameters (in pixels of level 0). The linear part A is
+	 * represented by an angle (RIGID_BODY), by a = s cos(angle) and b = s
+	 * sin(angle) (SCALED_ROTATION), or by its entries (AFFINE).
+	 */
+
+	private double[] identity()
+	{
+		switch ( transformation )
+		{
+		case TRANSLATION:
+			return new double[] { 0, 0 };
+		case RIGID_BODY:
+			return new double[] { 0, 0, 0 };
+		case SCALED_ROTATION:
+			return new double[] { 1, 0, 0, 0 };
+		case AFFINE:
+			return new double[] { 1, 0, 0, 1, 0, 0 };
+		default:
+			throw new IllegalStateException( "Unexpected transformation " + transformation );
+		}
+	}
+
+	/**
+	 * @return the linear part {a11, a12, a21, a22} of the transformation
+	 */
+	private double[] linearPart( double[] parameters )
+	{
+		switch ( transformation )
+		{
+		case TRANSLATION:
+			return new double[] { 1, 0, 0, 1 };
+		case RIGID_BODY:
+		{
+			final double c = Math.cos( parameters[ 0 ] );
+			final double s = Math.sin( parameters[ 0 ] );
+			return new double[] { c, -s, s, c };
+		}
+		case SCALED_ROTATION:
+			return new double[] { parameters[ 0 ], -parameters[ 1 ], parameters[ 1 ], parameters[ 0 ] };
+		case AFFINE:
+			return new double[] { parameters[ 0 ], parameters[ 1 ], parameters[ 2 ], parameters[ 3 ] };
+		default:
+			throw new IllegalStateException( "Unexpected transformation " + transformation );
+		}
+	}
+
+	private double[][] toMatrix( double[] parameters, double xCenter, double yCenter )
+	{
+		final int n = parameters.length;
+		double[] a = linearPart( parameters );
+
+		return new double[][] { //
+				{ a[ 0 ], a[ 1 ], xCenter + parameters[ n - 2 ] - a[ 0 ] * xCenter - a[ 1 ] * yCenter }, //
+				{ a[ 2 ], a[ 3 ], yCenter + parameters[ n - 1 ] - a[ 2 ] * xCenter - a[ 3 ] * yCenter }, //
+				{ 0.0, 0.0, 1.0 } };
+	}
+
+	/**
+	 * Projects a transformation matrix onto the parameters of
+	 * {@link #transformation} (inverse of {@link #toMatrix}).
+	 */
+	private double[] toParameters( double[][] matrix, double xCenter, double yCenter )
+	{
+		final double a11 = matrix[ 0 ][ 0 ], a12 = matrix[ 0 ][ 1 ];
+		final double a21 = matrix[ 1 ][ 0 ], a22 = matrix[ 1 ][ 1 ];
+
+		double[] parameters;
+		switch ( transformation )
+		{
+		case TRANSLATION:
+			parameters = new double[ 2 ];
+			break;
+		case RIGID_BODY:
+			parameters = new double[] { Math.atan2( a21 - a12, a11 + a22 ), 0, 0 };
+			break;
+		case SCALED_ROTATION:
+			parameters = new double[] { 0.5 * ( a11 + a22 ), 0.5 * ( a21 - a12 ), 0, 0 };
+			break;
+		case AFFINE:
+			parameters = new double[] { a11, a12, a21, a22, 0, 0 };
+			break;
+		default:
+			throw new IllegalStateException( "Unexpected transformation " + transformation );
+		}
+
+		// The center is mapped to center + translation
+		final int n = parameters.length;
+		final double u = matrix[ 0 ][ 0 ] * xCenter + matrix[ 0 ][ 1 ] * yCenter + matrix[ 0 ][ 2 ];
+		final double v = matrix[ 1 ][ 0 ] * xCenter + matrix[ 1 ][ 1 ] * yCenter + matrix[ 1 ][ 2 ];
+		parameters[ n - 2 ] = u - xCenter;
+		parameters[ n - 1 ] = v - yCenter;
+
+		return parameters;
+	}
+
+	/**
+	 * Refines {@code parameters} on one level of the pyramids.
+	 */
+	private void optimize( ImagePyramid sourcePyramid, ImagePyramid targetPyramid, int level, double xCenter, double yCenter, double[] parameters )
+	{
+		final int n = parameters.length;
+		final int width = sourcePyramid.getWidth( level );
+		final int height = sourcePyramid.getHeight( level );
+		final float[] source = sourcePyramid.getPixels( level );
+		final float[] target = targetPyramid.getPixels( level );
+
+		float[] xGradient = new float[ width * height ];
+		float[] yGradient = new float[ width * height ];
+		gradient( source, width, height, xGradient, yGradient );
+
+		// Pixel x of this level is centered at scale * x + offset of level 0
+		final double scale = 1 << level;
+		final double offset = 0.5 * ( scale - 1 );
+		final LevelGeometry geometry = new LevelGeometry( width, height, ( xCenter - offset ) / scale, ( yCenter - offset ) / scale, scale );
+
+		double[][] hessian = new double[ n ][ n ];
+		double[] gradient = new double[ n ];
+		double error = evaluate( source, xGradient, yGradient, target, geometry, parameters, hessian, gradient );
+		if ( Double.isInfinite( error ) ) { return; }
+
+		double[][] trialHessian = new double[ n ][ n ];
+		double[] trialGradient = new double[ n ];
+		double lambda = 1e-3;
+		final double levelTolerance = ( level == 0 ) ? tolerance : Math.max( tolerance, COARSE_TOLERANCE );
+
+		for ( int iteration = 0; iteration < maxIterations && lambda < MAX_LAMBDA; iteration++ )
+		{
+			double[][] damped = new double[ n ][ n ];
+			for ( int i = 0; i < n; i++ )
+			{
+				System.arraycopy( hessian[ i ], 0, damped[ i ], 0, n );
+				damped[ i ][ i ] *= 1.0 + lambda;
+			}
+
+			double[] delta = solve( damped, gradient.clone() );
+			if ( delta == null ) { return; }
+
+			// Translation updates are in pixels of this level
+			delta[ n - 2 ] *= scale;
+			delta[ n - 1 ] *= scale;
+
+			double[] trial = parameters.clone();
+			for ( int i = 0; i < n; i++ )
+			{
+				trial[ i ] += delta[ i ];
+			}
+
+			// Displacement of the image corners caused by the step
+			final double displacement = displacement( parameters, trial, xCenter, yCenter ) / scale;
+
+			double trialError = evaluate( source, xGradient, yGradient, target, geometry, trial, trialHessian, trialGradient );
+			if ( trialError < error )
+			{
+				System.arraycopy( trial, 0, parameters, 0, n );
+				double[][] swapHessian = hessian;
+				hessian = trialHessian;
+				trialHessian = swapHessian;
+				double[] swapGradient = gradient;
+				gradient = trialGradient;
+				trialGradient = swapGradient;
+				lambda *= 0.1;
+
+				if ( displacement < levelTolerance || error - trialError < MIN_RELATIVE_DECREASE * error )
+				{
+					break;
+				}
+				error = trialError;
+			}
+			else if ( displacement < 10 * levelTolerance )
+			{
+				// The estimate is at the noise floor of the error
+				break;
+			}
+			else
+			{
+				lambda *= 10.0;
+			}
+		}
+	}
+
+	/**
+	 * Computes the mean squared difference between the target and the warped
+	 * source as well as the Gauss-Newton approximation of the Hessian and the
+	 * (negative) gradient of the squared differences.
+	 *
+	 * @return the mean squared difference or {@code +Infinity} if the overlap
+	 *         of both images is too small
+	 */
+	private double evaluate( float[] source, float[] xGradient, float[] yGradient, float[] target, LevelGeometry geometry, double[] parameters, double[][] hessian, double[] gradient )
+	{
+		final int n = parameters.length;
+		final int width = geometry.width;
+		final int height = geometry.height;
+		final double xc = geometry.xCenter;
+		final double yc = geometry.yCenter;
+		final double tx = parameters[ n - 2 ] / geometry.scale;
+		final double ty = parameters[ n - 1 ] / geometry.scale;
+
+		double[] a = linearPart( parameters );
+		final double a11 = a[ 0 ], a12 = a[ 1 ], a21 = a[ 2 ], a22 = a[ 3 ];
+
+		for ( int i = 0; i < n; i++ )
+		{
+			Arrays.fill( hessian[ i ], 0.0 );
+		}
+		Arrays.fill( gradient, 0.0 );
+
+		double[] jacobian = new double[ n ];
+		double sum = 0.0;
+		long count = 0;
+
+		for ( int y = 0; y < height; y++ )
+		{
+			final double dy = y - yc;
+			for ( int x = 0; x < width; x++ )
+			{
+				final double dx = x - xc;
+				final double u = a11 * dx + a12 * dy + xc + tx;
+				final double v = a21 * dx + a22 * dy + yc + ty;
+
+				if ( u < 0 || v < 0 || u > width - 1 || v > height - 1 )
+				{
+					continue;
+				}
+
+				int i = Math.min( ( int ) u, width - 2 );
+				int j = Math.min( ( int ) v, height - 2 );
+				if ( i < 0 || j < 0 )
+				{
+					// Degenerate (single row or column) level
+					continue;
+				}
+				final double fu = u - i;
+				final double fv = v - j;
+				final int k = j * width + i;
+
+				final double value = interpolate( source, k, width, fu, fv );
+				final double gx = interpolate( xGradient, k, width, fu, fv );
+				final double gy = interpolate( yGradient, k, width, fu, fv );
+				final double residual = target[ y * width + x ] - value;
+
+				jacobian( parameters, a, dx, dy, gx, gy, jacobian );
+
+				for ( int p = 0; p < n; p++ )
+				{
+					gradient[ p ] += jacobian[ p ] * residual;
+					for ( int q = p; q < n; q++ )
+					{
+						hessian[ p ][ q ] += jacobian[ p ] * jacobian[ q ];
+					}
+				}
+
+				sum += residual * residual;
+				count++;
+			}
+		}
+
+		if ( count < Math.max( 4 * n, ( width * height ) / 16 ) ) { return Double.POSITIVE_INFINITY; }
+
+		for ( int p = 0; p < n; p++ )
+		{
+			for ( int q = 0; q < p; q++ )
+			{
+				hessian[ p ][ q ] = hessian[ q ][ p ];
+			}
+		}
+
+		return sum / count;
+	}
+
+	/**
+	 * Computes the derivatives of the warped source with respect to the
+	 * parameters (translation in pixels of the current level).
+	 */
+	private void jacobian( double[] parameters, double[] a, double dx, double dy, double gx, double gy, double[] jacobian )
+	{
+		switch ( transformation )
+		{
+		case TRANSLATION:
+			break;
+		case RIGID_BODY:
+			// d/d(angle) R(angle) (dx, dy) = (-sin dx - cos dy, cos dx - sin dy)
+			jacobian[ 0 ] = gx * ( a[ 1 ] * dx - a[ 0 ] * dy ) + gy * ( a[ 0 ] * dx + a[ 1 ] * dy );
+			break;
+		case SCALED_ROTATION:
+			jacobian[ 0 ] = gx * dx + gy * dy;
+			jacobian[ 1 ] = gy * dx - gx * dy;
+			break;
+		case AFFINE:
+			jacobian[ 0 ] = gx * dx;
+			jacobian[ 1 ] = gx * dy;
+			jacobian[ 2 ] = gy * dx;
+			jacobian[ 3 ] = gy * dy;
+			break;
+		default:
+			throw new IllegalStateException( "Unexpected transformation " + transformation );
+		}
+
+		final int n = parameters.length;
+		jacobian[ n - 2 ] = gx;
+		jacobian[ n - 1 ] = gy;
+	}
+
+	/**
+	 * @return the maximum displacement (in pixels of level 0) of the image
+	 *         corners between two parameter sets
+	 */
+	private double displacement( double[] from, double[] to, double xCenter, double yCenter )
+	{
+		double[][] m = toMatrix( from, xCenter, yCenter );
+		double[][] t = toMatrix( to, xCenter, yCenter );
+
+		final double xMax = 2 * xCenter;
+		final double yMax = 2 * yCenter;
+
+		double max = 0.0;
+		for ( int corner = 0; corner < 4; corner++ )
+		{
+			double x = ( ( corner & 1 ) == 0 ) ? 0 : xMax;
+			double y = ( ( corner & 2 ) == 0 ) ? 0 : yMax;
+
+			double du = ( t[ 0 ][ 0 ] - m[ 0 ][ 0 ] ) * x + ( t[ 0 ][ 1 ] - m[ 0 ][ 1 ] ) * y + t[ 0 ][ 2 ] - m[ 0 ][ 2 ];
+			double dv = ( t[ 1 ][ 0 ] - m[ 1 ][ 0 ] ) * x + ( t[ 1 ][ 1 ] - m[ 1 ][ 1 ] ) * y + t[ 1 ][ 2 ] - m[ 1 ][ 2 ];
+			max = Math.max( max, Math.hypot( du, dv ) );
+		}
+
+		return max;
+	}
+
+	/**
+	 * Bilinear interpolation between pixel {@code k} and its right, lower,
+	 * and lower right neighbors.
+	 */
+	private static double interpolate( float[] pixels, int k, int width, double fu, double fv )
+	{
+		final double top = pixels[ k ] + fu * ( pixels[ k + 1 ] - pixels[ k ] );
+		final double bottom = pixels[ k + width ] + fu * ( pixels[ k + width + 1 ] - pixels[ k + width ] );
+
+		return top + fv * ( bottom - top );
+	}
+
+	/**
+	 * Computes the image gradient with central differences (one-sided
+	 * differences at the border).
+	 */
+	private static void gradient( float[] pixels, int width, int height, float[] xGradient, float[] yGradient )
+	{
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = y * width;
+			final int up = ( y == 0 ) ? row : row - width;
+			final int down = ( y == height - 1 ) ? row : row + width;
+			final float yScale = ( y == 0 || y == height - 1 ) ? 1.0f : 0.5f;
+
+			for ( int x = 0; x < width; x++ )
+			{
+				final int left = ( x == 0 ) ? x : x - 1;
+				final int right = ( x == width - 1 ) ? x : x + 1;
+				final float xScale = ( right - left == 2 ) ? 0.5f : 1.0f;
+
+				xGradient[ row + x ] = ( right == left ) ? 0.0f : xScale * ( pixels[ row + right ] - pixels[ row + left ] );
+				yGradient[ row + x ] = ( up == down ) ? 0.0f : yScale * ( pixels[ down + x ] - pixels[ up + x ] );
+			}
+		}
+	}
+
+	/**
+	 * Solves {@code a x = b} by Gaussian elimination with partial pivoting.
+	 *
+	 * @return the solution or {@code null} if {@code a} is singular
+	 */
+	private static double[] solve( double[][] a, double[] b )
+	{
+		final int n = b.length;
+
+		for ( int column = 0; column < n; column++ )
+		{
+			int pivot = column;
+			for ( int row = column + 1; row < n; row++ )
+			{
+				if ( Math.abs( a[ row ][ column ] ) > Math.abs( a[ pivot ][ column ] ) )
+				{
+					pivot = row;
+				}
+			}
+
+			if ( Math.abs( a[ pivot ][ column ] ) < 1e-300 || Double.isNaN( a[ pivot ][ column ] ) ) { return null; }
+
+			double[] tmpRow = a[ column ];
+			a[ column ] = a[ pivot ];
+			a[ pivot ] = tmpRow;
+			double tmp = b[ column ];
+			b[ column ] = b[ pivot ];
+			b[ pivot ] = tmp;
+
+			for ( int row = column + 1; row < n; row++ )
+			{
+				final double factor = a[ row ][ column ] / a[ column ][ column ];
+				for ( int k = column; k < n; k++ )
+				{
+					a[ row ][ k ] -= factor * a[ column ][ k ];
+				}
+				b[ row ] -= factor * b[ column ];
+			}
+		}
+
+		double[] x = new double[ n ];
+		for ( int row = n - 1; row >= 0; row-- )
+		{
+			double sum = b[ row ];
+			for ( int k = row + 1; k < n; k++ )
+			{
+				sum -= a[ row ][ k ] * x[ k ];
+			}
+			x[ row ] = sum / a[ row ][ row ];
+		}
+
+		return x;
+	}
+
+	/**
+	 * Dimensions and center of a pyramid level.
+	 */
+	private static class LevelGeometry
+	{
+
+		final int width;
+
+		final int height;
+
+		final double xCenter;
+
+		final double yCenter;
+
+		final double scale;
+
+		LevelGeometry( int width, int height, double xCenter, double yCenter, double scale )
+		{
+			this.width = width;
+			this.height = height;
+			this.xCenter = xCenter;
+			this.yCenter = yCenter;
+			this.scale = scale;
+		}
+
+	}
+
+}
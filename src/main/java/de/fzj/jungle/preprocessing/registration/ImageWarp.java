@@ -0,0 +1,288 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Applies transformation matrices (as estimated by an
+ * {@link ImageRegistration}) to images in memory.
+ * <p>
+ * A pixel {@code x} of the result is interpolated from the source at
+ * {@code matrix * x}. The interpolation methods of {@link ImageProcessor} are
+ * supported; bicubic interpolation (the default) uses the same cubic kernel
+ * as {@link ImageProcessor#getBicubicInterpolatedPixel(double, double,
+ * ImageProcessor)}, i.e. the results match {@link ImageProcessor#rotate(double)}
+ * with {@link ImageProcessor#BICUBIC}. Pixels that are mapped outside of the
+ * source are set to 0. Integer pixel types are rounded and clamped to their
+ * range.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class ImageWarp
+{
+
+	private ImageWarp()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * Transforms an image with bicubic interpolation.
+	 *
+	 * @param source
+	 *            {@link ImageProcessor} to transform
+	 * @param matrix
+	 *            homogeneous transformation from result to source coordinates
+	 * @return a new {@link ImageProcessor} of the same type and size
+	 */
+	public static ImageProcessor warp( ImageProcessor source, double[][] matrix )
+	{
+		return warp( source, matrix, ImageProcessor.BICUBIC );
+	}
+
+	/**
+	 * Transforms an image.
+	 *
+	 * @param source
+	 *            {@link ImageProcessor} to transform
+	 * @param matrix
+	 *            homogeneous transformation from result to source coordinates
+	 * @param interpolation
+	 *            {@link ImageProcessor#NONE}, {@link ImageProcessor#BILINEAR},
+	 *            or {@link ImageProcessor#BICUBIC}
+	 * @return a new {@link ImageProcessor} of the same type and size
+	 */
+	public static ImageProcessor warp( ImageProcessor source, double[][] matrix, int interpolation )
+	{
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+
+		if ( source instanceof ColorProcessor )
+		{
+			byte[] r = new byte[ width * height ];
+			byte[] g = new byte[ width * height ];
+			byte[] b = new byte[ width * height ];
+			( ( ColorProcessor ) source ).getRGB( r, g, b );
+
+			ColorProcessor result = new ColorProcessor( width, height );
+			result.setRGB( warp( r, width, height, matrix, interpolation ), warp( g, width, height, matrix, interpolation ), warp( b, width, height, matrix, interpolation ) );
+
+			return result;
+		}
+
+		float[] warped = warp( ImageRegistration.toFloatPixels( source ), width, height, matrix, interpolation, null );
+
+		if ( source instanceof ByteProcessor )
+		{
+			byte[] pixels = new byte[ width * height ];
+			for ( int k = 0; k < pixels.length; k++ )
+			{
+				pixels[ k ] = ( byte ) clamp( warped[ k ], 255 );
+			}
+			return new ByteProcessor( width, height, pixels, source.getColorModel() );
+		}
+		else if ( source instanceof ShortProcessor )
+		{
+			short[] pixels = new short[ width * height ];
+			for ( int k = 0; k < pixels.length; k++ )
+			{
+				pixels[ k ] = ( short ) clamp( warped[ k ], 65535 );
+			}
+			return new ShortProcessor( width, height, pixels, source.getColorModel() );
+		}
+
+		return new FloatProcessor( width, height, warped, source.getColorModel() );
+	}
+
+	/**
+	 * Transforms an image of {@code float} pixels with bicubic interpolation.
+	 *
+	 * @param source
+	 *            pixels to transform
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 * @param matrix
+	 *            homogeneous transformation from result to source coordinates
+	 * @param result
+	 *            array that receives the result or {@code null}
+	 * @return {@code result} or a new array
+	 */
+	public static float[] warp( float[] source, int width, int height, double[][] matrix, float[] result )
+	{
+		return warp( source, width, height, matrix, ImageProcessor.BICUBIC, result );
+	}
+
+	/**
+	 * Transforms an image of {@code float} pixels.
+	 *
+	 * @param source
+	 *            pixels to transform
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 * @param matrix
+	 *            homogeneous transformation from result to source coordinates
+	 * @param interpolation
+	 *            {@link ImageProcessor#NONE}, {@link ImageProcessor#BILINEAR},
+	 *            or {@link ImageProcessor#BICUBIC}
+	 * @param result
+	 *            array that receives the result or {@code null}
+	 * @return {@code result} or a new array
+	 */
+	public static float[] warp( float[] source, int width, int height, double[][] matrix, int interpolation, float[] result )
+	{
+		if ( interpolation != ImageProcessor.NONE && interpolation != ImageProcessor.BILINEAR && interpolation != ImageProcessor.BICUBIC ) { throw new IllegalArgumentException( "Unsupported interpolation method: " + interpolation ); }
+
+		if ( result == null )
+		{
+			result = new float[ width * height ];
+		}
+
+		final double a11 = matrix[ 0 ][ 0 ], a12 = matrix[ 0 ][ 1 ], a13 = matrix[ 0 ][ 2 ];
+		final double a21 = matrix[ 1 ][ 0 ], a22 = matrix[ 1 ][ 1 ], a23 = matrix[ 1 ][ 2 ];
+
+		for ( int y = 0; y < height; y++ )
+		{
+			double u = a12 * y + a13;
+			double v = a22 * y + a23;
+			final int row = y * width;
+
+			for ( int x = 0; x < width; x++, u += a11, v += a21 )
+			{
+				if ( u < 0 || v < 0 || u > width - 1 || v > height - 1 )
+				{
+					result[ row + x ] = 0.0f;
+					continue;
+				}
+
+				if ( interpolation == ImageProcessor.NONE )
+				{
+					result[ row + x ] = source[ ( int ) ( v + 0.5 ) * width + ( int ) ( u + 0.5 ) ];
+					continue;
+				}
+
+				if ( interpolation == ImageProcessor.BICUBIC )
+				{
+					result[ row + x ] = ( float ) bicubic( source, width, height, u, v );
+					continue;
+				}
+
+				final int i = ( int ) u;
+				final int j = ( int ) v;
+				final int i1 = ( i + 1 < width ) ? 1 : 0;
+				final int j1 = ( j + 1 < height ) ? width : 0;
+				final int k = j * width + i;
+				final double fu = u - i;
+				final double fv = v - j;
+
+				final double top = source[ k ] + fu * ( source[ k + i1 ] - source[ k ] );
+				final double bottom = source[ k + j1 ] + fu * ( source[ k + j1 + i1 ] - source[ k + j1 ] );
+				result[ row + x ] = ( float ) ( top + fv * ( bottom - top ) );
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Interpolates the 4x4 neighborhood of {@code (u, v)} with the cubic
+	 * kernel of ImageJ. Pixels beyond the border are replaced by the nearest
+	 * border pixel.
+	 */
+	private static double bicubic( float[] source, int width, int height, double u, double v )
+	{
+		final int i = ( int ) u;
+		final int j = ( int ) v;
+
+		double value = 0.0;
+		for ( int n = -1; n <= 2; n++ )
+		{
+			final int row = Math.min( Math.max( j + n, 0 ), height - 1 ) * width;
+			double rowValue = 0.0;
+			for ( int m = -1; m <= 2; m++ )
+			{
+				rowValue += source[ row + Math.min( Math.max( i + m, 0 ), width - 1 ) ] * cubic( u - ( i + m ) );
+			}
+			value += rowValue * cubic( v - ( j + n ) );
+		}
+
+		return value;
+	}
+
+	/**
+	 * The cubic convolution kernel of {@link ImageProcessor#cubic(double)}
+	 * (Keys, 1981, with {@code a = 0.5}).
+	 */
+	private static double cubic( double x )
+	{
+		final double a = 0.5;
+		x = Math.abs( x );
+		if ( x < 1.0 ) { return x * x * ( x * ( -a + 2.0 ) + ( a - 3.0 ) ) + 1.0; }
+		if ( x < 2.0 ) { return -a * x * x * x + 5.0 * a * x * x - 8.0 * a * x + 4.0 * a; }
+
+		return 0.0;
+	}
+
+	/**
+	 * Creates the transformation matrix of a rotation about the image center,
+	 * i.e. the equivalent of {@link ImageProcessor#rotate(double)}.
+	 *
+	 * @param angle
+	 *            clockwise rotation in degrees
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 * @return the transformation matrix from result to source coordinates
+	 */
+	public static double[][] rotation( double angle, int width, int height )
+	{
+		final double radians = -Math.toRadians( angle );
+		final double cos = Math.cos( radians );
+		final double sin = Math.sin( radians );
+		final double xCenter = 0.5 * ( width - 1 );
+		final double yCenter = 0.5 * ( height - 1 );
+
+		return new double[][] { //
+				{ cos, -sin, xCenter - cos * xCenter + sin * yCenter }, //
+				{ sin, cos, yCenter - sin * xCenter - cos * yCenter }, //
+				{ 0.0, 0.0, 1.0 } };
+	}
+
+	/**
+	 * Transforms one 8-bit channel.
+	 */
+	private static byte[] warp( byte[] channel, int width, int height, double[][] matrix, int interpolation )
+	{
+		float[] pixels = new float[ width * height ];
+		for ( int k = 0; k < pixels.length; k++ )
+		{
+			pixels[ k ] = channel[ k ] & 0xff;
+		}
+
+		float[] warped = warp( pixels, width, height, matrix, interpolation, null );
+
+		byte[] result = new byte[ width * height ];
+		for ( int k = 0; k < result.length; k++ )
+		{
+			result[ k ] = ( byte ) clamp( warped[ k ], 255 );
+		}
+
+		return result;
+	}
+
+	private static int clamp( float value, int max )
+	{
+		final int rounded = Math.round( value );
+
+		return ( rounded < 0 ) ? 0 : ( rounded > max ) ? max : rounded;
+	}
+
+}
@@ -1,17 +1,16 @@
 package de.fzj.jungle.preprocessing.registration;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.Map;
 
+import de.fzj.jungle.segmentation.FrameScheduler;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
-import ij.io.FileSaver;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
-import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
@@ -21,19 +20,51 @@ import ij.process.ShortProcessor;
  * 
  * Transformations are computed for the first channel and are applied to all
  * other channels. Hence, this will not solve issues with chromatic abberations.
+ * Frames are registered in memory by an {@link ImageRegistration}. By
+ * default, translations are estimated by {@link PhaseCorrelation}.
+ * 
+ * By default, all frames are registered to the first frame. Since frames are
+ * independent then, blocks of consecutive frames are registered in parallel by
+ * a {@link FrameScheduler}. Within a block, the registration of each frame
+ * starts from the transformation of its predecessor. In the sequential drift
+ * mode, each frame is registered to its predecessor and the transformations are
+ * accumulated (the behavior of StackReg_).
+ * 
+ * The result is backed by a {@link TransformedVirtualStack}, i.e. only the
+ * transformation of each frame is stored and slices are transformed when they
+ * are accessed.
  * 
  * @author Stefan Helfrich
  */
 public class MultiChannelStackReg_ implements PlugIn, PlugInFilter
 {
 
+	/**
+	 * Number of consecutive frames that are registered by a single task. The
+	 * first frame of a block is registered without an initial estimate, hence,
+	 * results do not depend on the number of threads.
+	 */
+	private static final int FRAMES_PER_BLOCK = 16;
+
 	private ImagePlus imp;
 
-	private int tSlice;
+	private Transformation transformation = Transformation.PHASE_CORRELATION;
+
+	private ImageRegistration registration;
+
+	private TransformedVirtualStack transformedStack;
+
+	private int cacheSize = TransformedVirtualStack.DEFAULT_CACHE_SIZE;
+
+	private double[][] localTransform;
+
+	private ImagePyramid targetPyramid;
+
+	private PhaseCorrelation targetCorrelation;
 
-	private Transformation transformation;
+	private boolean sequentialDrift = false;
 
-	private ImagePlus finalImp;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
 
 	@Override
 	public int setup( String args, ImagePlus imp )
@@ -66,68 +97,32 @@ public class MultiChannelStackReg_ implements PlugIn, PlugInFilter
 
 	public ImagePlus process( ImagePlus imp )
 	{
-		finalImp = IJ.createHyperStack( null, imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices(), imp.getNFrames(), imp.getBitDepth() );
-		finalImp.setCalibration( imp.getCalibration() );
-
 		final int width = imp.getWidth();
 		final int height = imp.getHeight();
 		final int targetSlice = 1;
-		tSlice = targetSlice;
-		transformation = Transformation.TRANSLATION;
+		registration = new ImageRegistration( transformation );
+		localTransform = null;
+		transformedStack = new TransformedVirtualStack( imp.getImageStack(), imp.getNChannels(), cacheSize );
 
 		// Identity matrix
 		double[][] globalTransform = { { 1.0, 0.0, 0.0 }, { 0.0, 1.0, 0.0 }, { 0.0, 0.0, 1.0 } };
 
-		double[][] anchorPoints = null;
-
-		switch ( transformation )
-		{
-		case TRANSLATION:
-		{
-			anchorPoints = new double[ 1 ][ 3 ];
-			anchorPoints[ 0 ][ 0 ] = width / 2;
-			anchorPoints[ 0 ][ 1 ] = height / 2;
-			anchorPoints[ 0 ][ 2 ] = 1.0;
-			break;
-		}
-		case RIGID_BODY:
-		{
-			anchorPoints = new double[ 3 ][ 3 ];
-			anchorPoints[ 0 ][ 0 ] = width / 2;
-			anchorPoints[ 0 ][ 1 ] = height / 2;
-			anchorPoints[ 0 ][ 2 ] = 1.0;
-			anchorPoints[ 1 ][ 0 ] = width / 2;
-			anchorPoints[ 1 ][ 1 ] = height / 4;
-			anchorPoints[ 1 ][ 2 ] = 1.0;
-			anchorPoints[ 2 ][ 0 ] = width / 2;
-			anchorPoints[ 2 ][ 1 ] = ( 3 * height ) / 4;
-			anchorPoints[ 2 ][ 2 ] = 1.0;
-			break;
-		}
-		default:
-		{
-			IJ.error( "Unexpected transformation" );
-			return null;
-		}
-		}
-
-		// ImagePlus instances with a single ImageProcessor
-		ImagePlus source = null;
+		// ImagePlus instance with a single ImageProcessor
 		ImagePlus target = null;
-		double[] colorWeights = null;
 
+		final ImageProcessor targetIp = imp.getImageStack().getProcessor( targetSlice );
 		switch ( imp.getType() )
 		{
 		case ImagePlus.GRAY8:
 		{
-			target = new ImagePlus( "StackRegTarget", new ByteProcessor( width, height, new byte[ width * height ], imp.getProcessor().getColorModel() ) );
-			target.getProcessor().copyBits( imp.getProcessor(), 0, 0, Blitter.COPY );
+			target = new ImagePlus( "StackRegTarget", new ByteProcessor( width, height, new byte[ width * height ], targetIp.getColorModel() ) );
+			target.getProcessor().copyBits( targetIp, 0, 0, Blitter.COPY );
 			break;
 		}
 		case ImagePlus.GRAY16:
 		{
-			target = new ImagePlus( "StackRegTarget", new ShortProcessor( width, height, new short[ width * height ], imp.getProcessor().getColorModel() ) );
-			target.getProcessor().copyBits( imp.getProcessor(), 0, 0, Blitter.COPY );
+			target = new ImagePlus( "StackRegTarget", new ShortProcessor( width, height, new short[ width * height ], targetIp.getColorModel() ) );
+			target.getProcessor().copyBits( targetIp, 0, 0, Blitter.COPY );
 			break;
 		}
 		default:
@@ -137,333 +132,251 @@ public class MultiChannelStackReg_ implements PlugIn, PlugInFilter
 		}
 		}
 
-		// Before we start the registration process, copy the target slice (with
-		// all channels) to finalImp
-		for ( int i = targetSlice; i < targetSlice + imp.getNChannels(); i++ )
-		{
-			imp.setSlice( i );
-			finalImp.setSlice( i );
-
-			finalImp.setProcessor( imp.getProcessor().duplicate() );
-			finalImp.getImageStack().setProcessor( imp.getProcessor().duplicate(), i );
-		}
-
 		/*
 		 * Registration
 		 */
-		for ( int s = targetSlice + imp.getNChannels(); ( s <= imp.getStackSize() ); s = s + imp.getNChannels() )
+		if ( sequentialDrift )
 		{
-			source = registerSlice( source, target, imp, width, height, transformation, globalTransform, anchorPoints, colorWeights, s );
-
-			if ( source == null ) { return null; }
+			// Phase correlation needs the spectrum instead of a pyramid
+			targetCorrelation = ( transformation == Transformation.PHASE_CORRELATION ) ? new PhaseCorrelation( target.getProcessor() ) : null;
+			targetPyramid = ( targetCorrelation == null ) ? registration.createPyramid( target.getProcessor() ) : null;
+			for ( int s = targetSlice + imp.getNChannels(); ( s <= imp.getStackSize() ); s = s + imp.getNChannels() )
+			{
+				if ( registerSlice( target, imp, width, height, globalTransform, s ) == null ) { return null; }
+			}
+			targetPyramid = null;
+			targetCorrelation = null;
 		}
+		else if ( !registerFrames( imp, target.getProcessor(), targetSlice + imp.getNChannels() ) ) { return null; }
+
+		ImagePlus finalImp = new ImagePlus( imp.getTitle(), transformedStack );
+		finalImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		finalImp.setOpenAsHyperStack( imp.isHyperStack() );
+		finalImp.setCalibration( imp.getCalibration() );
 
-		imp.setSlice( targetSlice );
-		imp.updateAndDraw();
 		return finalImp;
 	}
 
 	/**
-	 * 
-	 * @param source
-	 * @param target
+	 * Registers the first channel of all frames starting at stack index
+	 * {@code first} to {@code reference} in parallel and stores the
+	 * transformation of each frame in {@link #transformedStack}.
+	 * <p>
+	 * The pyramid (or spectrum) of the reference is computed once and shared
+	 * by all frames. Frames are processed in blocks of
+	 * {@link #FRAMES_PER_BLOCK} and each frame of a block is registered
+	 * starting from the transformation of its predecessor.
+	 * </p>
+	 *
 	 * @param imp
-	 * @param width
-	 * @param height
-	 * @param transformation
-	 * @param globalTransform
-	 * @param anchorPoints
-	 * @param colorWeights
-	 * @param s
-	 * @return
+	 *            multi-channel time series
+	 * @param reference
+	 *            reference all frames are registered to
+	 * @param first
+	 *            index of the first channel of the first frame to register
+	 * @return {@code true} if all frames have been registered
 	 */
-	private ImagePlus registerSlice( ImagePlus source, ImagePlus target, ImagePlus imp, final int width, final int height, final Transformation transformation, final double[][] globalTransform, final double[][] anchorPoints, final double[] colorWeights, int s )
+	private boolean registerFrames( ImagePlus imp, final ImageProcessor reference, int first )
 	{
-		imp.setSlice( s );
-		finalImp.setSlice( s );
-		try
-		{
-			Object turboReg = null;
-			Method method = null;
-			double[][] sourcePoints = null;
-			double[][] targetPoints = null;
-			double[][] localTransform = null;
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-			{
-				source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				break;
-			}
-			case ImagePlus.GRAY16:
-			{
-				source = new ImagePlus( "StackRegSource", new ShortProcessor( width, height, ( short[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				break;
-			}
-			default:
-			{
-				IJ.error( "Unexpected image type" );
-				return ( null );
-			}
-			}
-
-			// Write source image to temp folder
-			final FileSaver sourceFile = new FileSaver( source );
-			final String sourcePathAndFileName = IJ.getDirectory( "temp" ) + source.getTitle();
-			sourceFile.saveAsTiff( sourcePathAndFileName );
-
-			// Write target image to temp folder
-			final FileSaver targetFile = new FileSaver( target );
-			final String targetPathAndFileName = IJ.getDirectory( "temp" ) + target.getTitle();
-			targetFile.saveAsTiff( targetPathAndFileName );
-
-			switch ( transformation )
-			{
-			case TRANSLATION:
-			{
-				turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -translation" + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-				break;
-			}
-			case RIGID_BODY:
-			{
-				turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -rigidBody" + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-			}
-			default:
-			{
-				IJ.error( "Unexpected transformation" );
-				return ( null );
-			}
-			}
-
-			if ( turboReg == null ) { throw ( new ClassNotFoundException() ); }
+		final int nChannels = imp.getNChannels();
+		final ImageStack stack = imp.getImageStack();
 
-			target.setProcessor( null, source.getProcessor() );
-			method = turboReg.getClass().getMethod( "getSourcePoints", null );
-			sourcePoints = ( ( double[][] ) method.invoke( turboReg, null ) );
-			method = turboReg.getClass().getMethod( "getTargetPoints", null );
-			targetPoints = ( ( double[][] ) method.invoke( turboReg, null ) );
+		final int last = imp.getStackSize();
 
-			localTransform = getTransformationMatrix( targetPoints, sourcePoints );
+		// The spectrum or the pyramid of the reference is shared by all frames
+		final PhaseCorrelation correlation = ( transformation == Transformation.PHASE_CORRELATION ) ? new PhaseCorrelation( reference ) : null;
+		final ImagePyramid pyramid = ( correlation == null ) ? registration.createPyramid( reference ) : null;
 
-			double[][] rescued = { { globalTransform[ 0 ][ 0 ], globalTransform[ 0 ][ 1 ], globalTransform[ 0 ][ 2 ] }, { globalTransform[ 1 ][ 0 ], globalTransform[ 1 ][ 1 ], globalTransform[ 1 ][ 2 ] }, { globalTransform[ 2 ][ 0 ], globalTransform[ 2 ][ 1 ], globalTransform[ 2 ][ 2 ] } };
-
-			for ( int i = 0; ( i < 3 ); i++ )
-			{
-				for ( int j = 0; ( j < 3 ); j++ )
-				{
-					globalTransform[ i ][ j ] = 0.0;
-					for ( int k = 0; ( k < 3 ); k++ )
-					{
-						globalTransform[ i ][ j ] += localTransform[ i ][ k ] * rescued[ k ][ j ];
-					}
-				}
-			}
+		FrameScheduler scheduler = new FrameScheduler( parallelism );
+		Map< Integer, double[][][] > transformBlocks;
+		try
+		{
+			transformBlocks = scheduler.schedule( first, last, nChannels * FRAMES_PER_BLOCK, block -> {
+				final int blockEnd = Math.min( last, block + nChannels * FRAMES_PER_BLOCK - 1 );
+				double[][][] transforms = new double[ ( blockEnd - block ) / nChannels + 1 ][][];
 
-			switch ( imp.getType() )
-			{
-			case ImagePlus.GRAY8:
-			case ImagePlus.GRAY16:
-			{
-				switch ( transformation )
-				{
-				case TRANSLATION:
-				{
-					sourcePoints = new double[ 1 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case RIGID_BODY:
+				double[][] transform = null;
+				for ( int s = block, frame = 0; s <= blockEnd; s += nChannels, frame++ )
 				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected transformation" );
-					return ( null );
-				}
+					ImageProcessor source = stack.getProcessor( s );
+					transform = ( correlation != null ) ? correlation.align( source ) : registration.align( source, pyramid, transform );
+					transforms[ frame ] = transform;
 				}
 
-				if ( turboReg == null ) { throw ( new ClassNotFoundException() ); }
-
-				method = turboReg.getClass().getMethod( "getTransformedImage", null );
-				ImagePlus transformedSource = ( ImagePlus ) method.invoke( turboReg, null );
-				transformedSource.getStack().deleteLastSlice();
+				return transforms;
+			} );
+		}
+		catch ( IllegalStateException e )
+		{
+			IJ.error( "Registration failed: " + e.getCause() );
+			return false;
+		}
+		finally
+		{
+			scheduler.shutdown();
+		}
 
-				switch ( imp.getType() )
-				{
-				case ImagePlus.GRAY8:
-				{
-					transformedSource.getProcessor().setMinAndMax( 0.0, 255.0 );
-					final ImageConverter converter = new ImageConverter( transformedSource );
-					converter.convertToGray8();
-					break;
-				}
-				case ImagePlus.GRAY16:
-				{
-					transformedSource.getProcessor().setMinAndMax( 0.0, 65535.0 );
-					final ImageConverter converter = new ImageConverter( transformedSource );
-					converter.convertToGray16();
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected image type" );
-					return ( null );
-				}
-				}
+		for ( Map.Entry< Integer, double[][][] > entry : transformBlocks.entrySet() )
+		{
+			double[][][] transforms = entry.getValue();
+			for ( int frame = 0; frame < transforms.length; frame++ )
+			{
+				transformedStack.setTransform( ( entry.getKey() - 1 ) / nChannels + frame, transforms[ frame ] );
+			}
+		}
 
-				finalImp.getImageStack().setProcessor( transformedSource.getProcessor().duplicate(), s );
-				finalImp.setProcessor( transformedSource.getProcessor().duplicate() );
+		return true;
+	}
 
-				// This we have to do that for all additional channels
-				for ( int channel = 1; channel < imp.getNChannels(); channel++ )
-				{
-					// Get ImagePlus from each channel
-					imp.setSlice( s + channel );
-					finalImp.setSlice( s + channel );
-					ImagePlus channelImp = new ImagePlus( "ChannelImp" + channel, new ShortProcessor( width, height, ( short[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-
-					final FileSaver channelFile = new FileSaver( channelImp );
-					final String channelPathAndFileName = IJ.getDirectory( "temp" ) + channelImp.getTitle();
-					channelFile.saveAsTiff( channelPathAndFileName );
-
-					switch ( transformation )
-					{
-					case TRANSLATION:
-					{
-						turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + channelPathAndFileName + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-						break;
-					}
-					case RIGID_BODY:
-					{
-						turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + channelPathAndFileName + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-						break;
-					}
-					default:
-					{
-						IJ.error( "Unexpected transformation" );
-						return ( null );
-					}
-					}
-
-					if ( turboReg == null ) { throw ( new ClassNotFoundException() ); }
-
-					method = turboReg.getClass().getMethod( "getTransformedImage", null );
-					ImagePlus transformedChannelImp = ( ImagePlus ) method.invoke( turboReg, null );
-					transformedChannelImp.getStack().deleteLastSlice();
-
-					switch ( imp.getType() )
-					{
-					case ImagePlus.GRAY8:
-					{
-						transformedChannelImp.getProcessor().setMinAndMax( 0.0, 255.0 );
-						final ImageConverter converter = new ImageConverter( transformedChannelImp );
-						converter.convertToGray8();
-						break;
-					}
-					case ImagePlus.GRAY16:
-					{
-						transformedChannelImp.getProcessor().setMinAndMax( 0.0, 65535.0 );
-						final ImageConverter converter = new ImageConverter( transformedChannelImp );
-						converter.convertToGray16();
-						break;
-					}
-					default:
-					{
-						IJ.error( "Unexpected image type" );
-						return ( null );
-					}
-					}
-
-					finalImp.getImageStack().setProcessor( transformedChannelImp.getProcessor().duplicate(), channel + s );
-					finalImp.setProcessor( transformedChannelImp.getProcessor().duplicate() );
-				}
+	/**
+	 * Registers the first channel of a frame to {@code target} and stores the
+	 * accumulated transformation of the frame in {@link #transformedStack}.
+	 * <p>
+	 * The frame is registered in memory by {@link #registration}, i.e.
+	 * neither temporary files nor TurboReg_ are required. The registration
+	 * starts from the transformation of the previous frame. Afterwards,
+	 * {@code target} is replaced by the frame, {@link #targetPyramid} by its
+	 * pyramid (or {@link #targetCorrelation} by its spectrum), and
+	 * {@code globalTransform} is composed with the transformation of the
+	 * frame.
+	 * </p>
+	 *
+	 * @param target
+	 *            reference the frame is registered to
+	 * @param imp
+	 *            multi-channel time series
+	 * @param width
+	 *            width of {@code imp}
+	 * @param height
+	 *            height of {@code imp}
+	 * @param globalTransform
+	 *            transformation from the target slice to the previous frame
+	 * @param s
+	 *            index of the first channel of the frame in the stack
+	 * @return the first channel of the frame or {@code null} on failure
+	 */
+	private ImagePlus registerSlice( ImagePlus target, ImagePlus imp, final int width, final int height, final double[][] globalTransform, int s )
+	{
+		final ImageStack stack = imp.getImageStack();
+		final ImageProcessor ip = stack.getProcessor( s );
 
-				break;
-			}
-			default:
-			{
-				IJ.error( "Unexpected image type" );
-				return ( null );
-			}
-			}
+		final ImagePlus source;
+		switch ( imp.getType() )
+		{
+		case ImagePlus.GRAY8:
+		{
+			source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) ip.getPixels(), ip.getColorModel() ) );
+			break;
 		}
-		catch ( NoSuchMethodException e )
+		case ImagePlus.GRAY16:
 		{
-			IJ.error( "Unexpected NoSuchMethodException " + e );
-			return ( null );
+			source = new ImagePlus( "StackRegSource", new ShortProcessor( width, height, ( short[] ) ip.getPixels(), ip.getColorModel() ) );
+			break;
 		}
-		catch ( IllegalAccessException e )
+		default:
 		{
-			IJ.error( "Unexpected IllegalAccessException " + e );
+			IJ.error( "Unexpected image type" );
 			return ( null );
 		}
-		catch ( InvocationTargetException e )
+		}
+
+		if ( transformation == Transformation.PHASE_CORRELATION )
 		{
-			IJ.error( "Unexpected InvocationTargetException " + e );
-			return ( null );
+			// The spectrum of this frame is the target spectrum of the next
+			// frame
+			final PhaseCorrelation sourceCorrelation = new PhaseCorrelation( source.getProcessor() );
+			localTransform = targetCorrelation.align( sourceCorrelation );
+			targetCorrelation = sourceCorrelation;
 		}
-		catch ( ClassNotFoundException e )
+		else
 		{
-			IJ.error( "Please download TurboReg_ from\nhttp://bigwww.epfl.ch/thevenaz/turboreg/" );
-			return ( null );
+			// The pyramid of this frame is the target pyramid of the next frame
+			final ImagePyramid sourcePyramid = registration.createPyramid( source.getProcessor() );
+			localTransform = registration.align( sourcePyramid, targetPyramid, localTransform );
+			targetPyramid = sourcePyramid;
+		}
+
+		target.setProcessor( null, source.getProcessor() );
+
+		double[][] rescued = { { globalTransform[ 0 ][ 0 ], globalTransform[ 0 ][ 1 ], globalTransform[ 0 ][ 2 ] }, { globalTransform[ 1 ][ 0 ], globalTransform[ 1 ][ 1 ], globalTransform[ 1 ][ 2 ] }, { globalTransform[ 2 ][ 0 ], globalTransform[ 2 ][ 1 ], globalTransform[ 2 ][ 2 ] } };
+
+		for ( int i = 0; ( i < 3 ); i++ )
+		{
+			for ( int j = 0; ( j < 3 ); j++ )
+			{
+				globalTransform[ i ][ j ] = 0.0;
+				for ( int k = 0; ( k < 3 ); k++ )
+				{
+					globalTransform[ i ][ j ] += localTransform[ i ][ k ] * rescued[ k ][ j ];
+				}
+			}
 		}
 
+		// The transformation applies to all channels
+		transformedStack.setTransform( ( s - 1 ) / imp.getNChannels(), globalTransform );
+
 		return ( source );
 	}
 
+	public Transformation getTransformation()
+	{
+		return transformation;
+	}
+
 	/**
-	 * 
-	 * @param fromCoord
-	 * @param toCoord
 	 * @param transformation
-	 * @return
+	 *            {@link Transformation} that is estimated for each frame
+	 */
+	public void setTransformation( Transformation transformation )
+	{
+		this.transformation = transformation;
+	}
+
+	public boolean isSequentialDrift()
+	{
+		return sequentialDrift;
+	}
+
+	/**
+	 * @param sequentialDrift
+	 *            if {@code true}, each frame is registered to its predecessor
+	 *            (sequentially); otherwise, all frames are registered to the
+	 *            first frame (in parallel)
+	 */
+	public void setSequentialDrift( boolean sequentialDrift )
+	{
+		this.sequentialDrift = sequentialDrift;
+	}
+
+	public int getCacheSize()
+	{
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            number of transformed slices that are kept in memory by the
+	 *            resulting {@link TransformedVirtualStack}
 	 */
-	private double[][] getTransformationMatrix( final double[][] fromCoord, final double[][] toCoord )
+	public void setCacheSize( int cacheSize )
 	{
-		double[][] matrix = new double[ 3 ][ 3 ];
-
-		final double angle = Math.atan2( fromCoord[ 2 ][ 0 ] - fromCoord[ 1 ][ 0 ], fromCoord[ 2 ][ 1 ] - fromCoord[ 1 ][ 1 ] ) - Math.atan2( toCoord[ 2 ][ 0 ] - toCoord[ 1 ][ 0 ], toCoord[ 2 ][ 1 ] - toCoord[ 1 ][ 1 ] );
-		final double c = Math.cos( angle );
-		final double s = Math.sin( angle );
-		matrix[ 0 ][ 0 ] = c;
-		matrix[ 0 ][ 1 ] = -s;
-		matrix[ 0 ][ 2 ] = toCoord[ 0 ][ 0 ] - c * fromCoord[ 0 ][ 0 ] + s * fromCoord[ 0 ][ 1 ];
-		matrix[ 1 ][ 0 ] = s;
-		matrix[ 1 ][ 1 ] = c;
-		matrix[ 1 ][ 2 ] = toCoord[ 0 ][ 1 ] - s * fromCoord[ 0 ][ 0 ] - c * fromCoord[ 0 ][ 1 ];
-
-		matrix[ 2 ][ 0 ] = 0.0;
-		matrix[ 2 ][ 1 ] = 0.0;
-		matrix[ 2 ][ 2 ] = 1.0;
-		return ( matrix );
+		this.cacheSize = cacheSize;
 	}
 
-	enum Transformation
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of frames that are registered concurrently; values
+	 *            smaller than 1 fall back to the number of available
+	 *            processors
+	 */
+	public void setParallelism( int parallelism )
 	{
-		TRANSLATION, RIGID_BODY, SCALED_ROTATION, AFFINE;
+		this.parallelism = parallelism;
 	}
 
 }
@@ -67,10 +67,10 @@ package de.fzj.jungle.preprocessing.registration;
 // ImageJ
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GUI;
 import ij.gui.GenericDialog;
-import ij.io.FileSaver;
 import ij.plugin.PlugIn;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
@@ -95,14 +95,13 @@ import java.awt.TextArea;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.IndexColorModel;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Stack;
+import java.util.stream.IntStream;
 
 /*====================================================================
 |	StackReg_
@@ -154,6 +153,18 @@ public class MultiStackReg_ implements PlugIn
 
 	private String tgtAction;
 
+	/** Transformation file that is written by {@link #appendTransform}. */
+	private TransformFile.Writer transformWriter;
+
+	/** Transformation file that is read by {@link #loadTransform}. */
+	private TransformFile.Reader transformReader;
+
+	/** Local transformation of the previously registered slice. */
+	private double[][] previousTransform;
+
+	/** Gray levels of an RGB slice that are reused for the next source. */
+	private float[] spareGray;
+
 	/*
 	 * ....................................................................
 	 * Public methods
@@ -302,7 +313,7 @@ public class MultiStackReg_ implements PlugIn
 			{
 				final Frame f = new Frame();
 				final FileDialog fd = new FileDialog( f, "Save transformations at", FileDialog.SAVE );
-				String filename = "TransformationMatrices.txt";
+				String filename = "TransformationMatrices.bin";
 				fd.setFile( filename );
 				fd.setVisible( true );
 				if ( fd.getFile() == null )
@@ -316,7 +327,7 @@ public class MultiStackReg_ implements PlugIn
 			{
 				final Frame f = new Frame();
 				final FileDialog fd = new FileDialog( f, "Save transformations at", FileDialog.SAVE );
-				String filename = "TransformationMatrices.txt";
+				String filename = "TransformationMatrices.bin";
 				fd.setFile( filename );
 				fd.setVisible( true );
 				if ( fd.getFile() == null )
@@ -343,9 +354,19 @@ public class MultiStackReg_ implements PlugIn
 				if ( !saveTransform )
 				{
 					// we aren't saving the alignment, so make a temp file
+					try
+					{
+						final File temp = File.createTempFile( "MultiStackReg", ".bin" );
+						temp.deleteOnExit();
+						srcFile = temp.getPath();
+					}
+					catch ( IOException e )
+					{
+						IJ.error( "Could not create a temporary transformation file." );
+						return;
+					}
 					saveTransform = true;
 					savePath = "";
-					saveFile = "deleteme.txt";
 				}
 			}
 			// align the first stack
@@ -402,6 +423,19 @@ public class MultiStackReg_ implements PlugIn
 	 * ....................................................................
 	 */
 	private int processDirectives( ImagePlus imp, boolean loadBool )
+	{
+		try
+		{
+			return processStack( imp, loadBool );
+		}
+		finally
+		{
+			closeTransformFiles();
+		}
+	}
+
+	/*------------------------------------------------------------------*/
+	private int processStack( ImagePlus imp, boolean loadBool )
 	{
 		if ( twoStackAlign && !loadBool )
 		{ // we want to do two-stack alignment, check that the stacks are
@@ -442,6 +476,9 @@ public class MultiStackReg_ implements PlugIn
 				loadPathAndFilename = loadPath + loadFile;
 			}
 			int tgt = loadTransform( 0, null, null );
+			// loadTransform has reported the error
+			if ( tgt < 1 )
+				return 0;
 			transformation = loadTransform( 1, null, null );
 			imp.setSlice( tgt );
 		}
@@ -450,6 +487,8 @@ public class MultiStackReg_ implements PlugIn
 		final int targetSlice = imp.getCurrentSlice();
 		tSlice = targetSlice;
 		double[][] globalTransform = { { 1.0, 0.0, 0.0 }, { 0.0, 1.0, 0.0 }, { 0.0, 0.0, 1.0 } };
+		previousTransform = null;
+		spareGray = null;
 		double[][] anchorPoints = null;
 		switch ( transformation )
 		{
@@ -516,7 +555,7 @@ public class MultiStackReg_ implements PlugIn
 		{
 			colorWeights = getColorWeightsFromPrincipalComponents( imp );
 			imp.setSlice( targetSlice );
-			target = getGray32( "StackRegTarget", imp, colorWeights );
+			target = getGray32( "StackRegTarget", imp, colorWeights, null );
 			break;
 		}
 		case ImagePlus.GRAY8:
@@ -552,21 +591,19 @@ public class MultiStackReg_ implements PlugIn
 			path = savePath + saveFile;
 			try
 			{
-				FileWriter fw = new FileWriter( path );
-				fw.write( "MultiStackReg Transformation File\n" );
-				fw.write( "File Version 1.0\n" );
-				if ( twoStackAlign )
-					fw.write( "1\n" );
-				else
-					fw.write( "0\n" );
-				fw.close();
+				// a single buffered writer for all slices, finished by
+				// closeTransformFiles()
+				transformWriter = TransformFile.createWriter( path, twoStackAlign );
 			}
 			catch ( IOException e )
-			{}
+			{
+				IJ.error( "Error writing to file." );
+				return 0;
+			}
 		}
 		if ( twoStackAlign )
 		{
-			target = getSlice( imp, targetSlice );
+			target = getSlice( imp, targetSlice, colorWeights );
 			if ( !loadBool )
 				source = registerSlice( source, target, tgtImg, width, height, transformation, globalTransform, anchorPoints, colorWeights, targetSlice );
 			else
@@ -587,7 +624,7 @@ public class MultiStackReg_ implements PlugIn
 				globalTransform[ 0 ][ 0 ] = globalTransform[ 1 ][ 1 ] = globalTransform[ 2 ][ 2 ] = 1.0;
 				globalTransform[ 0 ][ 1 ] = globalTransform[ 0 ][ 2 ] = globalTransform[ 1 ][ 0 ] = 0.0;
 				globalTransform[ 1 ][ 2 ] = globalTransform[ 2 ][ 0 ] = globalTransform[ 2 ][ 1 ] = 0.0;
-				target = getSlice( imp, s );
+				target = getSlice( imp, s, colorWeights );
 				if ( !loadBool )
 					source = registerSlice( source, target, tgtImg, width, height, transformation, globalTransform, anchorPoints, colorWeights, s );
 				else
@@ -620,13 +657,16 @@ public class MultiStackReg_ implements PlugIn
 			globalTransform[ 2 ][ 0 ] = 0.0;
 			globalTransform[ 2 ][ 1 ] = 0.0;
 			globalTransform[ 2 ][ 2 ] = 1.0;
+			// the slices after the target are registered in the opposite
+			// direction
+			previousTransform = null;
 			imp.setSlice( targetSlice );
 			switch ( imp.getType() )
 			{
 			case ImagePlus.COLOR_256:
 			case ImagePlus.COLOR_RGB:
 			{
-				target = getGray32( "StackRegTarget", imp, colorWeights );
+				target = getGray32( "StackRegTarget", imp, colorWeights, null );
 				break;
 			}
 			case ImagePlus.GRAY8:
@@ -650,7 +690,7 @@ public class MultiStackReg_ implements PlugIn
 				globalTransform[ 0 ][ 0 ] = globalTransform[ 1 ][ 1 ] = globalTransform[ 2 ][ 2 ] = 1.0;
 				globalTransform[ 0 ][ 1 ] = globalTransform[ 0 ][ 2 ] = globalTransform[ 1 ][ 0 ] = 0.0;
 				globalTransform[ 1 ][ 2 ] = globalTransform[ 2 ][ 0 ] = globalTransform[ 2 ][ 1 ] = 0.0;
-				target = getSlice( imp, s );
+				target = getSlice( imp, s, colorWeights );
 				if ( !loadBool )
 					source = registerSlice( source, target, tgtImg, width, height, transformation, globalTransform, anchorPoints, colorWeights, s );
 				else
@@ -677,19 +717,18 @@ public class MultiStackReg_ implements PlugIn
 		return 1;
 	}
 
-	private ImagePlus getSlice( ImagePlus imp, int index )
+	private ImagePlus getSlice( ImagePlus imp, int index, double[] colorWeights )
 	{
 		final int width = imp.getWidth();
 		final int height = imp.getHeight();
 		ImagePlus out = null;
 		imp.setSlice( index );
-		double[] colorWeights = null;
 		switch ( imp.getType() )
 		{
 		case ImagePlus.COLOR_256:
 		case ImagePlus.COLOR_RGB:
 		{
-			out = getGray32( "StackRegTarget", imp, colorWeights );
+			out = getGray32( "StackRegTarget", imp, colorWeights, null );
 			break;
 		}
 		case ImagePlus.GRAY8:
@@ -728,185 +767,86 @@ public class MultiStackReg_ implements PlugIn
 	{
 		try
 		{
-			final FileReader fr = new FileReader( loadPathAndFilename );
-			BufferedReader br = new BufferedReader( fr );
-			String record;
-			int separatorIndex;
-			String[] fields = new String[ 3 ];
-			// src=new double[2][3];
-			// tgt=new double[2][3];
-
 			switch ( action )
 			{
 			case 0:
 			{ // return the index of the former target image, or detect if the
 				// selected file contains only one transformation matrix and
 				// start from the 1st
-				record = br.readLine();
-				record = record.trim();
-				if ( record.equals( "Transformation" ) )
+				if ( !TransformFile.isBinary( loadPathAndFilename ) )
 				{
-					loadSingleMatrix = true;
-					fr.close();
-					return 1;
+					final BufferedReader br = new BufferedReader( new FileReader( loadPathAndFilename ) );
+					final String record = br.readLine();
+					br.close();
+					if ( record != null && record.trim().equals( "Transformation" ) )
+					{
+						loadSingleMatrix = true;
+						return 1;
+					}
 				}
-				else
+				loadSingleMatrix = false;
+				// the file is read once and kept open until
+				// closeTransformFiles()
+				transformReader = TransformFile.open( loadPathAndFilename );
+				if ( transformReader.size() == 0 )
 				{
-					loadSingleMatrix = false;
+					IJ.error( "The transformation file contains no transformations." );
+					return 0;
 				}
-				record = br.readLine();
-				record = br.readLine();
-				record = br.readLine();
-				record = br.readLine();
-				record = record.trim();
-				separatorIndex = record.indexOf( "Target img: " );
-				fields[ 0 ] = record.substring( separatorIndex + 11 ).trim();
-				fr.close();
-				return ( new Integer( fields[ 0 ] ) ).intValue();
+				return transformReader.get( 0 ).getTargetIndex();
 			}
 			case 1:
 			{ // return the transform used and set twoStack boolean if needed
-				int transformation = 3;
 				if ( loadSingleMatrix )
 				{
-					record = br.readLine();
-					record = br.readLine();
-					record = record.trim();
-					if ( record.equals( "TRANSLATION" ) )
-					{
-						transformation = 0;
-					}
-					else if ( record.equals( "RIGID_BODY" ) )
-					{
-						transformation = 1;
-					}
-					else if ( record.equals( "SCALED_ROTATION" ) )
-					{
-						transformation = 2;
-					}
-					else if ( record.equals( "AFFINE" ) )
-					{
-						transformation = 3;
-					}
+					final BufferedReader br = new BufferedReader( new FileReader( loadPathAndFilename ) );
+					br.readLine();
+					final String record = br.readLine().trim();
+					br.close();
 					twoStackAlign = false;
-					fr.close();
-				}
-				else
-				{
-					record = br.readLine();
-					record = br.readLine();
-					record = br.readLine();
-					int discardGlobal = ( new Integer( record.trim() ) ).intValue();
-					if ( discardGlobal == 1 )
-						twoStackAlign = true;
-					else
-						twoStackAlign = false;
-					record = br.readLine();
-					record = record.trim();
-					if ( record.equals( "TRANSLATION" ) )
+					try
 					{
-						transformation = 0;
+						return Transformation.valueOf( record ).ordinal();
 					}
-					else if ( record.equals( "RIGID_BODY" ) )
+					catch ( IllegalArgumentException e )
 					{
-						transformation = 1;
+						return Transformation.AFFINE.ordinal();
 					}
-					else if ( record.equals( "SCALED_ROTATION" ) )
-					{
-						transformation = 2;
-					}
-					else if ( record.equals( "AFFINE" ) )
-					{
-						transformation = 3;
-					}
-					fr.close();
 				}
-				return transformation;
+				if ( transformReader == null || transformReader.size() == 0 )
+					return 0;
+				twoStackAlign = transformReader.isTwoStackAlign();
+				return transformReader.get( 0 ).getTransformation().ordinal();
 			}
 			case 2:
 			{ // return the next transformation in src and tgt, the next src
 				// index as return value
-				int rtnvalue = -1;
 				if ( loadSingleMatrix )
 				{
+					final BufferedReader br = new BufferedReader( new FileReader( loadPathAndFilename ) );
 					for ( int j = 0; j < 10; j++ )
-						record = br.readLine();
-					for ( int i = 0; i < 3; i++ )
-					{
-						record = br.readLine();
-						record = record.trim();
-						separatorIndex = record.indexOf( '\t' );
-						fields[ 0 ] = record.substring( 0, separatorIndex );
-						fields[ 1 ] = record.substring( separatorIndex );
-						fields[ 0 ] = fields[ 0 ].trim();
-						fields[ 1 ] = fields[ 1 ].trim();
-						src[ i ][ 0 ] = ( new Double( fields[ 0 ] ) ).doubleValue();
-						src[ i ][ 1 ] = ( new Double( fields[ 1 ] ) ).doubleValue();
-					}
-					record = br.readLine();
-					record = br.readLine();
-					for ( int i = 0; i < 3; i++ )
-					{
-						record = br.readLine();
-						record = record.trim();
-						separatorIndex = record.indexOf( '\t' );
-
-						fields[ 0 ] = record.substring( 0, separatorIndex );
-						fields[ 1 ] = record.substring( separatorIndex );
-						fields[ 0 ] = fields[ 0 ].trim();
-						fields[ 1 ] = fields[ 1 ].trim();
-						tgt[ i ][ 0 ] = ( new Double( fields[ 0 ] ) ).doubleValue();
-						tgt[ i ][ 1 ] = ( new Double( fields[ 1 ] ) ).doubleValue();
-					}
-
+						br.readLine();
+					readPoints( br, src );
+					br.readLine();
+					br.readLine();
+					readPoints( br, tgt );
+					br.close();
+					return -1;
 				}
-				else
+				if ( transformNumber >= transformReader.size() )
 				{
-					record = br.readLine();
-					record = br.readLine();
-					record = br.readLine();
-					for ( int i = 0; i < transformNumber; i++ )
-					{
-						for ( int j = 0; j < 10; j++ )
-							record = br.readLine();
-					}
-					// read the target and source index
-					record = br.readLine();
-					record = br.readLine();
-					record = record.trim();
-					separatorIndex = record.indexOf( "Target img: " );
-					fields[ 0 ] = record.substring( 11, separatorIndex ).trim();
-					rtnvalue = ( new Integer( fields[ 0 ] ) ).intValue();
-
-					for ( int i = 0; i < 3; i++ )
-					{
-						record = br.readLine();
-						record = record.trim();
-						separatorIndex = record.indexOf( '\t' );
-						fields[ 0 ] = record.substring( 0, separatorIndex );
-						fields[ 1 ] = record.substring( separatorIndex );
-						fields[ 0 ] = fields[ 0 ].trim();
-						fields[ 1 ] = fields[ 1 ].trim();
-						src[ i ][ 0 ] = ( new Double( fields[ 0 ] ) ).doubleValue();
-						src[ i ][ 1 ] = ( new Double( fields[ 1 ] ) ).doubleValue();
-					}
-					record = br.readLine();
-					for ( int i = 0; i < 3; i++ )
-					{
-						record = br.readLine();
-						record = record.trim();
-						separatorIndex = record.indexOf( '\t' );
-
-						fields[ 0 ] = record.substring( 0, separatorIndex );
-						fields[ 1 ] = record.substring( separatorIndex );
-						fields[ 0 ] = fields[ 0 ].trim();
-						fields[ 1 ] = fields[ 1 ].trim();
-						tgt[ i ][ 0 ] = ( new Double( fields[ 0 ] ) ).doubleValue();
-						tgt[ i ][ 1 ] = ( new Double( fields[ 1 ] ) ).doubleValue();
-					}
+					IJ.error( "The transformation file contains fewer transformations than slices." );
+					return -1;
+				}
+				final TransformFile.Record record = transformReader.get( transformNumber );
+				for ( int i = 0; i < 3; i++ )
+				{
+					src[ i ][ 0 ] = record.getSourcePoints()[ i ][ 0 ];
+					src[ i ][ 1 ] = record.getSourcePoints()[ i ][ 1 ];
+					tgt[ i ][ 0 ] = record.getTargetPoints()[ i ][ 0 ];
+					tgt[ i ][ 1 ] = record.getTargetPoints()[ i ][ 1 ];
 				}
-				fr.close();
-				return rtnvalue;
+				return record.getSourceIndex();
 			}
 
 			}
@@ -923,46 +863,24 @@ public class MultiStackReg_ implements PlugIn
 	}
 
 	/*------------------------------------------------------------------*/
-	private void appendTransform( String path, int sourceID, int targetID, double[][] src, double[][] tgt, int transform )
+	// Reads three tab-separated landmarks of a TurboReg file
+	private void readPoints( BufferedReader br, double[][] points ) throws IOException
 	{
-		String Transform = "RIGID_BODY";
-		switch ( transform )
+		for ( int i = 0; i < 3; i++ )
 		{
-		case 0:
-		{
-			Transform = "TRANSLATION";
-			break;
-		}
-		case 1:
-		{
-			Transform = "RIGID_BODY";
-			break;
-		}
-		case 2:
-		{
-			Transform = "SCALED_ROTATION";
-			break;
-		}
-		case 3:
-		{
-			Transform = "AFFINE";
-			break;
-		}
+			final String record = br.readLine().trim();
+			final int separatorIndex = record.indexOf( '\t' );
+			points[ i ][ 0 ] = Double.parseDouble( record.substring( 0, separatorIndex ).trim() );
+			points[ i ][ 1 ] = Double.parseDouble( record.substring( separatorIndex ).trim() );
 		}
+	}
+
+	/*------------------------------------------------------------------*/
+	private void appendTransform( int sourceID, int targetID, double[][] src, double[][] tgt, int transform )
+	{
 		try
 		{
-			final FileWriter fw = new FileWriter( path, true );
-			fw.append( Transform + "\n" );
-			fw.append( "Source img: " + sourceID + " Target img: " + targetID + "\n" );
-			fw.append( src[ 0 ][ 0 ] + "\t" + src[ 0 ][ 1 ] + "\n" );
-			fw.append( src[ 1 ][ 0 ] + "\t" + src[ 1 ][ 1 ] + "\n" );
-			fw.append( src[ 2 ][ 0 ] + "\t" + src[ 2 ][ 1 ] + "\n" );
-			fw.append( "\n" );
-			fw.append( tgt[ 0 ][ 0 ] + "\t" + tgt[ 0 ][ 1 ] + "\n" );
-			fw.append( tgt[ 1 ][ 0 ] + "\t" + tgt[ 1 ][ 1 ] + "\n" );
-			fw.append( tgt[ 2 ][ 0 ] + "\t" + tgt[ 2 ][ 1 ] + "\n" );
-			fw.append( "\n" );
-			fw.close();
+			transformWriter.write( new TransformFile.Record( Transformation.values()[ transform ], sourceID, targetID, src, tgt ) );
 		}
 		catch ( IOException e )
 		{
@@ -971,12 +889,39 @@ public class MultiStackReg_ implements PlugIn
 	}/* appendTransform */
 
 	/*------------------------------------------------------------------*/
+	private void closeTransformFiles()
+	{
+		if ( transformWriter != null )
+		{
+			try
+			{
+				transformWriter.close();
+			}
+			catch ( IOException e )
+			{
+				IJ.error( "Error writing to file." );
+			}
+			transformWriter = null;
+		}
+		if ( transformReader != null )
+		{
+			transformReader.close();
+			transformReader = null;
+		}
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Computes the average color and the scatter matrix of all slices in a
+	 * single pass. Slices are processed in parallel, each thread accumulates
+	 * (exact) partial sums that are merged afterwards.
+	 */
 	private void computeStatistics( final ImagePlus imp, final double[] average, final double[][] scatterMatrix )
 	{
-		int length = imp.getWidth() * imp.getHeight();
-		double r;
-		double g;
-		double b;
+		final ImageStack stack = imp.getStack();
+		final int length = imp.getWidth() * imp.getHeight();
+		// Sums of r, g, b, r*r, r*g, r*b, g*g, g*b, b*b
+		final long[] sums;
 		if ( imp.getProcessor().getPixels() instanceof byte[] )
 		{
 			final IndexColorModel icm = ( IndexColorModel ) imp.getProcessor().getColorModel();
@@ -987,84 +932,72 @@ public class MultiStackReg_ implements PlugIn
 			icm.getReds( reds );
 			icm.getGreens( greens );
 			icm.getBlues( blues );
-			final double[] histogram = new double[ mapSize ];
-			for ( int k = 0; ( k < mapSize ); k++ )
-			{
-				histogram[ k ] = 0.0;
-			}
-			for ( int s = 1; ( s <= imp.getStackSize() ); s++ )
-			{
-				imp.setSlice( s );
-				final byte[] pixels = ( byte[] ) imp.getProcessor().getPixels();
+			final long[] histogram = IntStream.rangeClosed( 1, stack.getSize() ).parallel().collect( () -> new long[ 256 ], ( partial, s ) -> {
+				final byte[] pixels = ( byte[] ) stack.getPixels( s );
 				for ( int k = 0; ( k < length ); k++ )
 				{
-					histogram[ pixels[ k ] & 0xFF ]++;
+					partial[ pixels[ k ] & 0xFF ]++;
 				}
-			}
+			}, MultiStackReg_::add );
+			sums = new long[ 9 ];
 			for ( int k = 0; ( k < mapSize ); k++ )
 			{
-				r = ( double ) ( reds[ k ] & 0xFF );
-				g = ( double ) ( greens[ k ] & 0xFF );
-				b = ( double ) ( blues[ k ] & 0xFF );
-				average[ 0 ] += histogram[ k ] * r;
-				average[ 1 ] += histogram[ k ] * g;
-				average[ 2 ] += histogram[ k ] * b;
-				scatterMatrix[ 0 ][ 0 ] += histogram[ k ] * r * r;
-				scatterMatrix[ 0 ][ 1 ] += histogram[ k ] * r * g;
-				scatterMatrix[ 0 ][ 2 ] += histogram[ k ] * r * b;
-				scatterMatrix[ 1 ][ 1 ] += histogram[ k ] * g * g;
-				scatterMatrix[ 1 ][ 2 ] += histogram[ k ] * g * b;
-				scatterMatrix[ 2 ][ 2 ] += histogram[ k ] * b * b;
+				accumulate( sums, reds[ k ] & 0xFF, greens[ k ] & 0xFF, blues[ k ] & 0xFF, histogram[ k ] );
 			}
 		}
 		else if ( imp.getProcessor().getPixels() instanceof int[] )
 		{
-			for ( int s = 1; ( s <= imp.getStackSize() ); s++ )
-			{
-				imp.setSlice( s );
-				final int[] pixels = ( int[] ) imp.getProcessor().getPixels();
+			sums = IntStream.rangeClosed( 1, stack.getSize() ).parallel().collect( () -> new long[ 9 ], ( partial, s ) -> {
+				final int[] pixels = ( int[] ) stack.getPixels( s );
 				for ( int k = 0; ( k < length ); k++ )
 				{
-					r = ( double ) ( ( pixels[ k ] & 0x00FF0000 ) >>> 16 );
-					g = ( double ) ( ( pixels[ k ] & 0x0000FF00 ) >>> 8 );
-					b = ( double ) ( pixels[ k ] & 0x000000FF );
-					average[ 0 ] += r;
-					average[ 1 ] += g;
-					average[ 2 ] += b;
-					scatterMatrix[ 0 ][ 0 ] += r * r;
-					scatterMatrix[ 0 ][ 1 ] += r * g;
-					scatterMatrix[ 0 ][ 2 ] += r * b;
-					scatterMatrix[ 1 ][ 1 ] += g * g;
-					scatterMatrix[ 1 ][ 2 ] += g * b;
-					scatterMatrix[ 2 ][ 2 ] += b * b;
+					accumulate( partial, ( pixels[ k ] & 0x00FF0000 ) >>> 16, ( pixels[ k ] & 0x0000FF00 ) >>> 8, pixels[ k ] & 0x000000FF, 1 );
 				}
-			}
+			}, MultiStackReg_::add );
 		}
 		else
 		{
 			IJ.error( "Internal type mismatch" );
+			return;
 		}
-		length *= imp.getStackSize();
-		average[ 0 ] /= ( double ) length;
-		average[ 1 ] /= ( double ) length;
-		average[ 2 ] /= ( double ) length;
-		scatterMatrix[ 0 ][ 0 ] /= ( double ) length;
-		scatterMatrix[ 0 ][ 1 ] /= ( double ) length;
-		scatterMatrix[ 0 ][ 2 ] /= ( double ) length;
-		scatterMatrix[ 1 ][ 1 ] /= ( double ) length;
-		scatterMatrix[ 1 ][ 2 ] /= ( double ) length;
-		scatterMatrix[ 2 ][ 2 ] /= ( double ) length;
-		scatterMatrix[ 0 ][ 0 ] -= average[ 0 ] * average[ 0 ];
-		scatterMatrix[ 0 ][ 1 ] -= average[ 0 ] * average[ 1 ];
-		scatterMatrix[ 0 ][ 2 ] -= average[ 0 ] * average[ 2 ];
-		scatterMatrix[ 1 ][ 1 ] -= average[ 1 ] * average[ 1 ];
-		scatterMatrix[ 1 ][ 2 ] -= average[ 1 ] * average[ 2 ];
-		scatterMatrix[ 2 ][ 2 ] -= average[ 2 ] * average[ 2 ];
+		final double n = ( double ) length * ( double ) stack.getSize();
+		average[ 0 ] = sums[ 0 ] / n;
+		average[ 1 ] = sums[ 1 ] / n;
+		average[ 2 ] = sums[ 2 ] / n;
+		scatterMatrix[ 0 ][ 0 ] = sums[ 3 ] / n - average[ 0 ] * average[ 0 ];
+		scatterMatrix[ 0 ][ 1 ] = sums[ 4 ] / n - average[ 0 ] * average[ 1 ];
+		scatterMatrix[ 0 ][ 2 ] = sums[ 5 ] / n - average[ 0 ] * average[ 2 ];
+		scatterMatrix[ 1 ][ 1 ] = sums[ 6 ] / n - average[ 1 ] * average[ 1 ];
+		scatterMatrix[ 1 ][ 2 ] = sums[ 7 ] / n - average[ 1 ] * average[ 2 ];
+		scatterMatrix[ 2 ][ 2 ] = sums[ 8 ] / n - average[ 2 ] * average[ 2 ];
 		scatterMatrix[ 2 ][ 1 ] = scatterMatrix[ 1 ][ 2 ];
 		scatterMatrix[ 2 ][ 0 ] = scatterMatrix[ 0 ][ 2 ];
 		scatterMatrix[ 1 ][ 0 ] = scatterMatrix[ 0 ][ 1 ];
 	} /* computeStatistics */
 
+	/*------------------------------------------------------------------*/
+	private static void accumulate( final long[] sums, final long r, final long g, final long b, final long count )
+	{
+		sums[ 0 ] += count * r;
+		sums[ 1 ] += count * g;
+		sums[ 2 ] += count * b;
+		sums[ 3 ] += count * r * r;
+		sums[ 4 ] += count * r * g;
+		sums[ 5 ] += count * r * b;
+		sums[ 6 ] += count * g * g;
+		sums[ 7 ] += count * g * b;
+		sums[ 8 ] += count * b * b;
+	} /* accumulate */
+
+	/*------------------------------------------------------------------*/
+	private static void add( final long[] sums, final long[] partial )
+	{
+		for ( int k = 0; ( k < sums.length ); k++ )
+		{
+			sums[ k ] += partial[ k ];
+		}
+	} /* add */
+
 	/*------------------------------------------------------------------*/
 	private double[] getColorWeightsFromPrincipalComponents( final ImagePlus imp )
 	{
@@ -1357,14 +1290,16 @@ public class MultiStackReg_ implements PlugIn
 	} /* getEigenvector */
 
 	/*------------------------------------------------------------------*/
-	private ImagePlus getGray32( final String title, final ImagePlus imp, final double[] colorWeights )
+	/**
+	 * Converts the current slice of {@code imp} to gray levels. The pixels are
+	 * written to {@code buffer} unless it is {@code null} (or of the wrong
+	 * size).
+	 */
+	private ImagePlus getGray32( final String title, final ImagePlus imp, final double[] colorWeights, float[] buffer )
 	{
 		final int length = imp.getWidth() * imp.getHeight();
-		final ImagePlus gray32 = new ImagePlus( title, new FloatProcessor( imp.getWidth(), imp.getHeight() ) );
-		final float[] gray = ( float[] ) gray32.getProcessor().getPixels();
-		double r;
-		double g;
-		double b;
+		final float[] gray = ( buffer != null && buffer.length == length ) ? buffer : new float[ length ];
+		final ImagePlus gray32 = new ImagePlus( title, new FloatProcessor( imp.getWidth(), imp.getHeight(), gray, null ) );
 		if ( imp.getProcessor().getPixels() instanceof byte[] )
 		{
 			final byte[] pixels = ( byte[] ) imp.getProcessor().getPixels();
@@ -1376,25 +1311,26 @@ public class MultiStackReg_ implements PlugIn
 			icm.getReds( reds );
 			icm.getGreens( greens );
 			icm.getBlues( blues );
-			int index;
+			// Gray level of each index of the color map
+			final float[] lut = new float[ 256 ];
+			for ( int index = 0; ( index < mapSize ); index++ )
+			{
+				lut[ index ] = ( float ) ( colorWeights[ 0 ] * ( reds[ index ] & 0xFF ) + colorWeights[ 1 ] * ( greens[ index ] & 0xFF ) + colorWeights[ 2 ] * ( blues[ index ] & 0xFF ) );
+			}
 			for ( int k = 0; ( k < length ); k++ )
 			{
-				index = ( int ) ( pixels[ k ] & 0xFF );
-				r = ( double ) ( reds[ index ] & 0xFF );
-				g = ( double ) ( greens[ index ] & 0xFF );
-				b = ( double ) ( blues[ index ] & 0xFF );
-				gray[ k ] = ( float ) ( colorWeights[ 0 ] * r + colorWeights[ 1 ] * g + colorWeights[ 2 ] * b );
+				gray[ k ] = lut[ pixels[ k ] & 0xFF ];
 			}
 		}
 		else if ( imp.getProcessor().getPixels() instanceof int[] )
 		{
 			final int[] pixels = ( int[] ) imp.getProcessor().getPixels();
+			final double wr = colorWeights[ 0 ];
+			final double wg = colorWeights[ 1 ];
+			final double wb = colorWeights[ 2 ];
 			for ( int k = 0; ( k < length ); k++ )
 			{
-				r = ( double ) ( ( pixels[ k ] & 0x00FF0000 ) >>> 16 );
-				g = ( double ) ( ( pixels[ k ] & 0x0000FF00 ) >>> 8 );
-				b = ( double ) ( pixels[ k ] & 0x000000FF );
-				gray[ k ] = ( float ) ( colorWeights[ 0 ] * r + colorWeights[ 1 ] * g + colorWeights[ 2 ] * b );
+				gray[ k ] = ( float ) ( wr * ( ( pixels[ k ] & 0x00FF0000 ) >>> 16 ) + wg * ( ( pixels[ k ] & 0x0000FF00 ) >>> 8 ) + wb * ( pixels[ k ] & 0x000000FF ) );
 			}
 		}
 		return ( gray32 );
@@ -1745,541 +1681,157 @@ public class MultiStackReg_ implements PlugIn
 	private ImagePlus registerSlice( ImagePlus source, ImagePlus target, ImagePlus imp, final int width, final int height, final int transformation, final double[][] globalTransform, final double[][] anchorPoints, final double[] colorWeights, int s )
 	{
 		imp.setSlice( s );
-		try
+		double[][] sourcePoints = null;
+		double[][] targetPoints = null;
+		double[][] localTransform = null;
+		switch ( imp.getType() )
 		{
-			Object turboReg = null;
-			Method method = null;
-			double[][] sourcePoints = null;
-			double[][] targetPoints = null;
-			double[][] localTransform = null;
-			switch ( imp.getType() )
-			{
-			case ImagePlus.COLOR_256:
-			case ImagePlus.COLOR_RGB:
-			{
-				source = getGray32( "StackRegSource", imp, colorWeights );
-				break;
-			}
-			case ImagePlus.GRAY8:
-			{
-				source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				break;
-			}
-			case ImagePlus.GRAY16:
-			{
-				source = new ImagePlus( "StackRegSource", new ShortProcessor( width, height, ( short[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				break;
-			}
-			case ImagePlus.GRAY32:
-			{
-				source = new ImagePlus( "StackRegSource", new FloatProcessor( width, height, ( float[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				break;
-			}
-			default:
+		case ImagePlus.COLOR_256:
+		case ImagePlus.COLOR_RGB:
+		{
+			source = getGray32( "StackRegSource", imp, colorWeights, spareGray );
+			spareGray = ( float[] ) source.getProcessor().getPixels();
+			break;
+		}
+		case ImagePlus.GRAY8:
+		{
+			source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
+			break;
+		}
+		case ImagePlus.GRAY16:
+		{
+			source = new ImagePlus( "StackRegSource", new ShortProcessor( width, height, ( short[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
+			break;
+		}
+		case ImagePlus.GRAY32:
+		{
+			source = new ImagePlus( "StackRegSource", new FloatProcessor( width, height, ( float[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
+			break;
+		}
+		default:
+		{
+			IJ.error( "Unexpected image type" );
+			return ( null );
+		}
+		}
+		if ( loadPathAndFilename == "" )
+		{// if we've specified a transformation to load, we needen't bother
+			// with aligning them again
+			if ( ( transformation < 0 ) || ( transformation >= Transformation.values().length ) )
 			{
-				IJ.error( "Unexpected image type" );
+				IJ.error( "Unexpected transformation" );
 				return ( null );
 			}
-			}
-			final FileSaver sourceFile = new FileSaver( source );
-			final String sourcePathAndFileName = IJ.getDirectory( "temp" ) + source.getTitle();
-			sourceFile.saveAsTiff( sourcePathAndFileName );
-			final FileSaver targetFile = new FileSaver( target );
-			final String targetPathAndFileName = IJ.getDirectory( "temp" ) + target.getTitle();
-			targetFile.saveAsTiff( targetPathAndFileName );
-			if ( loadPathAndFilename == "" )
-			{// if we've specified a transformation to load, we needen't bother
-				// with aligning them again
-				switch ( transformation )
-				{
-				case 0:
-				{
-					turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -translation" + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 1:
-				{
-					turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -rigidBody" + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				case 2:
-				{
-					turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -scaledRotation" + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 3:
-				{
-					turboReg = IJ.runPlugIn( "TurboReg_", "-align" + " -file " + sourcePathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -file " + targetPathAndFileName + " 0 0 " + ( width - 1 ) + " " + ( height - 1 ) + " -affine" + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected transformation" );
-					return ( null );
-				}
-				}
-				if ( turboReg == null ) { throw ( new ClassNotFoundException() ); }
-				target.setProcessor( null, source.getProcessor() );
-				method = turboReg.getClass().getMethod( "getSourcePoints", null );
-				sourcePoints = ( ( double[][] ) method.invoke( turboReg, null ) );
-				method = turboReg.getClass().getMethod( "getTargetPoints", null );
-				targetPoints = ( ( double[][] ) method.invoke( turboReg, null ) );
-				if ( saveTransform )
-					appendTransform( savePath + saveFile, s, tSlice, sourcePoints, targetPoints, transformation );
-			}
-			else
+			// register in memory (replaces TurboReg_ -align), starting from
+			// the transformation of the previous slice
+			final ImageRegistration registration = new ImageRegistration( Transformation.values()[ transformation ] );
+			localTransform = registration.align( source.getProcessor(), registration.createPyramid( target.getProcessor() ), previousTransform );
+			previousTransform = localTransform;
+			final Object previousTarget = target.getProcessor().getPixels();
+			target.setProcessor( null, source.getProcessor() );
+			if ( colorWeights != null )
 			{
-				sourcePoints = new double[ 3 ][ 2 ];
-				targetPoints = new double[ 3 ][ 2 ];
-				int test = loadTransform( 2, sourcePoints, targetPoints );
-				if ( test != -1 && test != s )
-				{
-					if ( !twoStackAlign && !loadSingleMatrix && !fairlyWarned )
-					{
-						IJ.error( "We've found some strangeness: the current transformation file index (" + test + ") \n" + "and image index (" + s + ") don't line up, which this type of alignment needs. \n" + "We'll proceed for now, but it may not work." );
-						fairlyWarned = true;
-					}
-					s = test;
-					imp.setSlice( s );
-				}
-				transformNumber++;
-			}
-			localTransform = getTransformationMatrix( targetPoints, sourcePoints, transformation );
-			double[][] rescued = { { globalTransform[ 0 ][ 0 ], globalTransform[ 0 ][ 1 ], globalTransform[ 0 ][ 2 ] }, { globalTransform[ 1 ][ 0 ], globalTransform[ 1 ][ 1 ], globalTransform[ 1 ][ 2 ] }, { globalTransform[ 2 ][ 0 ], globalTransform[ 2 ][ 1 ], globalTransform[ 2 ][ 2 ] } };
-			for ( int i = 0; ( i < 3 ); i++ )
-			{
-				for ( int j = 0; ( j < 3 ); j++ )
-				{
-					globalTransform[ i ][ j ] = 0.0;
-					for ( int k = 0; ( k < 3 ); k++ )
-					{
-						globalTransform[ i ][ j ] += localTransform[ i ][ k ] * rescued[ k ][ j ];
-					}
-				}
+				// The gray levels of the previous target are not needed
+				// anymore, the next source is converted into them
+				spareGray = ( float[] ) previousTarget;
 			}
-			switch ( imp.getType() )
+			if ( saveTransform )
 			{
-			case ImagePlus.COLOR_256:
-			{
-				source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
-				ImageConverter converter = new ImageConverter( source );
-				converter.convertToRGB();
-				Object turboRegR = null;
-				Object turboRegG = null;
-				Object turboRegB = null;
-				byte[] r = new byte[ width * height ];
-				byte[] g = new byte[ width * height ];
-				byte[] b = new byte[ width * height ];
-				( ( ColorProcessor ) source.getProcessor() ).getRGB( r, g, b );
-				final ImagePlus sourceR = new ImagePlus( "StackRegSourceR", new ByteProcessor( width, height ) );
-				final ImagePlus sourceG = new ImagePlus( "StackRegSourceG", new ByteProcessor( width, height ) );
-				final ImagePlus sourceB = new ImagePlus( "StackRegSourceB", new ByteProcessor( width, height ) );
-				sourceR.getProcessor().setPixels( r );
-				sourceG.getProcessor().setPixels( g );
-				sourceB.getProcessor().setPixels( b );
-				ImagePlus transformedSourceR = null;
-				ImagePlus transformedSourceG = null;
-				ImagePlus transformedSourceB = null;
-				final FileSaver sourceFileR = new FileSaver( sourceR );
-				final String sourcePathAndFileNameR = IJ.getDirectory( "temp" ) + sourceR.getTitle();
-				sourceFileR.saveAsTiff( sourcePathAndFileNameR );
-				final FileSaver sourceFileG = new FileSaver( sourceG );
-				final String sourcePathAndFileNameG = IJ.getDirectory( "temp" ) + sourceG.getTitle();
-				sourceFileG.saveAsTiff( sourcePathAndFileNameG );
-				final FileSaver sourceFileB = new FileSaver( sourceB );
-				final String sourcePathAndFileNameB = IJ.getDirectory( "temp" ) + sourceB.getTitle();
-				sourceFileB.saveAsTiff( sourcePathAndFileNameB );
-				switch ( transformation )
-				{
-				case 0:
-				{
-					sourcePoints = new double[ 1 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 1:
-				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				case 2:
-				{
-					sourcePoints = new double[ 2 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 3:
+				targetPoints = new double[ 3 ][ 2 ];
+				sourcePoints = new double[ 3 ][ 2 ];
+				for ( int k = 0; ( k < anchorPoints.length ); k++ )
 				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
+					targetPoints[ k ][ 0 ] = anchorPoints[ k ][ 0 ];
+					targetPoints[ k ][ 1 ] = anchorPoints[ k ][ 1 ];
+					for ( int i = 0; ( i < 2 ); i++ )
 					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
 						for ( int j = 0; ( j < 3 ); j++ )
 						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
+							sourcePoints[ k ][ i ] += localTransform[ i ][ j ] * anchorPoints[ k ][ j ];
 						}
 					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
 				}
-				default:
-				{
-					IJ.error( "Unexpected transformation" );
-					return ( null );
-				}
-				}
-				method = turboRegR.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceR = ( ImagePlus ) method.invoke( turboRegR, null );
-				method = turboRegG.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceG = ( ImagePlus ) method.invoke( turboRegG, null );
-				method = turboRegB.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceB = ( ImagePlus ) method.invoke( turboRegB, null );
-				transformedSourceR.getStack().deleteLastSlice();
-				transformedSourceG.getStack().deleteLastSlice();
-				transformedSourceB.getStack().deleteLastSlice();
-				transformedSourceR.getProcessor().setMinAndMax( 0.0, 255.0 );
-				transformedSourceG.getProcessor().setMinAndMax( 0.0, 255.0 );
-				transformedSourceB.getProcessor().setMinAndMax( 0.0, 255.0 );
-				ImageConverter converterR = new ImageConverter( transformedSourceR );
-				ImageConverter converterG = new ImageConverter( transformedSourceG );
-				ImageConverter converterB = new ImageConverter( transformedSourceB );
-				converterR.convertToGray8();
-				converterG.convertToGray8();
-				converterB.convertToGray8();
-				final IndexColorModel icm = ( IndexColorModel ) imp.getProcessor().getColorModel();
-				final byte[] pixels = ( byte[] ) imp.getProcessor().getPixels();
-				r = ( byte[] ) transformedSourceR.getProcessor().getPixels();
-				g = ( byte[] ) transformedSourceG.getProcessor().getPixels();
-				b = ( byte[] ) transformedSourceB.getProcessor().getPixels();
-				final int[] color = new int[ 4 ];
-				color[ 3 ] = 255;
-				for ( int k = 0; ( k < pixels.length ); k++ )
-				{
-					color[ 0 ] = ( int ) ( r[ k ] & 0xFF );
-					color[ 1 ] = ( int ) ( g[ k ] & 0xFF );
-					color[ 2 ] = ( int ) ( b[ k ] & 0xFF );
-					pixels[ k ] = ( byte ) icm.getDataElement( color, 0 );
-				}
-				break;
+				appendTransform( s, tSlice, sourcePoints, targetPoints, transformation );
 			}
-			case ImagePlus.COLOR_RGB:
+		}
+		else
+		{
+			sourcePoints = new double[ 3 ][ 2 ];
+			targetPoints = new double[ 3 ][ 2 ];
+			int test = loadTransform( 2, sourcePoints, targetPoints );
+			if ( test != -1 && test != s )
 			{
-				Object turboRegR = null;
-				Object turboRegG = null;
-				Object turboRegB = null;
-				final byte[] r = new byte[ width * height ];
-				final byte[] g = new byte[ width * height ];
-				final byte[] b = new byte[ width * height ];
-				( ( ColorProcessor ) imp.getProcessor() ).getRGB( r, g, b );
-				final ImagePlus sourceR = new ImagePlus( "StackRegSourceR", new ByteProcessor( width, height ) );
-				final ImagePlus sourceG = new ImagePlus( "StackRegSourceG", new ByteProcessor( width, height ) );
-				final ImagePlus sourceB = new ImagePlus( "StackRegSourceB", new ByteProcessor( width, height ) );
-				sourceR.getProcessor().setPixels( r );
-				sourceG.getProcessor().setPixels( g );
-				sourceB.getProcessor().setPixels( b );
-				ImagePlus transformedSourceR = null;
-				ImagePlus transformedSourceG = null;
-				ImagePlus transformedSourceB = null;
-				final FileSaver sourceFileR = new FileSaver( sourceR );
-				final String sourcePathAndFileNameR = IJ.getDirectory( "temp" ) + sourceR.getTitle();
-				sourceFileR.saveAsTiff( sourcePathAndFileNameR );
-				final FileSaver sourceFileG = new FileSaver( sourceG );
-				final String sourcePathAndFileNameG = IJ.getDirectory( "temp" ) + sourceG.getTitle();
-				sourceFileG.saveAsTiff( sourcePathAndFileNameG );
-				final FileSaver sourceFileB = new FileSaver( sourceB );
-				final String sourcePathAndFileNameB = IJ.getDirectory( "temp" ) + sourceB.getTitle();
-				sourceFileB.saveAsTiff( sourcePathAndFileNameB );
-				switch ( transformation )
-				{
-				case 0:
+				if ( !twoStackAlign && !loadSingleMatrix && !fairlyWarned )
 				{
-					sourcePoints = new double[ 1 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 1:
-				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				case 2:
-				{
-					sourcePoints = new double[ 2 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
+					IJ.error( "We've found some strangeness: the current transformation file index (" + test + ") \n" + "and image index (" + s + ") don't line up, which this type of alignment needs. \n" + "We'll proceed for now, but it may not work." );
+					fairlyWarned = true;
 				}
-				case 3:
-				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboRegR = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameR + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					if ( turboRegR == null ) { throw ( new ClassNotFoundException() ); }
-					turboRegG = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameG + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					turboRegB = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileNameB + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected transformation" );
-					return ( null );
-				}
-				}
-				method = turboRegR.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceR = ( ImagePlus ) method.invoke( turboRegR, null );
-				method = turboRegG.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceG = ( ImagePlus ) method.invoke( turboRegG, null );
-				method = turboRegB.getClass().getMethod( "getTransformedImage", null );
-				transformedSourceB = ( ImagePlus ) method.invoke( turboRegB, null );
-				transformedSourceR.getStack().deleteLastSlice();
-				transformedSourceG.getStack().deleteLastSlice();
-				transformedSourceB.getStack().deleteLastSlice();
-				transformedSourceR.getProcessor().setMinAndMax( 0.0, 255.0 );
-				transformedSourceG.getProcessor().setMinAndMax( 0.0, 255.0 );
-				transformedSourceB.getProcessor().setMinAndMax( 0.0, 255.0 );
-				ImageConverter converterR = new ImageConverter( transformedSourceR );
-				ImageConverter converterG = new ImageConverter( transformedSourceG );
-				ImageConverter converterB = new ImageConverter( transformedSourceB );
-				converterR.convertToGray8();
-				converterG.convertToGray8();
-				converterB.convertToGray8();
-				( ( ColorProcessor ) imp.getProcessor() ).setRGB( ( byte[] ) transformedSourceR.getProcessor().getPixels(), ( byte[] ) transformedSourceG.getProcessor().getPixels(), ( byte[] ) transformedSourceB.getProcessor().getPixels() );
-				break;
+				s = test;
+				imp.setSlice( s );
 			}
-			case ImagePlus.GRAY8:
-			case ImagePlus.GRAY16:
-			case ImagePlus.GRAY32:
+			transformNumber++;
+			localTransform = getTransformationMatrix( targetPoints, sourcePoints, transformation );
+		}
+		double[][] rescued = { { globalTransform[ 0 ][ 0 ], globalTransform[ 0 ][ 1 ], globalTransform[ 0 ][ 2 ] }, { globalTransform[ 1 ][ 0 ], globalTransform[ 1 ][ 1 ], globalTransform[ 1 ][ 2 ] }, { globalTransform[ 2 ][ 0 ], globalTransform[ 2 ][ 1 ], globalTransform[ 2 ][ 2 ] } };
+		for ( int i = 0; ( i < 3 ); i++ )
+		{
+			for ( int j = 0; ( j < 3 ); j++ )
 			{
-				switch ( transformation )
-				{
-				case 0:
-				{
-					sourcePoints = new double[ 1 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -translation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 1:
-				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -rigidBody" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( width / 2 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				case 2:
-				{
-					sourcePoints = new double[ 2 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -scaledRotation" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 4 ) + " " + ( height / 2 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( height / 2 ) + " -hideOutput" );
-					break;
-				}
-				case 3:
-				{
-					sourcePoints = new double[ 3 ][ 3 ];
-					for ( int i = 0; ( i < 3 ); i++ )
-					{
-						sourcePoints[ 0 ][ i ] = 0.0;
-						sourcePoints[ 1 ][ i ] = 0.0;
-						sourcePoints[ 2 ][ i ] = 0.0;
-						for ( int j = 0; ( j < 3 ); j++ )
-						{
-							sourcePoints[ 0 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 0 ][ j ];
-							sourcePoints[ 1 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 1 ][ j ];
-							sourcePoints[ 2 ][ i ] += globalTransform[ i ][ j ] * anchorPoints[ 2 ][ j ];
-						}
-					}
-					turboReg = IJ.runPlugIn( "TurboReg_", "-transform" + " -file " + sourcePathAndFileName + " " + width + " " + height + " -affine" + " " + sourcePoints[ 0 ][ 0 ] + " " + sourcePoints[ 0 ][ 1 ] + " " + ( width / 2 ) + " " + ( height / 4 ) + " " + sourcePoints[ 1 ][ 0 ] + " " + sourcePoints[ 1 ][ 1 ] + " " + ( width / 4 ) + " " + ( ( 3 * height ) / 4 ) + " " + sourcePoints[ 2 ][ 0 ] + " " + sourcePoints[ 2 ][ 1 ] + " " + ( ( 3 * width ) / 4 ) + " " + ( ( 3 * height ) / 4 ) + " -hideOutput" );
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected transformation" );
-					return ( null );
-				}
-				}
-				if ( turboReg == null ) { throw ( new ClassNotFoundException() ); }
-				method = turboReg.getClass().getMethod( "getTransformedImage", null );
-				ImagePlus transformedSource = ( ImagePlus ) method.invoke( turboReg, null );
-				transformedSource.getStack().deleteLastSlice();
-				switch ( imp.getType() )
-				{
-				case ImagePlus.GRAY8:
-				{
-					transformedSource.getProcessor().setMinAndMax( 0.0, 255.0 );
-					final ImageConverter converter = new ImageConverter( transformedSource );
-					converter.convertToGray8();
-					break;
-				}
-				case ImagePlus.GRAY16:
+				globalTransform[ i ][ j ] = 0.0;
+				for ( int k = 0; ( k < 3 ); k++ )
 				{
-					transformedSource.getProcessor().setMinAndMax( 0.0, 65535.0 );
-					final ImageConverter converter = new ImageConverter( transformedSource );
-					converter.convertToGray16();
-					break;
+					globalTransform[ i ][ j ] += localTransform[ i ][ k ] * rescued[ k ][ j ];
 				}
-				case ImagePlus.GRAY32:
-				{
-					break;
-				}
-				default:
-				{
-					IJ.error( "Unexpected image type" );
-					return ( null );
-				}
-				}
-				imp.setProcessor( null, transformedSource.getProcessor() );
-				break;
 			}
-			default:
+		}
+		// transform in memory (replaces TurboReg_ -transform)
+		switch ( imp.getType() )
+		{
+		case ImagePlus.COLOR_256:
+		{
+			source = new ImagePlus( "StackRegSource", new ByteProcessor( width, height, ( byte[] ) imp.getProcessor().getPixels(), imp.getProcessor().getColorModel() ) );
+			ImageConverter converter = new ImageConverter( source );
+			converter.convertToRGB();
+			final ColorProcessor transformedSource = ( ColorProcessor ) ImageWarp.warp( source.getProcessor(), globalTransform );
+			final byte[] r = new byte[ width * height ];
+			final byte[] g = new byte[ width * height ];
+			final byte[] b = new byte[ width * height ];
+			transformedSource.getRGB( r, g, b );
+			final IndexColorModel icm = ( IndexColorModel ) imp.getProcessor().getColorModel();
+			final byte[] pixels = ( byte[] ) imp.getProcessor().getPixels();
+			final int[] color = new int[ 4 ];
+			color[ 3 ] = 255;
+			for ( int k = 0; ( k < pixels.length ); k++ )
 			{
-				IJ.error( "Unexpected image type" );
-				return ( null );
-			}
+				color[ 0 ] = ( int ) ( r[ k ] & 0xFF );
+				color[ 1 ] = ( int ) ( g[ k ] & 0xFF );
+				color[ 2 ] = ( int ) ( b[ k ] & 0xFF );
+				pixels[ k ] = ( byte ) icm.getDataElement( color, 0 );
 			}
+			break;
 		}
-		catch ( NoSuchMethodException e )
+		case ImagePlus.COLOR_RGB:
 		{
-			IJ.error( "Unexpected NoSuchMethodException " + e );
-			return ( null );
+			final ColorProcessor transformedSource = ( ColorProcessor ) ImageWarp.warp( imp.getProcessor(), globalTransform );
+			final byte[] r = new byte[ width * height ];
+			final byte[] g = new byte[ width * height ];
+			final byte[] b = new byte[ width * height ];
+			transformedSource.getRGB( r, g, b );
+			( ( ColorProcessor ) imp.getProcessor() ).setRGB( r, g, b );
+			break;
 		}
-		catch ( IllegalAccessException e )
+		case ImagePlus.GRAY8:
+		case ImagePlus.GRAY16:
+		case ImagePlus.GRAY32:
 		{
-			IJ.error( "Unexpected IllegalAccessException " + e );
-			return ( null );
+			imp.setProcessor( null, ImageWarp.warp( imp.getProcessor(), globalTransform ) );
+			break;
 		}
-		catch ( InvocationTargetException e )
+		default:
 		{
-			IJ.error( "Unexpected InvocationTargetException " + e );
+			IJ.error( "Unexpected image type" );
 			return ( null );
 		}
-		catch ( ClassNotFoundException e )
-		{
-			IJ.error( "Please download TurboReg_ from\nhttp://bigwww.epfl.ch/thevenaz/turboreg/" );
-			return ( null );
 		}
 		return ( source );
 	} /* end registerSlice */
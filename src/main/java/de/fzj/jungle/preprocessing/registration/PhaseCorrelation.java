@@ -0,0 +1,285 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import de.fzj.jungle.util.FFT;
+import ij.process.ImageProcessor;
+
+/**
+ * Estimates the translation between a reference and other images of the same
+ * size by phase correlation.
+ * <p>
+ * Images are mean-subtracted, multiplied with a Hann window, and zero-padded
+ * to powers of two. The spectrum of the reference is computed once, hence,
+ * registering an image costs one forward and one inverse FFT. The peak of the
+ * inverse transform of the normalized cross-power spectrum is refined to
+ * sub-pixel accuracy from the peak and its larger neighbor in each
+ * direction. Shifts of up to half the (padded) image size can be recovered.
+ * </p>
+ * <p>
+ * Since both images are windowed at the same position, the peak is biased
+ * towards zero (by up to 0.2 pixels for shifts of a few pixels). Hence, the
+ * peak is only used as the initial estimate of an
+ * {@link ImageRegistration} of the translation on the full-resolution images,
+ * which removes the bias. Starting that close to the optimum, the refinement
+ * takes a few iterations, i.e. a few passes over the image.
+ * </p>
+ * <p>
+ * Instances are immutable once constructed and can be shared between threads.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class PhaseCorrelation
+{
+
+	/* Private fields */
+	private final int width;
+
+	private final int height;
+
+	private final int fftWidth;
+
+	private final int fftHeight;
+
+	private final double[] xWindow;
+
+	private final double[] yWindow;
+
+	private final double[] referenceRe;
+
+	private final double[] referenceIm;
+
+	/** Full-resolution reference for the refinement of the peak. */
+	private final ImagePyramid referencePyramid;
+
+	private final ImageRegistration refinement = new ImageRegistration( Transformation.TRANSLATION );
+
+	/**
+	 * Constructs a {@link PhaseCorrelation} for a reference image.
+	 *
+	 * @param reference
+	 *            {@link ImageProcessor} other images are registered to
+	 */
+	public PhaseCorrelation( ImageProcessor reference )
+	{
+		this( ImageRegistration.toFloatPixels( reference ), reference.getWidth(), reference.getHeight() );
+	}
+
+	/**
+	 * Constructs a {@link PhaseCorrelation} for a reference image.
+	 *
+	 * @param reference
+	 *            pixels of the reference image (not copied)
+	 * @param width
+	 *            width of the reference image
+	 * @param height
+	 *            height of the reference image
+	 */
+	public PhaseCorrelation( float[] reference, int width, int height )
+	{
+		this.width = width;
+		this.height = height;
+		this.fftWidth = FFT.nextPowerOfTwo( width );
+		this.fftHeight = FFT.nextPowerOfTwo( height );
+		this.xWindow = hann( width );
+		this.yWindow = hann( height );
+
+		this.referenceRe = new double[ fftWidth * fftHeight ];
+		this.referenceIm = new double[ fftWidth * fftHeight ];
+		spectrum( reference, referenceRe, referenceIm );
+
+		// A single level, only the full resolution is refined
+		this.referencePyramid = new ImagePyramid( reference, width, height, Math.max( width, height ) );
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to the
+	 * reference.
+	 *
+	 * @param source
+	 *            image of the same size as the reference
+	 * @return the transformation matrix from reference to source coordinates
+	 */
+	public double[][] align( ImageProcessor source )
+	{
+		if ( source.getWidth() != width || source.getHeight() != height ) { throw new IllegalArgumentException( "Source and reference have to be of the same size." ); }
+
+		return align( ImageRegistration.toFloatPixels( source ) );
+	}
+
+	/**
+	 * Estimates the transformation that aligns {@code source} to the
+	 * reference.
+	 *
+	 * @param source
+	 *            pixels of an image of the same size as the reference
+	 * @return the transformation matrix from reference to source coordinates
+	 */
+	public double[][] align( float[] source )
+	{
+		return align( new PhaseCorrelation( source, width, height ) );
+	}
+
+	/**
+	 * Estimates the transformation that aligns the reference of
+	 * {@code source} to the reference of this instance. In a sequence of
+	 * images that are each registered to their predecessor, the spectrum of
+	 * each image is thus computed only once.
+	 *
+	 * @param source
+	 *            {@link PhaseCorrelation} of an image of the same size
+	 * @return the transformation matrix from reference to source coordinates
+	 */
+	public double[][] align( PhaseCorrelation source )
+	{
+		if ( source.width != width || source.height != height ) { throw new IllegalArgumentException( "Source and reference have to be of the same size." ); }
+
+		double[] peak = estimatePeak( source.referenceRe, source.referenceIm );
+		double[][] initial = { { 1.0, 0.0, peak[ 0 ] }, { 0.0, 1.0, peak[ 1 ] }, { 0.0, 0.0, 1.0 } };
+
+		return refinement.align( source.referencePyramid, referencePyramid, initial );
+	}
+
+	/**
+	 * Estimates the shift {@code d} such that {@code source(x + d)} matches
+	 * {@code reference(x)}.
+	 *
+	 * @param source
+	 *            pixels of an image of the same size as the reference
+	 * @return {@code {dx, dy}}
+	 */
+	public double[] estimateShift( float[] source )
+	{
+		double[][] matrix = align( source );
+
+		return new double[] { matrix[ 0 ][ 2 ], matrix[ 1 ][ 2 ] };
+	}
+
+	/**
+	 * Estimates the shift from the peak of the phase correlation (without
+	 * refinement).
+	 *
+	 * @param sourceRe
+	 *            real part of the spectrum of the source
+	 * @param sourceIm
+	 *            imaginary part of the spectrum of the source
+	 * @return {@code {dx, dy}}
+	 */
+	private double[] estimatePeak( double[] sourceRe, double[] sourceIm )
+	{
+		final int n = fftWidth * fftHeight;
+		double[] re = new double[ n ];
+		double[] im = new double[ n ];
+
+		// Normalized cross-power spectrum
+		for ( int k = 0; k < n; k++ )
+		{
+			final double pr = sourceRe[ k ] * referenceRe[ k ] + sourceIm[ k ] * referenceIm[ k ];
+			final double pi = sourceIm[ k ] * referenceRe[ k ] - sourceRe[ k ] * referenceIm[ k ];
+			final double magnitude = Math.hypot( pr, pi );
+
+			if ( magnitude > 1e-12 )
+			{
+				re[ k ] = pr / magnitude;
+				im[ k ] = pi / magnitude;
+			}
+			else
+			{
+				re[ k ] = 0.0;
+				im[ k ] = 0.0;
+			}
+		}
+
+		FFT.transform2D( re, im, fftWidth, fftHeight, true );
+
+		int peak = 0;
+		for ( int k = 1; k < n; k++ )
+		{
+			if ( re[ k ] > re[ peak ] )
+			{
+				peak = k;
+			}
+		}
+
+		final int px = peak % fftWidth;
+		final int py = peak / fftWidth;
+
+		final double center = re[ peak ];
+		final double left = re[ py * fftWidth + ( px + fftWidth - 1 ) % fftWidth ];
+		final double right = re[ py * fftWidth + ( px + 1 ) % fftWidth ];
+		final double up = re[ ( ( py + fftHeight - 1 ) % fftHeight ) * fftWidth + px ];
+		final double down = re[ ( ( py + 1 ) % fftHeight ) * fftWidth + px ];
+
+		final double dx = unwrap( px, fftWidth ) + peakOffset( left, center, right );
+		final double dy = unwrap( py, fftHeight ) + peakOffset( up, center, down );
+
+		return new double[] { dx, dy };
+	}
+
+	/**
+	 * Computes the spectrum of the windowed, mean-subtracted, and zero-padded
+	 * image.
+	 */
+	private void spectrum( float[] pixels, double[] re, double[] im )
+	{
+		double mean = 0.0;
+		for ( int k = 0; k < width * height; k++ )
+		{
+			mean += pixels[ k ];
+		}
+		mean /= ( double ) width * height;
+
+		for ( int y = 0; y < height; y++ )
+		{
+			for ( int x = 0; x < width; x++ )
+			{
+				re[ y * fftWidth + x ] = ( pixels[ y * width + x ] - mean ) * xWindow[ x ] * yWindow[ y ];
+			}
+		}
+
+		FFT.transform2D( re, im, fftWidth, fftHeight, false );
+	}
+
+	/**
+	 * @return the signed shift that corresponds to a (circular) peak index
+	 */
+	private static int unwrap( int index, int size )
+	{
+		return ( index > size / 2 ) ? index - size : index;
+	}
+
+	/**
+	 * Estimates the offset of the peak from the center sample and its larger
+	 * neighbor, which is exact for the sinc-shaped peak of a sub-pixel shift
+	 * (Foroosh, Zerubia, and Berthod, 2002).
+	 *
+	 * @return the sub-pixel offset (relative to the center sample)
+	 */
+	private static double peakOffset( double previous, double center, double next )
+	{
+		if ( center <= 0 ) { return 0.0; }
+
+		double offset = 0.0;
+		if ( next > previous && next > 0 )
+		{
+			offset = next / ( next + center );
+		}
+		else if ( previous > 0 )
+		{
+			offset = -previous / ( previous + center );
+		}
+
+		return Math.max( -0.5, Math.min( 0.5, offset ) );
+	}
+
+	private static double[] hann( int n )
+	{
+		double[] window = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			window[ i ] = ( n > 1 ) ? 0.5 - 0.5 * Math.cos( 2 * Math.PI * i / ( n - 1 ) ) : 1.0;
+		}
+
+		return window;
+	}
+
+}
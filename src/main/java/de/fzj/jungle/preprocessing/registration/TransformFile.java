@@ -0,0 +1,712 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the transformations that are saved by
+ * {@link MultiStackReg_} and {@link Compress_Matrices}.
+ * <p>
+ * Each {@link Record} stores a {@link Transformation}, the indices of the
+ * source and the target slice, and two sets of three landmarks (as used by
+ * TurboReg). Two formats are supported:
+ * </p>
+ * <ul>
+ * <li>A binary format that consists of a header (magic number, version, flags,
+ * number of records, offset of the index), records of fixed size (in the order
+ * they have been written), and an index of the records sorted by source slice.
+ * Binary files are memory-mapped for reading, hence, records can be accessed
+ * in constant time. The size of the file, the transformation codes, and the
+ * index are validated when the file is opened.</li>
+ * <li>The legacy "MultiStackReg Transformation File" text format. Text files
+ * are parsed in a single pass when they are opened.</li>
+ * </ul>
+ * <p>
+ * {@link #createWriter(String, boolean)} chooses the format from the file name
+ * (text for {@code .txt}, binary otherwise), {@link #open(String)} detects the
+ * format from the content.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class TransformFile
+{
+
+	/** First line of the legacy text format. */
+	public static final String TEXT_HEADER = "MultiStackReg Transformation File";
+
+	/** Magic number of the binary format ("MSRB"). */
+	public static final int MAGIC = 0x4d535242;
+
+	/** Version of the binary format. */
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 24;
+
+	private static final int RECORD_SIZE = 3 * 4 + 12 * 8;
+
+	private static final int INDEX_ENTRY_SIZE = 8;
+
+	private TransformFile()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * Creates a {@link Writer} for a new file. The legacy text format is used
+	 * if {@code path} ends with {@code .txt}, the binary format otherwise.
+	 *
+	 * @param path
+	 *            file to write
+	 * @param twoStackAlign
+	 *            {@code true} if the transformations align two stacks
+	 * @return a {@link Writer} that has to be closed
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	public static Writer createWriter( String path, boolean twoStackAlign ) throws IOException
+	{
+		if ( path.toLowerCase().endsWith( ".txt" ) ) { return new TextWriter( path, twoStackAlign ); }
+
+		return new BinaryWriter( path, twoStackAlign );
+	}
+
+	/**
+	 * Opens a file in the binary or in the legacy text format.
+	 *
+	 * @param path
+	 *            file to read
+	 * @return a {@link Reader} that has to be closed
+	 * @throws IOException
+	 *             if the file cannot be read or has an unknown format
+	 */
+	public static Reader open( String path ) throws IOException
+	{
+		if ( isBinary( path ) ) { return new Reader( mapBinary( path ) ); }
+
+		return new Reader( parseText( path ) );
+	}
+
+	/**
+	 * @return {@code true} if {@code path} starts with the magic number of
+	 *         the binary format
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static boolean isBinary( String path ) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream( new FileInputStream( path ) ))
+		{
+			return in.available() >= 4 && in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Converts a file (of either format) to the legacy text format.
+	 *
+	 * @param source
+	 *            file to convert
+	 * @param text
+	 *            file to write
+	 * @throws IOException
+	 *             if a file cannot be read or written
+	 */
+	public static void convertToText( String source, String text ) throws IOException
+	{
+		try (Reader reader = open( source ); Writer writer = new TextWriter( text, reader.isTwoStackAlign() ))
+		{
+			copy( reader, writer );
+		}
+	}
+
+	/**
+	 * Converts a file (of either format) to the binary format.
+	 *
+	 * @param source
+	 *            file to convert
+	 * @param binary
+	 *            file to write
+	 * @throws IOException
+	 *             if a file cannot be read or written
+	 */
+	public static void convertToBinary( String source, String binary ) throws IOException
+	{
+		try (Reader reader = open( source ); Writer writer = new BinaryWriter( binary, reader.isTwoStackAlign() ))
+		{
+			copy( reader, writer );
+		}
+	}
+
+	private static void copy( Reader reader, Writer writer ) throws IOException
+	{
+		while ( reader.hasNext() )
+		{
+			writer.write( reader.next() );
+		}
+	}
+
+	/*
+	 * Reading
+	 */
+
+	/**
+	 * Maps a binary file after checking its size against the header. The
+	 * transformation codes and the index are validated once, hence, a
+	 * {@link Reader} never fails on a malformed record.
+	 */
+	private static ByteBuffer mapBinary( String path ) throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile( path, "r" ); FileChannel channel = file.getChannel())
+		{
+			final long size = channel.size();
+			if ( size < HEADER_SIZE ) { throw new IOException( path + " is truncated (no header)." ); }
+
+			byte[] headerBytes = new byte[ HEADER_SIZE ];
+			file.readFully( headerBytes );
+			ByteBuffer header = ByteBuffer.wrap( headerBytes );
+
+			if ( header.getInt( 0 ) != MAGIC ) { throw new IOException( path + " is not a binary transformation file." ); }
+			if ( header.getInt( 4 ) != VERSION ) { throw new IOException( "Unsupported version " + header.getInt( 4 ) + " of " + path ); }
+
+			final int count = header.getInt( 12 );
+			final long indexOffset = header.getLong( 16 );
+			if ( count < 0 || indexOffset != HEADER_SIZE + ( long ) count * RECORD_SIZE ) { throw new IOException( path + " has an invalid header (incompletely written?)." ); }
+
+			final long expectedSize = indexOffset + ( long ) count * INDEX_ENTRY_SIZE;
+			if ( size < expectedSize ) { throw new IOException( path + " is truncated (" + size + " of " + expectedSize + " bytes)." ); }
+			if ( expectedSize > Integer.MAX_VALUE ) { throw new IOException( path + " is too large to be mapped." ); }
+
+			ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, expectedSize );
+
+			for ( int i = 0; i < count; i++ )
+			{
+				final int code = buffer.getInt( HEADER_SIZE + i * RECORD_SIZE );
+				if ( toTransformation( code ) == null ) { throw new IOException( "Unknown transformation code " + code + " in record " + i + " of " + path ); }
+
+				final long entry = buffer.getLong( ( int ) indexOffset + i * INDEX_ENTRY_SIZE );
+				if ( ( int ) entry < 0 || ( int ) entry >= count ) { throw new IOException( "Invalid index entry " + i + " of " + path ); }
+			}
+
+			return buffer;
+		}
+	}
+
+	/**
+	 * Parses a legacy text file into the binary layout.
+	 */
+	private static ByteBuffer parseText( String path ) throws IOException
+	{
+		try (BufferedReader reader = new BufferedReader( new FileReader( path ) ))
+		{
+			String line = reader.readLine();
+			if ( line == null || !line.trim().equals( TEXT_HEADER ) ) { throw new IOException( path + " is not a MultiStackReg transformation file." ); }
+
+			// File version
+			reader.readLine();
+			final boolean twoStackAlign = Integer.parseInt( reader.readLine().trim() ) == 1;
+
+			BinaryBuilder builder = new BinaryBuilder( twoStackAlign );
+			while ( ( line = nextNonEmptyLine( reader ) ) != null )
+			{
+				final Transformation transformation = Transformation.valueOf( line );
+
+				line = nextNonEmptyLine( reader );
+				final int targetSeparator = line.indexOf( "Target img:" );
+				final int sourceIndex = Integer.parseInt( line.substring( line.indexOf( ':' ) + 1, targetSeparator ).trim() );
+				final int targetIndex = Integer.parseInt( line.substring( targetSeparator + 11 ).trim() );
+
+				double[][] sourcePoints = readPoints( reader );
+				double[][] targetPoints = readPoints( reader );
+
+				builder.add( new Record( transformation, sourceIndex, targetIndex, sourcePoints, targetPoints ) );
+			}
+
+			return builder.build();
+		}
+	}
+
+	private static String nextNonEmptyLine( BufferedReader reader ) throws IOException
+	{
+		String line;
+		while ( ( line = reader.readLine() ) != null )
+		{
+			line = line.trim();
+			if ( !line.isEmpty() ) { return line; }
+		}
+
+		return null;
+	}
+
+	private static double[][] readPoints( BufferedReader reader ) throws IOException
+	{
+		double[][] points = new double[ 3 ][ 2 ];
+		for ( int i = 0; i < 3; i++ )
+		{
+			final String line = nextNonEmptyLine( reader );
+			if ( line == null ) { throw new IOException( "Unexpected end of transformation file." ); }
+
+			final int separatorIndex = line.indexOf( '\t' );
+			points[ i ][ 0 ] = Double.parseDouble( line.substring( 0, separatorIndex ).trim() );
+			points[ i ][ 1 ] = Double.parseDouble( line.substring( separatorIndex ).trim() );
+		}
+
+		return points;
+	}
+
+	/*
+	 * Binary layout
+	 */
+
+	/**
+	 * @return the code of {@code transformation} in the binary format (stable
+	 *         across reorderings of {@link Transformation})
+	 */
+	private static int toCode( Transformation transformation )
+	{
+		switch ( transformation )
+		{
+		case TRANSLATION:
+			return 0;
+		case RIGID_BODY:
+			return 1;
+		case SCALED_ROTATION:
+			return 2;
+		case AFFINE:
+			return 3;
+		case PHASE_CORRELATION:
+			return 4;
+		default:
+			throw new IllegalArgumentException( "No code for " + transformation );
+		}
+	}
+
+	/**
+	 * @return the {@link Transformation} of a code in the binary format or
+	 *         {@code null} for an unknown code
+	 */
+	private static Transformation toTransformation( int code )
+	{
+		for ( Transformation transformation : Transformation.values() )
+		{
+			if ( toCode( transformation ) == code ) { return transformation; }
+		}
+
+		return null;
+	}
+
+	private static void putRecord( ByteBuffer buffer, Record record )
+	{
+		buffer.putInt( toCode( record.getTransformation() ) );
+		buffer.putInt( record.getSourceIndex() );
+		buffer.putInt( record.getTargetIndex() );
+		for ( double[] point : record.getSourcePoints() )
+		{
+			buffer.putDouble( point[ 0 ] ).putDouble( point[ 1 ] );
+		}
+		for ( double[] point : record.getTargetPoints() )
+		{
+			buffer.putDouble( point[ 0 ] ).putDouble( point[ 1 ] );
+		}
+	}
+
+	private static Record getRecord( ByteBuffer buffer, int number )
+	{
+		int offset = HEADER_SIZE + number * RECORD_SIZE;
+
+		// NB: codes of mapped files have been validated by mapBinary
+		final Transformation transformation = toTransformation( buffer.getInt( offset ) );
+		final int sourceIndex = buffer.getInt( offset + 4 );
+		final int targetIndex = buffer.getInt( offset + 8 );
+		offset += 12;
+
+		double[][] sourcePoints = new double[ 3 ][ 2 ];
+		double[][] targetPoints = new double[ 3 ][ 2 ];
+		for ( double[][] points : new double[][][] { sourcePoints, targetPoints } )
+		{
+			for ( int i = 0; i < 3; i++, offset += 16 )
+			{
+				points[ i ][ 0 ] = buffer.getDouble( offset );
+				points[ i ][ 1 ] = buffer.getDouble( offset + 8 );
+			}
+		}
+
+		return new Record( transformation, sourceIndex, targetIndex, sourcePoints, targetPoints );
+	}
+
+	/**
+	 * Sorts the (source slice, record number) pairs by slice and encodes them
+	 * as {@code long}s such that they can be sorted as primitives.
+	 */
+	private static long[] sortIndex( int[] slices, int count )
+	{
+		long[] index = new long[ count ];
+		for ( int i = 0; i < count; i++ )
+		{
+			index[ i ] = ( ( long ) slices[ i ] << 32 ) | i;
+		}
+		Arrays.sort( index );
+
+		return index;
+	}
+
+	/**
+	 * Collects records in memory (used for parsing text files).
+	 */
+	private static class BinaryBuilder
+	{
+
+		private final boolean twoStackAlign;
+
+		private ByteBuffer records = ByteBuffer.allocate( 64 * RECORD_SIZE );
+
+		private int[] slices = new int[ 64 ];
+
+		private int count;
+
+		BinaryBuilder( boolean twoStackAlign )
+		{
+			this.twoStackAlign = twoStackAlign;
+		}
+
+		void add( Record record )
+		{
+			if ( count == slices.length )
+			{
+				slices = Arrays.copyOf( slices, 2 * count );
+				ByteBuffer grown = ByteBuffer.allocate( 2 * records.capacity() );
+				records.flip();
+				grown.put( records );
+				records = grown;
+			}
+
+			putRecord( records, record );
+			slices[ count++ ] = record.getSourceIndex();
+		}
+
+		ByteBuffer build()
+		{
+			final int indexOffset = HEADER_SIZE + count * RECORD_SIZE;
+			ByteBuffer buffer = ByteBuffer.allocate( indexOffset + count * INDEX_ENTRY_SIZE );
+			buffer.putInt( MAGIC ).putInt( VERSION ).putInt( twoStackAlign ? 1 : 0 ).putInt( count ).putLong( indexOffset );
+
+			records.flip();
+			buffer.put( records );
+
+			for ( long entry : sortIndex( slices, count ) )
+			{
+				buffer.putLong( entry );
+			}
+
+			return buffer;
+		}
+
+	}
+
+	/**
+	 * One transformation of a slice, represented by two sets of landmarks.
+	 */
+	public static class Record
+	{
+
+		private final Transformation transformation;
+
+		private final int sourceIndex;
+
+		private final int targetIndex;
+
+		private final double[][] sourcePoints;
+
+		private final double[][] targetPoints;
+
+		/**
+		 * @param transformation
+		 *            {@link Transformation} that has been estimated
+		 * @param sourceIndex
+		 *            index of the transformed slice
+		 * @param targetIndex
+		 *            index of the reference slice
+		 * @param sourcePoints
+		 *            3x2 landmarks in the source
+		 * @param targetPoints
+		 *            3x2 landmarks in the target
+		 */
+		public Record( Transformation transformation, int sourceIndex, int targetIndex, double[][] sourcePoints, double[][] targetPoints )
+		{
+			this.transformation = transformation;
+			this.sourceIndex = sourceIndex;
+			this.targetIndex = targetIndex;
+			this.sourcePoints = sourcePoints;
+			this.targetPoints = targetPoints;
+		}
+
+		public Transformation getTransformation()
+		{
+			return transformation;
+		}
+
+		public int getSourceIndex()
+		{
+			return sourceIndex;
+		}
+
+		public int getTargetIndex()
+		{
+			return targetIndex;
+		}
+
+		public double[][] getSourcePoints()
+		{
+			return sourcePoints;
+		}
+
+		public double[][] getTargetPoints()
+		{
+			return targetPoints;
+		}
+
+	}
+
+	/**
+	 * Reads the records of a file, either sequentially (in the order they
+	 * have been written) or by index.
+	 */
+	public static class Reader implements Closeable
+	{
+
+		private final ByteBuffer buffer;
+
+		private final int count;
+
+		private final int indexOffset;
+
+		private int next;
+
+		private Reader( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+			this.count = buffer.getInt( 12 );
+			this.indexOffset = ( int ) buffer.getLong( 16 );
+		}
+
+		/**
+		 * @return {@code true} if the transformations align two stacks
+		 */
+		public boolean isTwoStackAlign()
+		{
+			return buffer.getInt( 8 ) == 1;
+		}
+
+		/**
+		 * @return the number of records
+		 */
+		public int size()
+		{
+			return count;
+		}
+
+		/**
+		 * @param number
+		 *            (0-based) position of the record in the file
+		 * @return the {@link Record}
+		 */
+		public Record get( int number )
+		{
+			if ( number < 0 || number >= count ) { throw new IndexOutOfBoundsException( "Record " + number + " of " + count ); }
+
+			return getRecord( buffer, number );
+		}
+
+		/**
+		 * Looks up the first record of a source slice in the index.
+		 *
+		 * @param sourceIndex
+		 *            index of the transformed slice
+		 * @return the {@link Record} or {@code null} if there is none
+		 */
+		public Record find( int sourceIndex )
+		{
+			// First entry whose slice is not smaller than sourceIndex
+			int low = 0;
+			int high = count;
+			while ( low < high )
+			{
+				final int middle = ( low + high ) >>> 1;
+				if ( indexEntry( middle ) >> 32 < sourceIndex )
+				{
+					low = middle + 1;
+				}
+				else
+				{
+					high = middle;
+				}
+			}
+
+			if ( low < count && indexEntry( low ) >> 32 == sourceIndex ) { return getRecord( buffer, ( int ) indexEntry( low ) ); }
+
+			return null;
+		}
+
+		private long indexEntry( int i )
+		{
+			return buffer.getLong( indexOffset + i * INDEX_ENTRY_SIZE );
+		}
+
+		/**
+		 * @return {@code true} if {@link #next()} has more records
+		 */
+		public boolean hasNext()
+		{
+			return next < count;
+		}
+
+		/**
+		 * @return the next record in the order of the file
+		 */
+		public Record next()
+		{
+			return get( next++ );
+		}
+
+		@Override
+		public void close()
+		{
+			// NB: mapped buffers are released by the garbage collector
+		}
+
+	}
+
+	/**
+	 * Appends records to a file. Records are buffered and the file is
+	 * finished by {@link #close()}.
+	 */
+	public static abstract class Writer implements Closeable
+	{
+
+		/**
+		 * Appends a record.
+		 *
+		 * @param record
+		 *            {@link Record} to append
+		 * @throws IOException
+		 *             if the record cannot be written
+		 */
+		public abstract void write( Record record ) throws IOException;
+
+	}
+
+	private static class BinaryWriter extends Writer
+	{
+
+		private final String path;
+
+		private final DataOutputStream out;
+
+		private int[] slices = new int[ 64 ];
+
+		private int count;
+
+		BinaryWriter( String path, boolean twoStackAlign ) throws IOException
+		{
+			this.path = path;
+			this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( path ) ) );
+
+			// Number of records and index offset are written by close()
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( twoStackAlign ? 1 : 0 );
+			out.writeInt( 0 );
+			out.writeLong( 0 );
+		}
+
+		@Override
+		public void write( Record record ) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.allocate( RECORD_SIZE );
+			putRecord( buffer, record );
+			out.write( buffer.array() );
+
+			if ( count == slices.length )
+			{
+				slices = Arrays.copyOf( slices, 2 * count );
+			}
+			slices[ count++ ] = record.getSourceIndex();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				for ( long entry : sortIndex( slices, count ) )
+				{
+					out.writeLong( entry );
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			try (RandomAccessFile file = new RandomAccessFile( path, "rw" ))
+			{
+				file.seek( 12 );
+				file.writeInt( count );
+				file.writeLong( HEADER_SIZE + ( long ) count * RECORD_SIZE );
+			}
+		}
+
+	}
+
+	private static class TextWriter extends Writer
+	{
+
+		private final BufferedWriter out;
+
+		TextWriter( String path, boolean twoStackAlign ) throws IOException
+		{
+			this.out = new BufferedWriter( new FileWriter( path ) );
+
+			out.write( TEXT_HEADER + "\n" );
+			out.write( "File Version 1.0\n" );
+			out.write( ( twoStackAlign ? "1" : "0" ) + "\n" );
+		}
+
+		@Override
+		public void write( Record record ) throws IOException
+		{
+			out.write( record.getTransformation().name() + "\n" );
+			out.write( "Source img: " + record.getSourceIndex() + " Target img: " + record.getTargetIndex() + "\n" );
+			for ( double[] point : record.getSourcePoints() )
+			{
+				out.write( point[ 0 ] + "\t" + point[ 1 ] + "\n" );
+			}
+			out.write( "\n" );
+			for ( double[] point : record.getTargetPoints() )
+			{
+				out.write( point[ 0 ] + "\t" + point[ 1 ] + "\n" );
+			}
+			out.write( "\n" );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,380 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The transformations of a series of slices in primitive arrays, i.e. the
+ * slice indices in ascending order and six values (the first two rows of the
+ * homogeneous matrix) per slice.
+ * <p>
+ * Tables are read from the files saved by {@link MultiStackReg_} (the
+ * transformations are accumulated as in {@link Compress_Matrices}) and are
+ * composed slice by slice. Composition is computed directly on the matrices in
+ * a parallel pass, i.e. landmark equations are only solved once per record
+ * when a file is read. Hence, any number of registration passes can be
+ * combined without user interaction:
+ * </p>
+ *
+ * <pre>
+ * TransformTable.compose( Arrays.asList( TransformTable.read( first ), TransformTable.read( second ) ) ).write( output );
+ * </pre>
+ *
+ * @author Stefan Helfrich
+ */
+public class TransformTable
+{
+
+	private final int[] indices;
+
+	private final double[] matrices;
+
+	private final double[][] landmarks;
+
+	/**
+	 * @param indices
+	 *            slice indices in strictly ascending order
+	 * @param matrices
+	 *            first two rows of the matrix of each slice (six values per
+	 *            slice)
+	 * @param landmarks
+	 *            three non-collinear points that represent the transformations
+	 *            when the table is written
+	 */
+	public TransformTable( int[] indices, double[] matrices, double[][] landmarks )
+	{
+		if ( matrices.length != 6 * indices.length ) { throw new IllegalArgumentException( "Expected six values per slice." ); }
+
+		this.indices = indices;
+		this.matrices = matrices;
+		this.landmarks = landmarks;
+	}
+
+	/**
+	 * Reads a file of {@link TransformFile} (binary or text).
+	 * <p>
+	 * Unless the file aligns two stacks, the transformations are accumulated
+	 * in the order of the file, i.e. from the target slice towards the first
+	 * slice and, after the change of direction, towards the last slice. If a
+	 * slice occurs more than once, its first transformation is used.
+	 * </p>
+	 *
+	 * @param path
+	 *            path of the file
+	 * @return the transformation of each slice
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the file contains transformations other than
+	 *             {@link Transformation#RIGID_BODY} and
+	 *             {@link Transformation#AFFINE}
+	 */
+	public static TransformTable read( String path ) throws IOException
+	{
+		try (TransformFile.Reader reader = TransformFile.open( path ))
+		{
+			final int size = reader.size();
+			final boolean twoStackAlign = reader.isTwoStackAlign();
+			final int[] indices = new int[ size ];
+			final double[] matrices = new double[ 6 * size ];
+			double[][] landmarks = null;
+
+			double[] global = { 1.0, 0.0, 0.0, 0.0, 1.0, 0.0 };
+			boolean forward = false;
+
+			for ( int n = 0; n < size; n++ )
+			{
+				final TransformFile.Record record = reader.get( n );
+				final Transformation transformation = record.getTransformation();
+				final double[] local;
+				switch ( transformation )
+				{
+				case RIGID_BODY:
+					local = solveRigidBody( record.getSourcePoints(), record.getTargetPoints() );
+					break;
+				case AFFINE:
+					local = solveAffine( record.getSourcePoints(), record.getTargetPoints() );
+					break;
+				default:
+					throw new IllegalArgumentException( "Unsupported transformation " + transformation + " in " + path );
+				}
+
+				if ( landmarks == null )
+				{
+					landmarks = landmarks( record.getSourcePoints(), transformation );
+				}
+
+				final int index = record.getSourceIndex();
+				if ( !forward && !twoStackAlign && 1 < index && index > record.getTargetIndex() )
+				{
+					// At the halfway point in the stack, we need to reset the
+					// global matrix
+					global = new double[] { 1.0, 0.0, 0.0, 0.0, 1.0, 0.0 };
+					forward = true;
+				}
+
+				indices[ n ] = index;
+				if ( twoStackAlign )
+				{
+					System.arraycopy( local, 0, matrices, 6 * n, 6 );
+				}
+				else
+				{
+					multiply( local, 0, global, 0, matrices, 6 * n );
+					global = Arrays.copyOfRange( matrices, 6 * n, 6 * n + 6 );
+				}
+			}
+
+			return sorted( indices, matrices, ( landmarks == null ) ? landmarks( null, Transformation.AFFINE ) : landmarks );
+		}
+	}
+
+	/**
+	 * Composes a chain of tables, i.e. the first table is applied first.
+	 *
+	 * @param tables
+	 *            at least one {@link TransformTable}
+	 * @return the composition of all {@code tables}
+	 * @see #compose(TransformTable)
+	 */
+	public static TransformTable compose( List< TransformTable > tables )
+	{
+		TransformTable result = tables.get( 0 );
+		for ( int t = 1; t < tables.size(); t++ )
+		{
+			result = result.compose( tables.get( t ) );
+		}
+
+		return result;
+	}
+
+	/**
+	 * Composes this table with {@code next} slice by slice. If a slice occurs
+	 * in both tables, the result is {@code next * this}. Otherwise, the
+	 * transformation of the table that contains the slice is used. The
+	 * landmarks of this table are retained.
+	 *
+	 * @param next
+	 *            transformations that are applied after this table
+	 * @return a new {@link TransformTable}
+	 */
+	public TransformTable compose( final TransformTable next )
+	{
+		// Merge the (sorted) indices
+		final int[] merged = new int[ indices.length + next.indices.length ];
+		final int[] first = new int[ merged.length ];
+		final int[] second = new int[ merged.length ];
+		int size = 0;
+		for ( int a = 0, b = 0; a < indices.length || b < next.indices.length; size++ )
+		{
+			final int indexA = ( a < indices.length ) ? indices[ a ] : Integer.MAX_VALUE;
+			final int indexB = ( b < next.indices.length ) ? next.indices[ b ] : Integer.MAX_VALUE;
+			merged[ size ] = Math.min( indexA, indexB );
+			first[ size ] = ( indexA <= indexB ) ? a++ : -1;
+			second[ size ] = ( indexB <= indexA ) ? b++ : -1;
+		}
+
+		final double[] composed = new double[ 6 * size ];
+		IntStream.range( 0, size ).parallel().forEach( n -> {
+			if ( first[ n ] < 0 )
+			{
+				System.arraycopy( next.matrices, 6 * second[ n ], composed, 6 * n, 6 );
+			}
+			else if ( second[ n ] < 0 )
+			{
+				System.arraycopy( matrices, 6 * first[ n ], composed, 6 * n, 6 );
+			}
+			else
+			{
+				multiply( next.matrices, 6 * second[ n ], matrices, 6 * first[ n ], composed, 6 * n );
+			}
+		} );
+
+		return new TransformTable( Arrays.copyOf( merged, size ), composed, landmarks );
+	}
+
+	/**
+	 * Writes an {@link Transformation#AFFINE} record for each slice, i.e. the
+	 * landmarks of the table and their transformed positions. The file is
+	 * marked as a two-stack alignment, i.e. the transformations are not
+	 * accumulated again when it is read.
+	 *
+	 * @param path
+	 *            path of the file (text for {@code .txt}, binary otherwise)
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write( String path ) throws IOException
+	{
+		try (TransformFile.Writer writer = TransformFile.createWriter( path, true ))
+		{
+			for ( int n = 0; n < indices.length; n++ )
+			{
+				final double[][] target = new double[ 3 ][ 2 ];
+				for ( int i = 0; i < 3; i++ )
+				{
+					target[ i ][ 0 ] = matrices[ 6 * n ] * landmarks[ i ][ 0 ] + matrices[ 6 * n + 1 ] * landmarks[ i ][ 1 ] + matrices[ 6 * n + 2 ];
+					target[ i ][ 1 ] = matrices[ 6 * n + 3 ] * landmarks[ i ][ 0 ] + matrices[ 6 * n + 4 ] * landmarks[ i ][ 1 ] + matrices[ 6 * n + 5 ];
+				}
+				writer.write( new TransformFile.Record( Transformation.AFFINE, indices[ n ], indices[ n ], landmarks, target ) );
+			}
+		}
+	}
+
+	/**
+	 * @return the number of slices
+	 */
+	public int size()
+	{
+		return indices.length;
+	}
+
+	/**
+	 * @param n
+	 *            position in the table
+	 * @return the index of the {@code n}-th slice
+	 */
+	public int getIndex( int n )
+	{
+		return indices[ n ];
+	}
+
+	/**
+	 * @param n
+	 *            position in the table
+	 * @return the homogeneous matrix of the {@code n}-th slice
+	 */
+	public double[][] getTransform( int n )
+	{
+		final int offset = 6 * n;
+
+		return new double[][] { //
+				{ matrices[ offset ], matrices[ offset + 1 ], matrices[ offset + 2 ] }, //
+				{ matrices[ offset + 3 ], matrices[ offset + 4 ], matrices[ offset + 5 ] }, //
+				{ 0.0, 0.0, 1.0 } };
+	}
+
+	/**
+	 * @return the landmarks that represent the transformations in a file
+	 */
+	public double[][] getLandmarks()
+	{
+		return landmarks;
+	}
+
+	/**
+	 * Sorts the entries by slice index (stable, the first occurrence of a
+	 * slice is kept).
+	 */
+	private static TransformTable sorted( int[] indices, double[] matrices, double[][] landmarks )
+	{
+		final long[] keys = new long[ indices.length ];
+		for ( int n = 0; n < keys.length; n++ )
+		{
+			keys[ n ] = ( ( long ) indices[ n ] << 32 ) | n;
+		}
+		Arrays.sort( keys );
+
+		final int[] sortedIndices = new int[ keys.length ];
+		final double[] sortedMatrices = new double[ matrices.length ];
+		int size = 0;
+		for ( int k = 0; k < keys.length; k++ )
+		{
+			final int n = ( int ) keys[ k ];
+			if ( size > 0 && sortedIndices[ size - 1 ] == indices[ n ] )
+			{
+				continue;
+			}
+			sortedIndices[ size ] = indices[ n ];
+			System.arraycopy( matrices, 6 * n, sortedMatrices, 6 * size, 6 );
+			size++;
+		}
+
+		return new TransformTable( Arrays.copyOf( sortedIndices, size ), Arrays.copyOf( sortedMatrices, 6 * size ), landmarks );
+	}
+
+	/**
+	 * Multiplies two affine matrices (six values each), i.e. {@code c = a * b}.
+	 */
+	private static void multiply( double[] a, int offsetA, double[] b, int offsetB, double[] c, int offsetC )
+	{
+		final double a11 = a[ offsetA ], a12 = a[ offsetA + 1 ], a13 = a[ offsetA + 2 ];
+		final double a21 = a[ offsetA + 3 ], a22 = a[ offsetA + 4 ], a23 = a[ offsetA + 5 ];
+		final double b11 = b[ offsetB ], b12 = b[ offsetB + 1 ], b13 = b[ offsetB + 2 ];
+		final double b21 = b[ offsetB + 3 ], b22 = b[ offsetB + 4 ], b23 = b[ offsetB + 5 ];
+
+		c[ offsetC ] = a11 * b11 + a12 * b21;
+		c[ offsetC + 1 ] = a11 * b12 + a12 * b22;
+		c[ offsetC + 2 ] = a11 * b13 + a12 * b23 + a13;
+		c[ offsetC + 3 ] = a21 * b11 + a22 * b21;
+		c[ offsetC + 4 ] = a21 * b12 + a22 * b22;
+		c[ offsetC + 5 ] = a21 * b13 + a22 * b23 + a23;
+	}
+
+	/**
+	 * Solves for the affine transformation that maps three source landmarks
+	 * to three target landmarks.
+	 */
+	private static double[] solveAffine( double[][] source, double[][] target )
+	{
+		final double x0 = source[ 0 ][ 0 ], y0 = source[ 0 ][ 1 ];
+		final double dx1 = source[ 1 ][ 0 ] - x0, dy1 = source[ 1 ][ 1 ] - y0;
+		final double dx2 = source[ 2 ][ 0 ] - x0, dy2 = source[ 2 ][ 1 ] - y0;
+		final double det = dx1 * dy2 - dx2 * dy1;
+		if ( det == 0.0 ) { throw new IllegalArgumentException( "Landmarks of an affine transformation must not be collinear." ); }
+
+		final double[] matrix = new double[ 6 ];
+		for ( int row = 0; row < 2; row++ )
+		{
+			final double u0 = target[ 0 ][ row ];
+			final double du1 = target[ 1 ][ row ] - u0;
+			final double du2 = target[ 2 ][ row ] - u0;
+			final double a = ( du1 * dy2 - du2 * dy1 ) / det;
+			final double b = ( dx1 * du2 - dx2 * du1 ) / det;
+			matrix[ 3 * row ] = a;
+			matrix[ 3 * row + 1 ] = b;
+			matrix[ 3 * row + 2 ] = u0 - a * x0 - b * y0;
+		}
+
+		return matrix;
+	}
+
+	/**
+	 * Solves for the rigid-body transformation of TurboReg landmarks, i.e.
+	 * the rotation is derived from the second and third landmark and the
+	 * translation from the first one (cf.
+	 * {@link Compress_Matrices#solveRBEQ(double[][], double[][])}).
+	 */
+	private static double[] solveRigidBody( double[][] source, double[][] target )
+	{
+		final double angle = Math.atan2( source[ 2 ][ 0 ] - source[ 1 ][ 0 ], source[ 2 ][ 1 ] - source[ 1 ][ 1 ] ) - Math.atan2( target[ 2 ][ 0 ] - target[ 1 ][ 0 ], target[ 2 ][ 1 ] - target[ 1 ][ 1 ] );
+		final double c = Math.cos( angle );
+		final double s = Math.sin( angle );
+
+		return new double[] { //
+				c, -s, target[ 0 ][ 0 ] - c * source[ 0 ][ 0 ] + s * source[ 0 ][ 1 ], //
+				s, c, target[ 0 ][ 1 ] - s * source[ 0 ][ 0 ] - c * source[ 0 ][ 1 ] };
+	}
+
+	/**
+	 * Derives non-collinear landmarks from the source landmarks of the first
+	 * record (the landmarks of a rigid-body transformation are collinear).
+	 */
+	private static double[][] landmarks( double[][] points, Transformation transformation )
+	{
+		if ( points == null ) { return new double[][] { { 250.0, 250.0 }, { 500.0, 750.0 }, { 750.0, 250.0 } }; }
+
+		final double[][] landmarks = { points[ 0 ].clone(), points[ 1 ].clone(), points[ 2 ].clone() };
+		if ( transformation == Transformation.RIGID_BODY )
+		{
+			landmarks[ 1 ][ 0 ] *= 0.5;
+			landmarks[ 2 ][ 0 ] *= 1.5;
+			landmarks[ 1 ][ 1 ] = landmarks[ 2 ][ 1 ];
+		}
+
+		return landmarks;
+	}
+
+}
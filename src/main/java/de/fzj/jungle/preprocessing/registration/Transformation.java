@@ -0,0 +1,41 @@
+package de.fzj.jungle.preprocessing.registration;
+
+/**
+ * Types of transformations that are estimated by an {@link ImageRegistration}.
+ *
+ * @author Stefan Helfrich
+ */
+public enum Transformation
+{
+
+	/** Shift in x and y. */
+	TRANSLATION( 2 ),
+
+	/** Rotation about the image center and translation. */
+	RIGID_BODY( 3 ),
+
+	/** Isotropic scaling, rotation, and translation. */
+	SCALED_ROTATION( 4 ),
+
+	/** Arbitrary linear transformation and translation. */
+	AFFINE( 6 ),
+
+	/** Shift in x and y, estimated by {@link PhaseCorrelation}. */
+	PHASE_CORRELATION( 2 );
+
+	private final int numParameters;
+
+	private Transformation( int numParameters )
+	{
+		this.numParameters = numParameters;
+	}
+
+	/**
+	 * @return the number of degrees of freedom
+	 */
+	public int getNumParameters()
+	{
+		return numParameters;
+	}
+
+}
@@ -0,0 +1,212 @@
+package de.fzj.jungle.preprocessing.registration;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A virtual stack that transforms the slices of a multi-channel time series
+ * when they are accessed.
+ * <p>
+ * Only a reference to the source stack and a table of affine transformations
+ * (six values per frame) are kept. All channels of a frame, i.e.
+ * {@code nChannels} consecutive slices, share one transformation. Slices are
+ * transformed by {@link ImageWarp} on demand and the most recently used slices
+ * are cached. Hence, stacks can be registered without holding a second copy in
+ * memory.
+ * </p>
+ * <p>
+ * Changes to a returned {@link ImageProcessor} are lost once it is evicted
+ * from the cache. Transformations that apply to all frames (e.g. a rotation)
+ * have to be added with {@link #concatenate(double[][])} instead.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class TransformedVirtualStack extends VirtualStack
+{
+
+	/** Default number of transformed slices that are cached. */
+	public static final int DEFAULT_CACHE_SIZE = 32;
+
+	/* Private fields */
+	private final ImageStack source;
+
+	private final int nChannels;
+
+	private final double[] transforms;
+
+	private final Map< Integer, ImageProcessor > cache;
+
+	/**
+	 * Constructs a {@link TransformedVirtualStack} with the identity
+	 * transformation for all frames.
+	 *
+	 * @param source
+	 *            {@link ImageStack} that is transformed
+	 * @param nChannels
+	 *            number of consecutive slices that form a frame
+	 * @param cacheSize
+	 *            maximum number of transformed slices that are cached
+	 */
+	public TransformedVirtualStack( ImageStack source, int nChannels, final int cacheSize )
+	{
+		super( source.getWidth(), source.getHeight(), source.getColorModel(), null );
+
+		this.source = source;
+		this.nChannels = nChannels;
+		this.transforms = new double[ 6 * ( ( source.getSize() + nChannels - 1 ) / nChannels ) ];
+		for ( int offset = 0; offset < transforms.length; offset += 6 )
+		{
+			transforms[ offset ] = 1.0;
+			transforms[ offset + 4 ] = 1.0;
+		}
+
+		this.cache = new LinkedHashMap< Integer, ImageProcessor >( 16, 0.75f, true )
+		{
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< Integer, ImageProcessor > eldest )
+			{
+				return size() > cacheSize;
+			}
+
+		};
+	}
+
+	/**
+	 * @return the number of frames
+	 */
+	public int getNFrames()
+	{
+		return transforms.length / 6;
+	}
+
+	/**
+	 * @param frame
+	 *            (0-based) frame number
+	 * @return the transformation matrix from result to source coordinates
+	 */
+	public synchronized double[][] getTransform( int frame )
+	{
+		final int offset = 6 * frame;
+
+		return new double[][] { //
+				{ transforms[ offset ], transforms[ offset + 1 ], transforms[ offset + 2 ] }, //
+				{ transforms[ offset + 3 ], transforms[ offset + 4 ], transforms[ offset + 5 ] }, //
+				{ 0.0, 0.0, 1.0 } };
+	}
+
+	/**
+	 * Sets the transformation of all channels of a frame.
+	 *
+	 * @param frame
+	 *            (0-based) frame number
+	 * @param matrix
+	 *            homogeneous transformation from result to source coordinates
+	 *            (only the first two rows are used)
+	 */
+	public synchronized void setTransform( int frame, double[][] matrix )
+	{
+		final int offset = 6 * frame;
+		System.arraycopy( matrix[ 0 ], 0, transforms, offset, 3 );
+		System.arraycopy( matrix[ 1 ], 0, transforms, offset + 3, 3 );
+
+		for ( int n = frame * nChannels + 1; n <= ( frame + 1 ) * nChannels; n++ )
+		{
+			cache.remove( n );
+		}
+	}
+
+	/**
+	 * Applies an additional transformation to all frames, i.e. slice
+	 * {@code n} becomes {@code previous(n)(matrix * x)}.
+	 *
+	 * @param matrix
+	 *            homogeneous transformation from result to previous
+	 *            coordinates
+	 */
+	public synchronized void concatenate( double[][] matrix )
+	{
+		for ( int offset = 0; offset < transforms.length; offset += 6 )
+		{
+			for ( int row = 0; row < 2; row++ )
+			{
+				final double a = transforms[ offset + 3 * row ];
+				final double b = transforms[ offset + 3 * row + 1 ];
+				final double c = transforms[ offset + 3 * row + 2 ];
+				for ( int column = 0; column < 3; column++ )
+				{
+					transforms[ offset + 3 * row + column ] = a * matrix[ 0 ][ column ] + b * matrix[ 1 ][ column ] + ( ( column == 2 ) ? c : 0.0 );
+				}
+			}
+		}
+
+		cache.clear();
+	}
+
+	/**
+	 * Returns the transformed slice {@code n}. The result is cached, i.e.
+	 * subsequent calls may return the same instance.
+	 */
+	@Override
+	public ImageProcessor getProcessor( int n )
+	{
+		double[][] matrix;
+		synchronized ( this )
+		{
+			ImageProcessor cached = cache.get( n );
+			if ( cached != null ) { return cached; }
+
+			matrix = getTransform( ( n - 1 ) / nChannels );
+		}
+
+		// NB: transform outside of the lock, concurrent requests for the same
+		// slice only cost time
+		ImageProcessor ip = source.getProcessor( n );
+		ImageProcessor transformed = isIdentity( matrix ) ? ip.duplicate() : ImageWarp.warp( ip, matrix, ImageProcessor.BICUBIC );
+
+		synchronized ( this )
+		{
+			cache.put( n, transformed );
+		}
+
+		return transformed;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return source.getSize();
+	}
+
+	@Override
+	public String getSliceLabel( int n )
+	{
+		return source.getSliceLabel( n );
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return source.getBitDepth();
+	}
+
+	@Override
+	public void deleteSlice( int n )
+	{
+		throw new UnsupportedOperationException( "Slices of a transformed stack cannot be deleted." );
+	}
+
+	private static boolean isIdentity( double[][] matrix )
+	{
+		return Arrays.equals( matrix[ 0 ], new double[] { 1.0, 0.0, 0.0 } ) && Arrays.equals( matrix[ 1 ], new double[] { 0.0, 1.0, 0.0 } );
+	}
+
+}
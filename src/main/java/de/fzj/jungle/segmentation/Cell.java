@@ -4,6 +4,7 @@
 package de.fzj.jungle.segmentation;
 
 import java.awt.Polygon;
+import java.awt.geom.Rectangle2D;
 import java.io.Serializable;
 import java.util.Set;
 
@@ -11,9 +12,7 @@ import fiji.plugin.trackmate.Spot;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 /**
  * This class implements a cell that consists mainly of a contour and an inside
@@ -34,12 +33,6 @@ public class Cell extends Spot implements Serializable
 	 */
 	private static final long serialVersionUID = 4033611990090130567L;
 
-	/**
-	 * Counter for unique identifiers of cells. Increased at creation of a
-	 * <code>Cell</code> object.
-	 */
-	private static int cellIdCounter = 0;
-
 	/*
 	 * PRIVATE FIELDS
 	 */
@@ -47,6 +40,9 @@ public class Cell extends Spot implements Serializable
 	/** Unique (integer) identifier for a cell. */
 	private int cellId;
 
+	/** Allocator of {@link #cellId} that is passed on to derived cells. */
+	private transient CellIdAllocator idAllocator;
+
 	/** The cell contour. */
 	private Polygon contour;
 
@@ -64,12 +60,32 @@ public class Cell extends Spot implements Serializable
 	private Calibration calibration;
 
 	/**
-	 * Constructs a {@link Cell}.
+	 * Cached geometric descriptors of {@link #cellRoi}. Computed lazily and
+	 * reset whenever the outline changes. Since {@link CellGeometry} is
+	 * immutable, concurrent readers at worst compute it more than once.
+	 */
+	private transient volatile CellGeometry geometry;
+
+	/**
+	 * Constructs a {@link Cell} with an identifier from the global
+	 * {@link CellIdAllocator}.
 	 */
 	public Cell()
+	{
+		this( CellIdAllocator.global() );
+	}
+
+	/**
+	 * Constructs a {@link Cell}.
+	 * 
+	 * @param idAllocator
+	 *            {@link CellIdAllocator} that provides the identifier
+	 */
+	public Cell( CellIdAllocator idAllocator )
 	{
 		super( 0d, 0d, 0d, 0d, 0d );
-		this.cellId = Cell.cellIdCounter++;
+		this.idAllocator = idAllocator;
+		this.cellId = idAllocator.next();
 	}
 
 	/**
@@ -85,16 +101,47 @@ public class Cell extends Spot implements Serializable
 	 *            measurements about {@code this}.
 	 */
 	public Cell( Roi cellRoi, ImageProcessor ip, Calibration calibration )
+	{
+		this( cellRoi, ip, calibration, CellIdAllocator.global() );
+	}
+
+	/**
+	 * Constructs a {@link Cell} from a {@link Roi}, an {@link ImageProcessor},
+	 * and a {@link Calibration} taken from an {@link ImagePlus}.
+	 * <p>
+	 * All measurements are derived from {@code cellRoi} only, {@code ip} is
+	 * never modified. Hence, cells that share an {@link ImageProcessor} can be
+	 * constructed concurrently.
+	 * </p>
+	 * 
+	 * @param cellRoi
+	 *            {@link Roi} to associate with the cell.
+	 * @param ip
+	 *            {@link ImageProcessor} with which {@code this} is associated.
+	 * @param calibration
+	 *            {@link Calibration} information that is used for extracting
+	 *            measurements about {@code this}.
+	 * @param idAllocator
+	 *            {@link CellIdAllocator} that provides the identifier
+	 */
+	public Cell( Roi cellRoi, ImageProcessor ip, Calibration calibration, CellIdAllocator idAllocator )
 	{
 		// This will also call a constructor of Spot (with default values)
-		this();
+		this( idAllocator );
 
 		// Set the Cell variables
 		this.cellRoi = cellRoi;
 		this.ip = ip;
 		this.calibration = calibration;
 
-		// Set the Spot variables
+		initSpotFeatures();
+	}
+
+	/**
+	 * Sets the {@link Spot} variables.
+	 */
+	private void initSpotFeatures()
+	{
 		this.setName( cellRoi.getName() );
 
 		double[] centroid = this.computeCentroidArray( calibration );
@@ -122,7 +169,27 @@ public class Cell extends Spot implements Serializable
 	@Deprecated
 	public Cell( Polygon contour, Roi cellRoi, ImageProcessor ip, Calibration calibration )
 	{
-		this( cellRoi, ip, calibration );
+		this( contour, cellRoi, ip, calibration, CellIdAllocator.global() );
+	}
+
+	/**
+	 * Constructs a {@link Cell} that has a {@link Polygon} associated with it.
+	 * 
+	 * @param contour
+	 *            {@link Polygon} associated with {@code this}
+	 * @param cellRoi
+	 *            {@link Roi} to associate with the cell.
+	 * @param ip
+	 *            {@link ImageProcessor} with which {@code this} is associated.
+	 * @param calibration
+	 *            {@link Calibration} information that is used for extracting
+	 *            measurements about {@code this}.
+	 * @param idAllocator
+	 *            {@link CellIdAllocator} that provides the identifier
+	 */
+	public Cell( Polygon contour, Roi cellRoi, ImageProcessor ip, Calibration calibration, CellIdAllocator idAllocator )
+	{
+		this( cellRoi, ip, calibration, idAllocator );
 
 		this.contour = contour;
 	}
@@ -144,6 +211,7 @@ public class Cell extends Spot implements Serializable
 	public void setContour( Polygon contour )
 	{
 		this.contour = contour;
+		this.geometry = null;
 	}
 
 	/**
@@ -161,6 +229,7 @@ public class Cell extends Spot implements Serializable
 	public void setPolygon( Polygon contour )
 	{
 		this.contour = contour;
+		this.geometry = null;
 	}
 
 	/**
@@ -239,18 +308,47 @@ public class Cell extends Spot implements Serializable
 	@SuppressWarnings( "hiding" )
 	public double getEnclosedArea( Calibration calibration )
 	{
-		try
-		{
-			ip.setRoi( cellRoi );
-		}
-		catch ( IllegalArgumentException e )
+		return getGeometry().getArea( calibration );
+	}
+
+	/**
+	 * Computes the length of the outline of {@code this}.
+	 * 
+	 * @param calibration
+	 *            {@link Calibration} used for computing in real world units
+	 * @return The perimeter of {@code this}.
+	 */
+	@SuppressWarnings( "hiding" )
+	public double getPerimeter( Calibration calibration )
+	{
+		return getGeometry().getPerimeter( calibration );
+	}
+
+	/**
+	 * @return the uncalibrated bounding box of {@code this}.
+	 */
+	public Rectangle2D getBounds()
+	{
+		return getGeometry().getBounds();
+	}
+
+	/**
+	 * Provides the geometric descriptors of {@code this}. They are computed
+	 * once from the outline and cached until the outline is changed via
+	 * {@link #setCellRoi(Roi)} or {@link #setPolygon(Polygon)}.
+	 * 
+	 * @return the (uncalibrated) {@link CellGeometry} of {@code this}
+	 */
+	public CellGeometry getGeometry()
+	{
+		CellGeometry g = geometry;
+		if ( g == null )
 		{
-			System.err.println( "Blaaaaa" );
+			g = ( cellRoi != null ) ? CellGeometry.of( cellRoi ) : CellGeometry.of( contour );
+			geometry = g;
 		}
 
-		ImageStatistics stats = ImageStatistics.getStatistics( ip, Measurements.AREA | Measurements.CENTROID, calibration );
-
-		return stats.area;
+		return g;
 	}
 
 	/**
@@ -287,35 +385,15 @@ public class Cell extends Spot implements Serializable
 	@SuppressWarnings( "hiding" )
 	public Coordinate computeCentroid( Calibration calibration )
 	{
-		try
-		{
-			ip.setRoi( cellRoi );
-		}
-		catch ( IllegalArgumentException e )
-		{
-			System.err.println( "Blaaaaa" );
-		}
-
-		ImageStatistics stats = ImageStatistics.getStatistics( ip, Measurements.CENTROID, calibration );
+		double[] centroid = computeCentroidArray( calibration );
 
-		return new Coordinate( ( short ) stats.xCentroid, ( short ) stats.yCentroid, ( short ) 0 );
+		return new Coordinate( ( short ) centroid[ 0 ], ( short ) centroid[ 1 ], ( short ) 0 );
 	}
 
 	@SuppressWarnings( "hiding" )
 	public double[] computeCentroidArray( Calibration calibration )
 	{
-		try
-		{
-			ip.setRoi( cellRoi );
-		}
-		catch ( IllegalArgumentException e )
-		{
-			System.err.println( "Blaaaaa" );
-		}
-
-		ImageStatistics stats = ImageStatistics.getStatistics( ip, Measurements.CENTROID, calibration );
-
-		return new double[] { stats.xCentroid, stats.yCentroid, 0d };
+		return getGeometry().getCentroid( calibration, ( ip != null ) ? ip.getHeight() : 0 );
 	}
 
 	/**
@@ -333,6 +411,7 @@ public class Cell extends Spot implements Serializable
 	public void setCellRoi( Roi cellRoi )
 	{
 		this.cellRoi = cellRoi;
+		this.geometry = null;
 	}
 
 	public Calibration getCalibration()
@@ -345,14 +424,23 @@ public class Cell extends Spot implements Serializable
 		return String.format( "C%d", getCellId() );
 	}
 
+	/**
+	 * @return the {@link CellIdAllocator} that provided the identifier of
+	 *         {@code this} (to be used for cells derived from {@code this})
+	 */
+	public CellIdAllocator getIdAllocator()
+	{
+		return ( idAllocator != null ) ? idAllocator : CellIdAllocator.global();
+	}
+
 	public static int getAndIncreaseCellIdCounter()
 	{
-		return Cell.cellIdCounter++;
+		return CellIdAllocator.global().next();
 	}
 
 	public static void initCellIdCounter( int id )
 	{
-		Cell.cellIdCounter = id;
+		CellIdAllocator.global().reset( id );
 	}
 
 	@Override
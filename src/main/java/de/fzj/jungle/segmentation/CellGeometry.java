@@ -0,0 +1,353 @@
+/**
+ * $LICENSE
+ */
+package de.fzj.jungle.segmentation;
+
+import java.awt.Polygon;
+import java.awt.geom.Rectangle2D;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.measure.Calibration;
+import ij.process.FloatPolygon;
+
+/**
+ * Immutable geometric descriptors (area, centroid, bounding box, and perimeter)
+ * of a {@link Cell}.
+ * <p>
+ * All descriptors are computed in a single pass over the vertices of the
+ * outline with the shoelace formula and the corresponding first-order moments.
+ * Hence, no mask has to be rasterized. For outlines that follow pixel edges
+ * (e.g. traced ROIs) the results are identical to pixel-wise measurements.
+ * </p>
+ * <p>
+ * Composite ROIs are interpreted with the even-odd rule: a sub-polygon that
+ * is enclosed by an odd number of other sub-polygons is a hole and its area
+ * is subtracted, independent of the winding of its vertices. Sub-polygons
+ * are assumed not to cross each other (which holds for the sub-paths of a
+ * {@link java.awt.geom.Area}), they may only touch.
+ * </p>
+ * <p>
+ * All values are uncalibrated (in pixels) unless a {@link Calibration} is
+ * passed.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public final class CellGeometry
+{
+
+	/* Private fields */
+	private final double area;
+
+	private final double xCentroid;
+
+	private final double yCentroid;
+
+	private final Rectangle2D bounds;
+
+	private final double perimeter;
+
+	private final FloatPolygon[] polygons;
+
+	private CellGeometry( FloatPolygon... polygons )
+	{
+		this.polygons = polygons;
+
+		double area2 = 0;
+		double cx = 0;
+		double cy = 0;
+		double length = 0;
+
+		double sumX = 0;
+		double sumY = 0;
+		int numVertices = 0;
+
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+
+		for ( int p = 0; p < polygons.length; p++ )
+		{
+			final FloatPolygon polygon = polygons[ p ];
+			final int n = polygon.npoints;
+
+			double polygonArea2 = 0;
+			double polygonCx = 0;
+			double polygonCy = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				int j = ( i + 1 == n ) ? 0 : i + 1;
+
+				double xi = polygon.xpoints[ i ];
+				double yi = polygon.ypoints[ i ];
+				double xj = polygon.xpoints[ j ];
+				double yj = polygon.ypoints[ j ];
+
+				double cross = xi * yj - xj * yi;
+				polygonArea2 += cross;
+				polygonCx += ( xi + xj ) * cross;
+				polygonCy += ( yi + yj ) * cross;
+				length += Math.hypot( xj - xi, yj - yi );
+
+				sumX += xi;
+				sumY += yi;
+
+				minX = Math.min( minX, xi );
+				minY = Math.min( minY, yi );
+				maxX = Math.max( maxX, xi );
+				maxY = Math.max( maxY, yi );
+			}
+			numVertices += n;
+
+			// Orient the polygon positively; holes are subtracted
+			double sign = Math.signum( polygonArea2 );
+			if ( polygons.length > 1 && isHole( polygons, p ) )
+			{
+				sign = -sign;
+			}
+
+			area2 += sign * polygonArea2;
+			cx += sign * polygonCx;
+			cy += sign * polygonCy;
+		}
+
+		this.area = Math.abs( area2 ) / 2.0;
+		this.perimeter = length;
+
+		if ( area2 != 0 )
+		{
+			this.xCentroid = cx / ( 3.0 * area2 );
+			this.yCentroid = cy / ( 3.0 * area2 );
+		}
+		else
+		{
+			// Degenerate outline: mean of the vertices
+			this.xCentroid = ( numVertices > 0 ) ? sumX / numVertices : Double.NaN;
+			this.yCentroid = ( numVertices > 0 ) ? sumY / numVertices : Double.NaN;
+		}
+
+		this.bounds = ( numVertices > 0 ) ? new Rectangle2D.Double( minX, minY, maxX - minX, maxY - minY ) : new Rectangle2D.Double();
+	}
+
+	/**
+	 * Computes the descriptors of the outline of a {@link Roi}.
+	 *
+	 * @param roi
+	 *            {@link Roi} to measure
+	 * @return a new {@link CellGeometry}
+	 */
+	public static CellGeometry of( Roi roi )
+	{
+		if ( roi instanceof ShapeRoi )
+		{
+			Roi[] rois = ( ( ShapeRoi ) roi ).getRois();
+			FloatPolygon[] polygons = new FloatPolygon[ rois.length ];
+			for ( int i = 0; i < rois.length; i++ )
+			{
+				polygons[ i ] = rois[ i ].getFloatPolygon();
+			}
+
+			return new CellGeometry( polygons );
+		}
+
+		return new CellGeometry( roi.getFloatPolygon() );
+	}
+
+	/**
+	 * Computes the descriptors of a {@link Polygon}.
+	 *
+	 * @param polygon
+	 *            {@link Polygon} to measure
+	 * @return a new {@link CellGeometry}
+	 */
+	public static CellGeometry of( Polygon polygon )
+	{
+		return new CellGeometry( new FloatPolygon( toFloat( polygon.xpoints, polygon.npoints ), toFloat( polygon.ypoints, polygon.npoints ), polygon.npoints ) );
+	}
+
+	/**
+	 * @return the uncalibrated area
+	 */
+	public double getArea()
+	{
+		return area;
+	}
+
+	/**
+	 * @param calibration
+	 *            {@link Calibration} (may be {@code null})
+	 * @return the area in calibrated units
+	 */
+	public double getArea( Calibration calibration )
+	{
+		if ( calibration == null ) { return area; }
+
+		return area * calibration.pixelWidth * calibration.pixelHeight;
+	}
+
+	/**
+	 * @return the uncalibrated x-coordinate of the centroid
+	 */
+	public double getXCentroid()
+	{
+		return xCentroid;
+	}
+
+	/**
+	 * @return the uncalibrated y-coordinate of the centroid
+	 */
+	public double getYCentroid()
+	{
+		return yCentroid;
+	}
+
+	/**
+	 * @param calibration
+	 *            {@link Calibration} (may be {@code null})
+	 * @param imageHeight
+	 *            height of the image, required for inverted y-axes
+	 * @return the centroid {@code (x, y, 0)} in calibrated units
+	 */
+	public double[] getCentroid( Calibration calibration, int imageHeight )
+	{
+		if ( calibration == null ) { return new double[] { xCentroid, yCentroid, 0d }; }
+
+		return new double[] { calibration.getX( xCentroid ), calibration.getY( yCentroid, imageHeight ), 0d };
+	}
+
+	/**
+	 * @return the uncalibrated bounding box of the outline
+	 */
+	public Rectangle2D getBounds()
+	{
+		return ( Rectangle2D ) bounds.clone();
+	}
+
+	/**
+	 * @return the uncalibrated length of the outline
+	 */
+	public double getPerimeter()
+	{
+		return perimeter;
+	}
+
+	/**
+	 * @param calibration
+	 *            {@link Calibration} (may be {@code null})
+	 * @return the length of the outline in calibrated units
+	 */
+	public double getPerimeter( Calibration calibration )
+	{
+		if ( calibration == null || calibration.pixelWidth == calibration.pixelHeight )
+		{
+			return ( calibration == null ) ? perimeter : perimeter * calibration.pixelWidth;
+		}
+
+		// Anisotropic pixels require another pass over the vertices
+		double length = 0;
+		for ( FloatPolygon polygon : polygons )
+		{
+			final int n = polygon.npoints;
+			for ( int i = 0; i < n; i++ )
+			{
+				int j = ( i + 1 == n ) ? 0 : i + 1;
+				length += Math.hypot( ( polygon.xpoints[ j ] - polygon.xpoints[ i ] ) * calibration.pixelWidth, ( polygon.ypoints[ j ] - polygon.ypoints[ i ] ) * calibration.pixelHeight );
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * @return {@code true} if {@code polygons[ p ]} is enclosed by an odd
+	 *         number of the other polygons.
+	 */
+	private static boolean isHole( FloatPolygon[] polygons, int p )
+	{
+		int depth = 0;
+		for ( int k = 0; k < polygons.length; k++ )
+		{
+			if ( k != p && encloses( polygons[ k ], polygons[ p ] ) )
+			{
+				depth++;
+			}
+		}
+
+		return depth % 2 == 1;
+	}
+
+	/**
+	 * Tests if {@code inner} lies inside {@code outer} (even-odd rule). Since
+	 * the polygons do not cross, the first edge midpoint of {@code inner} that
+	 * is not located on the boundary of {@code outer} decides.
+	 */
+	private static boolean encloses( FloatPolygon outer, FloatPolygon inner )
+	{
+		final int n = inner.npoints;
+		for ( int i = 0; i < n; i++ )
+		{
+			int j = ( i + 1 == n ) ? 0 : i + 1;
+			double x = ( inner.xpoints[ i ] + inner.xpoints[ j ] ) / 2.0;
+			double y = ( inner.ypoints[ i ] + inner.ypoints[ j ] ) / 2.0;
+
+			if ( !isOnBoundary( outer, x, y ) ) { return contains( outer, x, y ); }
+		}
+
+		// NB: identical outlines
+		return false;
+	}
+
+	/**
+	 * Even-odd point in polygon test (ray casting in positive x-direction).
+	 */
+	private static boolean contains( FloatPolygon polygon, double x, double y )
+	{
+		boolean inside = false;
+		final int n = polygon.npoints;
+		for ( int i = 0, j = n - 1; i < n; j = i++ )
+		{
+			double xi = polygon.xpoints[ i ];
+			double yi = polygon.ypoints[ i ];
+			double xj = polygon.xpoints[ j ];
+			double yj = polygon.ypoints[ j ];
+
+			if ( ( yi > y ) != ( yj > y ) && x < ( xj - xi ) * ( y - yi ) / ( yj - yi ) + xi )
+			{
+				inside = !inside;
+			}
+		}
+
+		return inside;
+	}
+
+	private static boolean isOnBoundary( FloatPolygon polygon, double x, double y )
+	{
+		final int n = polygon.npoints;
+		for ( int i = 0, j = n - 1; i < n; j = i++ )
+		{
+			double xi = polygon.xpoints[ i ];
+			double yi = polygon.ypoints[ i ];
+			double xj = polygon.xpoints[ j ];
+			double yj = polygon.ypoints[ j ];
+
+			double cross = ( xj - xi ) * ( y - yi ) - ( yj - yi ) * ( x - xi );
+			if ( Math.abs( cross ) < 1e-9 && x >= Math.min( xi, xj ) && x <= Math.max( xi, xj ) && y >= Math.min( yi, yj ) && y <= Math.max( yi, yj ) ) { return true; }
+		}
+
+		return false;
+	}
+
+	private static float[] toFloat( int[] values, int n )
+	{
+		float[] result = new float[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			result[ i ] = values[ i ];
+		}
+
+		return result;
+	}
+
+}
@@ -0,0 +1,84 @@
+/**
+ * $LICENSE
+ */
+package de.fzj.jungle.segmentation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe allocator of unique {@link Cell} identifiers.
+ * <p>
+ * A segmentation run uses its own allocator, which is inherited by all
+ * {@link Cell}s that are derived from a cell (e.g. by splitting). Hence, cells
+ * of different frames can be created concurrently without sharing a static
+ * counter. {@link Cell}s that are created without an explicit allocator use
+ * the {@link #global()} allocator.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class CellIdAllocator
+{
+
+	private static final CellIdAllocator GLOBAL = new CellIdAllocator();
+
+	/* Private fields */
+	private final AtomicInteger nextId;
+
+	/**
+	 * Constructs a {@link CellIdAllocator} starting at 0.
+	 */
+	public CellIdAllocator()
+	{
+		this( 0 );
+	}
+
+	/**
+	 * Constructs a {@link CellIdAllocator}.
+	 *
+	 * @param firstId
+	 *            first identifier that is allocated
+	 */
+	public CellIdAllocator( int firstId )
+	{
+		this.nextId = new AtomicInteger( firstId );
+	}
+
+	/**
+	 * @return the allocator that is used by default
+	 */
+	public static CellIdAllocator global()
+	{
+		return GLOBAL;
+	}
+
+	/**
+	 * Allocates a new identifier.
+	 *
+	 * @return a unique identifier
+	 */
+	public int next()
+	{
+		return nextId.getAndIncrement();
+	}
+
+	/**
+	 * @return the identifier that will be allocated next
+	 */
+	public int peek()
+	{
+		return nextId.get();
+	}
+
+	/**
+	 * Sets the identifier that will be allocated next.
+	 *
+	 * @param id
+	 *            next identifier
+	 */
+	public void reset( int id )
+	{
+		nextId.set( id );
+	}
+
+}
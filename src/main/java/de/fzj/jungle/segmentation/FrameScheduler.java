@@ -0,0 +1,297 @@
+package de.fzj.jungle.segmentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Distributes the frames of an image sequence to an {@link ExecutorService}.
+ * <p>
+ * Each frame is submitted as an individual task such that frames of varying
+ * cost (e.g. empty vs. crowded growth chambers) are balanced by the executor.
+ * By default, a work-stealing {@link ForkJoinPool} is used. Results are
+ * collected in a concurrent, ordered map that is keyed by the frame number.
+ * Hence, the result is independent of the order in which frames finish.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class FrameScheduler
+{
+
+	/**
+	 * The work that has to be done for a single frame.
+	 *
+	 * @param <R>
+	 *            type of the per-frame result
+	 */
+	@FunctionalInterface
+	public interface FrameTask< R >
+	{
+		/**
+		 * Processes a single frame.
+		 *
+		 * @param frame
+		 *            (1-based) frame number
+		 * @return the result for {@code frame}, {@code null} results are
+		 *         discarded.
+		 */
+		R process( int frame );
+	}
+
+	/* Private fields */
+	private final ExecutorService executor;
+
+	private final boolean ownsExecutor;
+
+	/** Invocations of {@link #schedule} that are currently running. */
+	private final List< Invocation > running = new ArrayList<>();
+
+	private volatile Invocation lastInvocation;
+
+	/**
+	 * Constructs a {@link FrameScheduler} with one worker per available
+	 * processor.
+	 */
+	public FrameScheduler()
+	{
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Constructs a {@link FrameScheduler} that is backed by a
+	 * {@link ForkJoinPool} with a given parallelism.
+	 *
+	 * @param parallelism
+	 *            number of worker threads; values smaller than 1 fall back to
+	 *            the number of available processors
+	 */
+	public FrameScheduler( int parallelism )
+	{
+		this( new ForkJoinPool( parallelism < 1 ? Runtime.getRuntime().availableProcessors() : parallelism ), true );
+	}
+
+	/**
+	 * Constructs a {@link FrameScheduler} that uses an externally managed
+	 * {@link ExecutorService}. The executor is not shut down by
+	 * {@link #shutdown()}.
+	 *
+	 * @param executor
+	 *            {@link ExecutorService} that runs the per-frame tasks
+	 */
+	public FrameScheduler( ExecutorService executor )
+	{
+		this( executor, false );
+	}
+
+	private FrameScheduler( ExecutorService executor, boolean ownsExecutor )
+	{
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * Processes the frames {@code first}, {@code first + step}, ... up to and
+	 * including {@code last} and blocks until all frames are finished.
+	 * <p>
+	 * The method does not return before all submitted frames have finished,
+	 * even if it is canceled or interrupted. Hence, the returned map is never
+	 * modified afterwards.
+	 * </p>
+	 *
+	 * @param first
+	 *            first frame to process
+	 * @param last
+	 *            last frame to process (inclusive)
+	 * @param step
+	 *            increment between two frames (e.g. the number of channels of
+	 *            a hyperstack)
+	 * @param task
+	 *            {@link FrameTask} that is executed for each frame
+	 * @return an ordered mapping from frame number to result. If the scheduler
+	 *         has been canceled, the map only contains the finished frames.
+	 */
+	public < R > ConcurrentNavigableMap< Integer, R > schedule( int first, int last, int step, FrameTask< R > task )
+	{
+		final ConcurrentNavigableMap< Integer, R > results = new ConcurrentSkipListMap<>();
+
+		// Cancellation only affects this invocation
+		final Invocation invocation = new Invocation();
+		lastInvocation = invocation;
+		synchronized ( running )
+		{
+			running.add( invocation );
+		}
+
+		try
+		{
+			for ( int frame = first; frame <= last && !invocation.canceled; frame += step )
+			{
+				final int currentFrame = frame;
+				invocation.started();
+				try
+				{
+					executor.execute( () -> {
+						try
+						{
+							// NB: frame is skipped due to cancel()
+							if ( invocation.canceled ) { return; }
+
+							R result = task.process( currentFrame );
+
+							if ( result != null )
+							{
+								results.put( currentFrame, result );
+							}
+						}
+						catch ( Throwable t )
+						{
+							invocation.fail( t );
+						}
+						finally
+						{
+							invocation.finished();
+						}
+					} );
+				}
+				catch ( RejectedExecutionException e )
+				{
+					invocation.finished();
+					invocation.fail( e );
+				}
+			}
+		}
+		finally
+		{
+			invocation.awaitFinished();
+
+			synchronized ( running )
+			{
+				running.remove( invocation );
+			}
+		}
+
+		if ( invocation.failure != null ) { throw new IllegalStateException( "Processing of a frame failed.", invocation.failure ); }
+
+		return results;
+	}
+
+	/**
+	 * Cancels all frames of the running invocations of {@link #schedule} that
+	 * have not been started yet. Frames that are currently processed are
+	 * finished. Later invocations are not affected.
+	 */
+	public void cancel()
+	{
+		synchronized ( running )
+		{
+			for ( Invocation invocation : running )
+			{
+				invocation.canceled = true;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@link #cancel()} has been called during the
+	 *         current (or last) invocation of {@link #schedule}.
+	 */
+	public boolean isCanceled()
+	{
+		Invocation invocation = lastInvocation;
+		return invocation != null && invocation.canceled;
+	}
+
+	/**
+	 * @return the number of worker threads or -1 if it cannot be determined
+	 *         for the underlying {@link ExecutorService}.
+	 */
+	public int getParallelism()
+	{
+		if ( executor instanceof ForkJoinPool ) { return ( ( ForkJoinPool ) executor ).getParallelism(); }
+
+		return -1;
+	}
+
+	/**
+	 * Releases the worker threads if the {@link ExecutorService} has been
+	 * created by {@code this}.
+	 */
+	public void shutdown()
+	{
+		if ( ownsExecutor )
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * State of a single invocation of {@link FrameScheduler#schedule}.
+	 */
+	private static class Invocation
+	{
+
+		private volatile boolean canceled;
+
+		private Throwable failure;
+
+		private int outstanding;
+
+		private synchronized void started()
+		{
+			outstanding++;
+		}
+
+		private synchronized void finished()
+		{
+			if ( --outstanding == 0 )
+			{
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Records the first failure and skips the remaining frames.
+		 */
+		private synchronized void fail( Throwable t )
+		{
+			if ( failure == null )
+			{
+				failure = t;
+			}
+			canceled = true;
+		}
+
+		/**
+		 * Waits for all started frames. An interrupt cancels the remaining
+		 * frames but does not stop waiting for the frames that are running;
+		 * the interrupt status is restored afterwards.
+		 */
+		private synchronized void awaitFinished()
+		{
+			boolean interrupted = false;
+			while ( outstanding > 0 )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( InterruptedException e )
+				{
+					interrupted = true;
+					canceled = true;
+				}
+			}
+
+			if ( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
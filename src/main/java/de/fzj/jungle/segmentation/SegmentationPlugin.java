@@ -3,38 +3,28 @@
  */
 package de.fzj.jungle.segmentation;
 
-import java.rmi.UnexpectedException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
-import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.ops.OpService;
 import net.imagej.plugins.commands.assign.noisereduce.NoiseReductionMedian;
 import net.imagej.plugins.commands.assign.noisereduce.RadialNeigh;
-import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.binary.Thresholder;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.multithreading.SimpleMultiThreading;
-import net.imglib2.ops.operation.randomaccessible.unary.FillHoles;
-import net.imglib2.ops.operation.randomaccessibleinterval.unary.morph.Dilate;
-import net.imglib2.ops.operation.randomaccessibleinterval.unary.morph.Erode;
-import net.imglib2.ops.types.ConnectedType;
 import net.imglib2.outofbounds.OutOfBoundsMirrorFactory;
 import net.imglib2.outofbounds.OutOfBoundsMirrorFactory.Boundary;
 import net.imglib2.type.logic.BitType;
@@ -56,36 +46,45 @@ import org.scijava.plugin.Plugin;
 import de.fzj.jungle.MasterPlugin;
 import de.fzj.jungle.profile.Profile;
 import de.fzj.jungle.profile.Profiles;
+import de.fzj.jungle.segmentation.binary.BinaryMorphology;
+import de.fzj.jungle.segmentation.binary.BitMask;
+import de.fzj.jungle.segmentation.binary.BitMasks;
+import de.fzj.jungle.segmentation.binary.ConnectedComponent;
+import de.fzj.jungle.segmentation.binary.ConnectedComponentLabeler;
 import de.fzj.jungle.segmentation.filter.Filter;
 import de.fzj.jungle.segmentation.filter.FilterFactory;
 import de.fzj.jungle.segmentation.splitting.BottleneckDetector;
+import de.fzj.jungle.segmentation.splitting.ClusterSplittingTask;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
-import ij.plugin.ContrastEnhancer;
-import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
 import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 /**
  * Implements a segmentation pipeline for bacteria in microfluidic growth
  * chambers that can efficiently be parallelized on image sequences.
  * <p>
  * It starts by combining a local thresholded version with a thresholded version
- * of the shape index map. Subsequently, ImageJ's Analyze Particle is executed
- * to detect individual {@link Roi}s from the binary mask. The resulting
+ * of the shape index map. Subsequently, the connected components of the
+ * binary mask are labeled and their outlines are traced to detect individual
+ * {@link Roi}s (see {@link ConnectedComponentLabeler}). The resulting
  * {@link Cell}s are filtered and split up if they fulfill certain criteria
  * established by {@link Filter}s.
  * </p>
  * <p>
  * Splitting is delegated to a {@link BottleneckDetector} instance. This
  * instance returns a {@code Cell[]} which is subsequently filtered, if cells
- * fulfill the splitting criteria. This iterative process is continued until no
- * more cells are filtered or 10 rounds of iterations (after which the quality
- * of the splitting results is questionable).
+ * fulfill the splitting criteria. This recursive process is continued until no
+ * more cells are filtered or a maximum depth is reached (after which the
+ * quality of the splitting results is questionable). Each cluster is split by
+ * its own {@link ClusterSplittingTask}.
  * </p>
  * 
  * @author Stefan Helfrich
@@ -110,7 +109,7 @@ public class SegmentationPlugin extends ContextCommand
 
 	// TODO ImageJ2: convert to ImgLabeling for visualization
 	@Parameter( type = ItemIO.OUTPUT )
-	private Map< Integer, List< Cell > > finalResults = new TreeMap<>();
+	private Map< Integer, List< Cell > > finalResults = new ConcurrentSkipListMap<>();
 
 	/* Private fields */
 	@Parameter( type = ItemIO.BOTH )
@@ -122,6 +121,43 @@ public class SegmentationPlugin extends ContextCommand
 	@Parameter
 	private Profile profile = Profiles.create( "Default" );
 
+	/**
+	 * Number of frames that are processed concurrently. Values smaller than 1
+	 * use all available processors. Ignored if a {@link FrameScheduler} is
+	 * provided.
+	 */
+	@Parameter( required = false )
+	private int parallelism = 0;
+
+	/**
+	 * {@link FrameScheduler} that distributes the frames. If not set, a
+	 * scheduler with {@link #parallelism} workers is created for each run.
+	 */
+	@Parameter( required = false )
+	private volatile FrameScheduler frameScheduler;
+
+	/**
+	 * {@link CellIdAllocator} that provides the identifiers of all
+	 * {@link Cell}s of a run. If not set, a new allocator is created for each
+	 * run.
+	 */
+	@Parameter( required = false )
+	private CellIdAllocator cellIdAllocator;
+
+	/**
+	 * Maximum number of nested splits of a cluster of cells.
+	 */
+	@Parameter( required = false )
+	private int maxSplittingDepth = ClusterSplittingTask.DEFAULT_MAX_DEPTH;
+
+	/**
+	 * If {@code true}, clusters of cells are only split between concave points
+	 * of their contour. Disabled by default, since it changes the splitting
+	 * results.
+	 */
+	@Parameter( required = false )
+	private boolean splitAtConcavePointsOnly = ClusterSplittingTask.DEFAULT_CONCAVE_POINTS_ONLY;
+
 	/*
 	 * PARAMETERS
 	 */
@@ -162,7 +198,7 @@ public class SegmentationPlugin extends ContextCommand
 	public SegmentationPlugin( ImagePlus imp, Profile profile, Filter< Cell > filter )
 	{
 		this.imp = imp;
-		this.finalResults = new TreeMap<>();
+		this.finalResults = new ConcurrentSkipListMap<>();
 
 		this.profile = profile;
 		this.filter = filter;
@@ -195,195 +231,39 @@ public class SegmentationPlugin extends ContextCommand
 		// Execute algorithm for each frame in a stack
 		final int stackSize = imp.getStackSize();
 
-		final AtomicInteger ai = new AtomicInteger( 1 );
-
-		final Thread[] threads = SimpleMultiThreading.newThreads();
+		int channelIncrease = 1;
 
-		logService.info( String.format( "Using %d thread(s) for segmentation.", threads.length ) );
-
-		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		if ( imp.isHyperStack() )
 		{
-			// Concurrently run in as many threads as CPUs
-			threads[ ithread ] = new Thread()
-			{
+			channelIncrease = imp.getNChannels();
+		}
 
-				{
-					setPriority( Thread.NORM_PRIORITY );
-				}
+		if ( cellIdAllocator == null )
+		{
+			cellIdAllocator = new CellIdAllocator();
+		}
 
-				@Override
-				public void run()
-				{
-					// Each thread processes a few items in the total list
-					// Each loop iteration within the run method
-					// has a unique 'i' number to work with
-					// and to use as index in the results array:
-					int channelIncrease = 1;
-
-					if ( imp.isHyperStack() )
-					{
-						channelIncrease = imp.getNChannels();
-					}
-
-					for ( int i = ai.getAndAdd( channelIncrease ); i <= stackSize; i = ai.getAndAdd( channelIncrease ) )
-					{
-						logService.info( String.format( "Started processing of image %d.", i ) );
-
-						// Create a new ImagePlus for each thread that has the
-						// same meta information, but no image data
-						ImagePlus threadImagePlus = imp.createImagePlus();
-
-						// Get the ImageProcessor from the original ImagePlus
-						ImageProcessor originalProcessor = imp.getStack().getProcessor( i );
-
-						// Create a duplicate
-						ImageProcessor duplicateOfOriginalProcessor = originalProcessor.duplicate();
-
-						// Use that ImageProcessor for the processing
-						threadImagePlus.setProcessor( duplicateOfOriginalProcessor );
-
-						// Per construction, this Img will only contain one
-						// slice
-						Img< ? extends RealType > original = ImagePlusAdapter.wrap( threadImagePlus );
-
-						// Scale up in the spatial domain
-						double[] dims = scaleSpatialDimensions( original, dataset, 2.0d );
-						RandomAccessibleInterval< ? extends RealType > imgScaled = opService.transform().scale( original, dims, new NLinearInterpolatorFactory() );
-
-						// Obtain a binary image
-						Img< BitType > out = segment( imgScaled );
-
-						ImgPlus< BitType > thresholded = new ImgPlus<>( out );
-						ImagePlus thresholdedImp = ImageJFunctions.wrap( thresholded, "Thresholded" );
-						ImageProcessor outputIp = thresholdedImp.getProcessor();
-
-						// outputIp will be 16-bit when wrapped into an
-						// ImagePlus
-						outputIp = outputIp.convertToByte( false );
-
-						// Set the correct slice number for the output stack
-						outputIp.setSliceNumber( i );
-						threadImagePlus.setProcessor( outputIp );
-
-						/*
-						 * Img<BitType> will be converted to ImageJ1 images with
-						 * values of 0 and 1. Analyze Particles however requires
-						 * a binary 8-bit image with a set threshold. Hence, we
-						 * are using ContrastEnhancer to convert the image from
-						 * [0,1] to [0,255] and subsequently set the threshold.
-						 */
-						ContrastEnhancer ce = new ContrastEnhancer();
-						ce.setNormalize( true );
-						ce.stretchHistogram( threadImagePlus, 0.0 );
-						outputIp.setThreshold( 254, 255, ImageProcessor.NO_LUT_UPDATE );
-
-						// ParticleAnalyzer writes overlays to an ImagePlus when
-						// the option SHOW_OVERLAY_OUTLINES is active. Hence, we
-						// can circumvent using the RoiManager by extracting
-						// ROIs from the overlay.
-						ParticleAnalyzer pa = new ParticleAnalyzer( ParticleAnalyzer.SHOW_OVERLAY_OUTLINES, 0, null, 0, Double.POSITIVE_INFINITY, 0.0, 1.0 );
-						pa.analyze( threadImagePlus, outputIp );
-
-						if ( IJ.debugMode )
-						{
-							threadImagePlus.show();
-						}
-
-						Overlay o = threadImagePlus.getOverlay();
-
-						List< Roi > rois = new LinkedList<>();
-						for ( int j = 0; j < o.size(); j++ )
-						{
-							Roi r = o.get( j );
-
-							if ( IJ.debugMode )
-							{
-								RoiManager.getInstance().addRoi( r );
-							}
-
-							rois.add( r );
-						}
-
-						// Start the postprocessing
-						List< Cell > result = new LinkedList<>();
-
-						for ( Roi r : rois )
-						{
-							Cell c = new Cell( r.getPolygon(), r, outputIp, imp.getCalibration() );
-							result.add( c );
-						}
-
-						// Filter cell lists according to the the filter set in
-						// the constructor
-						List< Cell > filteredResult = new LinkedList<>();
-						List< Cell > cellList = result;
-
-						Filter.Result< Cell > filterResult = filter.filter( cellList, outputIp );
-
-						filteredResult.addAll( filterResult.singleCellList );
-
-						int MAX_ITER = 5;
-						int iter = 0;
-						while ( !filterResult.multipleCellList.isEmpty() && ( iter < MAX_ITER ) )
-						{
-							List< Cell > tempList = new LinkedList<>();
-
-							for ( Cell c : filterResult.multipleCellList )
-							{
-								BottleneckDetector bnd = new BottleneckDetector( c );
-
-								try
-								{
-									Cell[] cellArray = bnd.execute();
-
-									// Might result in a single cell when an
-									// inner
-									// contour is available
-									for ( Cell splitCell : cellArray )
-									{
-										// Cancel if a split did not result in a
-										// change
-										if ( splitCell.getCellRoi().equals( c.getCellRoi() ) )
-										{
-											continue;
-										}
-										tempList.add( splitCell );
-									}
-								}
-								catch ( UnexpectedException e )
-								{
-									// Catch exception and add problematic Roi
-									// to Manager
-									RoiManager manager = RoiManager.getInstance();
-									if ( manager == null )
-									{
-										manager = new RoiManager( true );
-									}
-
-									Roi roi = c.getCellRoi();
-									roi.setName( "Debug A==B[" + c.getCellId() + "]" );
-									manager.addRoi( roi );
-								}
-							}
-
-							// break;
-							filterResult = filter.filter( tempList, outputIp );
-
-							filteredResult.addAll( filterResult.singleCellList );
-
-							iter++;
-						}
-
-						finalResults.put( i, filteredResult );
-
-						logService.info( String.format( "Finished processing image %d.", i ) );
-					}
-				}
-			};
+		boolean ownsScheduler = ( frameScheduler == null );
+		if ( ownsScheduler )
+		{
+			frameScheduler = new FrameScheduler( parallelism );
 		}
 
+		logService.info( String.format( "Using %d thread(s) for segmentation.", frameScheduler.getParallelism() ) );
+
 		logService.info( "Starting segmentation." );
-		SimpleMultiThreading.startAndJoin( threads );
+		try
+		{
+			finalResults = frameScheduler.schedule( 1, stackSize, channelIncrease, this::processFrame );
+		}
+		finally
+		{
+			if ( ownsScheduler )
+			{
+				frameScheduler.shutdown();
+				frameScheduler = null;
+			}
+		}
 		logService.info( "Finished segmentation." );
 
 		// Benchmarking
@@ -450,6 +330,112 @@ public class SegmentationPlugin extends ContextCommand
 		}
 	}
 
+	@Override
+	public void cancel( String reason )
+	{
+		super.cancel( reason );
+
+		// Frames that have not been started yet are skipped
+		FrameScheduler scheduler = frameScheduler;
+		if ( scheduler != null )
+		{
+			scheduler.cancel();
+		}
+	}
+
+	/**
+	 * Segments a single frame of {@link #imp}.
+	 * 
+	 * @param i
+	 *            (1-based) stack index of the frame
+	 * @return the {@link Cell}s that have been detected in the frame
+	 */
+	private List< Cell > processFrame( int i )
+	{
+		logService.info( String.format( "Started processing of image %d.", i ) );
+
+		// Wrap the pixels of the frame directly (they are only read since
+		// scaling creates a new image)
+		ImageProcessor originalProcessor = imp.getStack().getProcessor( i );
+		Img< ? extends RealType > original = wrapProcessor( originalProcessor );
+
+		// Scale up in the spatial domain
+		double[] dims = scaleSpatialDimensions( original, dataset, 2.0d );
+		RandomAccessibleInterval< ? extends RealType > imgScaled = opService.transform().scale( original, dims, new NLinearInterpolatorFactory() );
+
+		// Obtain a binary image
+		BitMask mask = segmentMask( imgScaled );
+
+		// Filters measure on a binary 8-bit image
+		ImageProcessor outputIp = BitMasks.toByteProcessor( mask );
+		outputIp.setSliceNumber( i );
+
+		// Label connected components and trace their outlines
+		List< ConnectedComponent > components = new ConnectedComponentLabeler().label( mask );
+
+		if ( IJ.debugMode )
+		{
+			new ImagePlus( String.format( "Mask %d", i ), outputIp ).show();
+		}
+
+		// Start the postprocessing
+		List< Cell > result = new LinkedList<>();
+
+		for ( ConnectedComponent component : components )
+		{
+			Roi r = new PolygonRoi( component.getOutline(), Roi.TRACED_ROI );
+
+			if ( IJ.debugMode )
+			{
+				RoiManager manager = RoiManager.getInstance();
+				if ( manager != null )
+				{
+					manager.addRoi( r );
+				}
+			}
+
+			Cell c = new Cell( r.getPolygon(), r, outputIp, imp.getCalibration(), cellIdAllocator );
+			result.add( c );
+		}
+
+		// Filter cell lists according to the the filter set in
+		// the constructor
+		List< Cell > filteredResult = new LinkedList<>();
+		List< Cell > cellList = result;
+
+		Filter.Result< Cell > filterResult = filter.filter( cellList, outputIp );
+
+		filteredResult.addAll( filterResult.singleCellList );
+
+		// Split clusters in parallel (within the pool of the frame)
+		filteredResult.addAll( ClusterSplittingTask.splitAll( filterResult.multipleCellList, filter, outputIp, maxSplittingDepth, splitAtConcavePointsOnly ) );
+
+		logService.info( String.format( "Finished processing image %d.", i ) );
+
+		return filteredResult;
+	}
+
+	/**
+	 * Wraps the pixels of an {@link ImageProcessor} as a two-dimensional
+	 * {@link Img} of the corresponding type without copying.
+	 * 
+	 * @param ip
+	 *            {@link ImageProcessor} to wrap
+	 * @return an {@link Img} backed by the pixels of {@code ip} (or by a float
+	 *         copy for other processors)
+	 */
+	private static Img< ? extends RealType > wrapProcessor( ImageProcessor ip )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+
+		if ( ip instanceof ByteProcessor ) { return ArrayImgs.unsignedBytes( ( byte[] ) ip.getPixels(), width, height ); }
+		if ( ip instanceof ShortProcessor ) { return ArrayImgs.unsignedShorts( ( short[] ) ip.getPixels(), width, height ); }
+		if ( ip instanceof FloatProcessor ) { return ArrayImgs.floats( ( float[] ) ip.getPixels(), width, height ); }
+
+		return ArrayImgs.floats( ( float[] ) ip.convertToFloatProcessor().getPixels(), width, height );
+	}
+
 	/**
 	 * Creates an array that can be used for scaling, where the scaleFactor is
 	 * only set for the spatial axes.
@@ -502,128 +488,106 @@ public class SegmentationPlugin extends ContextCommand
 	 *            image that is to be segmented.
 	 * @return an {@link Img<BitType>} where cells have value TRUE and
 	 *         background value FALSE.
+	 * @see #segmentMask(RandomAccessibleInterval)
 	 */
 	public < T extends RealType< T > > Img< BitType > segment( RandomAccessibleInterval< T > input )
 	{
-		Img< BitType > sim = createThresholdedShapeIndexMap( input, profile.getSimLowerThreshold(), profile.getSimUpperThreshold(), profile.getSimGaussRadius() );
+		return BitMasks.toImg( segmentMask( input ) );
+	}
+
+	/**
+	 * Implements the segmentation procedure as described in Stefan Helfrich's
+	 * PhD thesis. All binary operations are carried out on {@link BitMask}s.
+	 * 
+	 * @param input
+	 *            image that is to be segmented.
+	 * @return a {@link BitMask} where cells are set.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < T extends RealType< T > > BitMask segmentMask( RandomAccessibleInterval< T > input )
+	{
+		BitMask sim = createThresholdedShapeIndexMask( input, profile.getSimLowerThreshold(), profile.getSimUpperThreshold(), profile.getSimGaussRadius() );
 		this.debugOut( sim, "sim" );
 
 		Img< BitType > thresholded = createLocalThresholded( input, profile.getThresholdingRadius(), profile.getThresholdingK1(), profile.getThresholdingR() );
 		this.debugOut( thresholded, "thresholded" );
 
-		Img< BitType > resultData = thresholded.copy();
-		Img< BitType > inputData = thresholded.copy();
-
-		// Invert data for Erode to work properly
-		invert( inputData );
+		BitMask thresholdedMask = BitMasks.fromImg( thresholded );
 
 		/* Erode image */
-		// TODO ImageJ2: use Ops (when they are available)
-		OutOfBoundsMirrorFactory< BitType, RandomAccessibleInterval< BitType > > factory = new OutOfBoundsMirrorFactory<>( OutOfBoundsMirrorFactory.Boundary.DOUBLE );
-		@SuppressWarnings( "deprecation" )
-		Erode erosion = new Erode( ConnectedType.EIGHT_CONNECTED, factory, 1 );
-		for ( int i = 0; i < profile.getNumberOfErosions(); i++ )
+		BinaryMorphology morphology = new BinaryMorphology();
+		BitMask eroded = thresholdedMask;
+		if ( profile.getNumberOfErosions() > 0 )
 		{
-			erosion.compute( inputData, resultData );
-			inputData = resultData.copy();
-			this.debugOut( resultData, "erosion " + i );
+			// Invert data for erosion to work properly (NB: without erosions
+			// the thresholded image is used as is)
+			thresholdedMask.not();
+			eroded = morphology.erode( thresholdedMask, profile.getNumberOfErosions() );
 		}
-		this.debugOut( resultData, "thresholded eroded" );
-
-		resultData = resultData.copy();
-		inputData = resultData.copy();
+		this.debugOut( eroded, "thresholded eroded" );
 
 		/* Dilate image */
-		// TODO ImageJ2: use Ops (when they are available)
-		Dilate dilation = new Dilate( ConnectedType.EIGHT_CONNECTED, factory, 1 );
-		for ( int i = 0; i < profile.getNumberOfDilations(); i++ )
-		{
-			dilation.compute( inputData, resultData );
-			inputData = resultData.copy();
-			this.debugOut( resultData, "dilation " + i );
-		}
+		BitMask resultData = morphology.dilate( eroded, profile.getNumberOfDilations() );
 		this.debugOut( resultData, "thresholded dilated" );
 
 		/* Apply median filter */
-		Img< BitType > simMediaFiltered = null;
+		BitMask simMedianFiltered = sim;
 		if ( profile.getMedianRadius() > 0 )
 		{
 			// TODO ImageJ2: use Ops (when they are available)
-			NoiseReductionMedian< T > medianCommand = new NoiseReductionMedian<>();
+			NoiseReductionMedian< BitType > medianCommand = new NoiseReductionMedian<>();
 			medianCommand.setContext( this.getContext() );
-			medianCommand.setInput( datasetService.create( sim ) );
+			medianCommand.setInput( datasetService.create( BitMasks.toImg( sim ) ) );
 			medianCommand.setNeighborhood( new RadialNeigh( 2, 5 ) );
 			medianCommand.run();
-			simMediaFiltered = ( Img< BitType > ) medianCommand.getOutput().getImgPlus();
+			simMedianFiltered = BitMasks.fromImg( ( Img< BitType > ) medianCommand.getOutput().getImgPlus() );
 
-			this.debugOut( simMediaFiltered, "sim median filtered" );
+			this.debugOut( simMedianFiltered, "sim median filtered" );
 		}
 
-		// Combine both branches
-		Img< BitType > output = sim.factory().create( sim, sim.firstElement() );
-		combineImages( simMediaFiltered, resultData, output );
+		// Combine both branches (formerly "!(!sim || !thresholded)")
+		BitMask output = resultData.and( simMedianFiltered );
 		this.debugOut( output, "output" );
 
-		// Fill holes in output
-		Img< BitType > filledHoles = sim.factory().create( sim, sim.firstElement() );
-		FillHoles fillHolesOperation = new FillHoles( ConnectedType.EIGHT_CONNECTED );
-		fillHolesOperation.compute( output, filledHoles );
-		this.debugOut( filledHoles, "filled holes" );
+		// Fill holes in output (NB: only inspected for debugging, the unfilled
+		// output is used for further processing)
+		if ( IJ.debugMode )
+		{
+			BitMask filledHoles = morphology.fillHoles( output );
+			this.debugOut( filledHoles, "filled holes" );
+		}
 
 		return output;
 	}
 
 	/**
-	 * Inverts two input images individually and ORs them pixel-wise. Finally,
-	 * the output is inverted for further processing.
-	 * 
-	 * @param simMedianFiltered
-	 *            A median-filtered shape index map ({@code Img<BitType>})
-	 * @param resultData
-	 *            A local thresholded version of the input image
-	 *            ({@code Img<BitType>})
-	 * @param output
-	 *            a binary mask ({@code Img<BitType>})
-	 */
-	@SuppressWarnings( "unchecked" )
-	private void combineImages( Img< BitType > simMedianFiltered, Img< BitType > resultData, Img< BitType > output )
-	{
-		Map< String, Object > map = new HashMap<>();
-		map.put( "sim", simMedianFiltered );
-		map.put( "thresholded", resultData );
-
-		Img< BitType > result = ( Img< BitType > ) opService.eval( "!(!sim || !thresholded)", map );
-		opService.copy().img( output, result );
-	}
-
-	/**
-	 * Inplace inversion of an image of BitType. TODO ImageJ2: use Ops
+	 * Shows interim results (images) when ImageJ's debug mode is enabled.
 	 * 
-	 * @param inputData
+	 * @param img
+	 * @param name
 	 */
-	private static void invert( Img< BitType > inputData )
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private void debugOut( Img< ? extends RealType > img, String name )
 	{
-		Cursor< BitType > cursor = inputData.cursor();
-		while ( cursor.hasNext() )
+		if ( IJ.debugMode )
 		{
-			cursor.fwd();
-			BitType value = cursor.get();
-			value.not();
+			ImageJFunctions.show( img, name );
 		}
 	}
 
 	/**
-	 * Shows interim results (images) when ImageJ's debug mode is enabled.
+	 * Shows interim results (masks) and their area when ImageJ's debug mode is
+	 * enabled.
 	 * 
-	 * @param img
+	 * @param mask
 	 * @param name
 	 */
-	@SuppressWarnings( { "unchecked", "rawtypes" } )
-	private void debugOut( Img< ? extends RealType > img, String name )
+	private void debugOut( BitMask mask, String name )
 	{
 		if ( IJ.debugMode )
 		{
-			ImageJFunctions.show( img, name );
+			logService.info( String.format( "Area of %s: %d pixels", name, mask.count() ) );
+			ImageJFunctions.show( BitMasks.toImg( mask ), name );
 		}
 	}
 
@@ -642,8 +606,31 @@ public class SegmentationPlugin extends ContextCommand
 	 *            radius of the Gaussian used for smoothing the input (before
 	 *            computing the shape index map)
 	 * @return a binary mask (i.e. {@code Img<BitType>}
+	 * @see #createThresholdedShapeIndexMask(RandomAccessibleInterval, double,
+	 *      double, double)
 	 */
 	public < T extends RealType< T > > Img< BitType > createThresholdedShapeIndexMap( RandomAccessibleInterval< T > input, final double lt, final double ut, final double gaussradius )
+	{
+		return BitMasks.toImg( createThresholdedShapeIndexMask( input, lt, ut, gaussradius ) );
+	}
+
+	/**
+	 * Computes the shape index map (SIM) for an input images an applies the
+	 * (manual) thresholds to create a {@link BitMask} that can be used for
+	 * further processing. Both thresholds are applied in a single pass.
+	 * 
+	 * @param input
+	 *            Input image
+	 * @param lt
+	 *            lower threshold to be set on shape index map
+	 * @param ut
+	 *            upper threshold to be set on shape index map
+	 * @param gaussradius
+	 *            radius of the Gaussian used for smoothing the input (before
+	 *            computing the shape index map)
+	 * @return a {@link BitMask} where {@code lt < sim < ut}
+	 */
+	public < T extends RealType< T > > BitMask createThresholdedShapeIndexMask( RandomAccessibleInterval< T > input, final double lt, final double ut, final double gaussradius )
 	{
 		/* Compute shape index map */
 		Shape_Index_Map_imglib2 simCommand = new Shape_Index_Map_imglib2();
@@ -655,36 +642,10 @@ public class SegmentationPlugin extends ContextCommand
 		Img< FloatType > sim = simCommand.getShapeIndexMap();
 
 		/*
-		 * Do a manual thresholding to create a new ByteProcessor (instead of
-		 * just applying a LUT)
+		 * Do a manual thresholding to create a new mask (instead of just
+		 * applying a LUT)
 		 */
-		int threads = 1;
-		Img< BitType > simLowerThreshold = Thresholder.threshold( sim, new FloatType( ( float ) lt ), true, threads );
-		Img< BitType > simUpperThreshold = Thresholder.threshold( sim, new FloatType( ( float ) ut ), false, threads );
-
-		// Combine both images with AND
-		// TODO ImageJ2: use Ops
-		Img< BitType > thresholdedSim = simLowerThreshold.factory().create( simLowerThreshold, new BitType() );
-
-		Cursor< BitType > simThresholdedCursor = thresholdedSim.cursor();
-		Cursor< BitType > simLowerCursor = simLowerThreshold.cursor();
-		Cursor< BitType > simUpperCursor = simUpperThreshold.cursor();
-
-		while ( simThresholdedCursor.hasNext() )
-		{
-			// Move all cursors forward by one pixel
-			simThresholdedCursor.fwd();
-			simLowerCursor.fwd();
-			simUpperCursor.fwd();
-
-			BitType lowerBoolean = simLowerCursor.get();
-			BitType upperBoolean = simUpperCursor.get();
-			lowerBoolean.and( upperBoolean );
-
-			simThresholdedCursor.get().set( lowerBoolean );
-		}
-
-		return thresholdedSim;
+		return BitMasks.threshold( sim, ( float ) lt, ( float ) ut );
 	}
 
 	/**
@@ -0,0 +1,177 @@
+package de.fzj.jungle.segmentation;
+
+/**
+ * Fused computation of the shape index map from a (blurred) image plane.
+ * <p>
+ * The Hessian is derived from central differences of the first order
+ * derivatives, which are kept in three rolling row buffers. Hence, only a
+ * single streaming pass over the input is required and neither the first nor
+ * the second order derivatives are materialized as images. Since the mixed
+ * derivatives {@code dxy} and {@code dyx} are identical, they are computed
+ * only once. The image is processed in bands of rows (tiles) that are
+ * independent of each other and can be computed concurrently.
+ * </p>
+ * <p>
+ * Out-of-bounds values are obtained by replicating the border pixels (like
+ * {@code Views.extendBorder()}).
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public final class ShapeIndexKernel
+{
+
+	/** Default number of rows in a tile. */
+	public static final int DEFAULT_TILE_HEIGHT = 64;
+
+	private static final float FACTOR = 2 / ( float ) Math.PI;
+
+	private ShapeIndexKernel()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * Computes the number of tiles a plane of a given height is split into.
+	 *
+	 * @param height
+	 *            height of the plane
+	 * @param tileHeight
+	 *            number of rows per tile
+	 * @return the number of tiles
+	 */
+	public static int numTiles( int height, int tileHeight )
+	{
+		return ( height + tileHeight - 1 ) / tileHeight;
+	}
+
+	/**
+	 * Computes the shape index map of a complete plane.
+	 *
+	 * @param blurred
+	 *            blurred input image
+	 * @param out
+	 *            output image, may not be the same array as {@code blurred}
+	 * @param offset
+	 *            index of the first pixel of the plane in both arrays
+	 * @param width
+	 *            width of the plane
+	 * @param height
+	 *            height of the plane
+	 */
+	public static void compute( float[] blurred, float[] out, int offset, int width, int height )
+	{
+		computeRows( blurred, out, offset, width, height, 0, height );
+	}
+
+	/**
+	 * Computes a single tile of the shape index map.
+	 *
+	 * @param tile
+	 *            index of the tile
+	 * @param tileHeight
+	 *            number of rows per tile
+	 * @see #compute(float[], float[], int, int, int)
+	 */
+	public static void computeTile( float[] blurred, float[] out, int offset, int width, int height, int tile, int tileHeight )
+	{
+		int rowStart = tile * tileHeight;
+		computeRows( blurred, out, offset, width, height, rowStart, Math.min( height, rowStart + tileHeight ) );
+	}
+
+	/**
+	 * Computes the rows {@code [rowStart, rowEnd)} of the shape index map.
+	 */
+	static void computeRows( float[] blurred, float[] out, int offset, int width, int height, int rowStart, int rowEnd )
+	{
+		if ( rowStart >= rowEnd ) { return; }
+
+		// Rolling buffers of first order derivatives for rows y-1, y, y+1
+		float[] dxPrevious = new float[ width ];
+		float[] dxCurrent = new float[ width ];
+		float[] dxNext = new float[ width ];
+		float[] dyPrevious = new float[ width ];
+		float[] dyCurrent = new float[ width ];
+		float[] dyNext = new float[ width ];
+
+		derivatives( blurred, offset, width, height, rowStart - 1, dxPrevious, dyPrevious );
+		derivatives( blurred, offset, width, height, rowStart, dxCurrent, dyCurrent );
+
+		for ( int y = rowStart; y < rowEnd; y++ )
+		{
+			derivatives( blurred, offset, width, height, y + 1, dxNext, dyNext );
+
+			// Replicate border of the first order derivatives
+			float[] dxAbove = ( y == 0 ) ? dxCurrent : dxPrevious;
+			float[] dxBelow = ( y == height - 1 ) ? dxCurrent : dxNext;
+			float[] dyAbove = ( y == 0 ) ? dyCurrent : dyPrevious;
+			float[] dyBelow = ( y == height - 1 ) ? dyCurrent : dyNext;
+
+			int index = offset + y * width;
+			for ( int x = 0; x < width; x++ )
+			{
+				int left = ( x == 0 ) ? 0 : x - 1;
+				int right = ( x == width - 1 ) ? x : x + 1;
+
+				float dxx = ( dxCurrent[ right ] - dxCurrent[ left ] ) * 0.5f;
+				float dxy = ( dxBelow[ x ] - dxAbove[ x ] ) * 0.5f;
+				float dyy = ( dyBelow[ x ] - dyAbove[ x ] ) * 0.5f;
+
+				out[ index + x ] = shapeIndex( -dxx, -dxy, -dxy, -dyy );
+			}
+
+			// Rotate buffers
+			float[] tmp = dxPrevious;
+			dxPrevious = dxCurrent;
+			dxCurrent = dxNext;
+			dxNext = tmp;
+
+			tmp = dyPrevious;
+			dyPrevious = dyCurrent;
+			dyCurrent = dyNext;
+			dyNext = tmp;
+		}
+	}
+
+	/**
+	 * Computes the first order derivatives of a single row. Rows outside of
+	 * the plane are clamped to the border.
+	 */
+	private static void derivatives( float[] blurred, int offset, int width, int height, int y, float[] dx, float[] dy )
+	{
+		y = Math.max( 0, Math.min( height - 1, y ) );
+
+		int row = offset + y * width;
+		int rowAbove = offset + Math.max( 0, y - 1 ) * width;
+		int rowBelow = offset + Math.min( height - 1, y + 1 ) * width;
+
+		for ( int x = 0; x < width; x++ )
+		{
+			int left = ( x == 0 ) ? 0 : x - 1;
+			int right = ( x == width - 1 ) ? x : x + 1;
+
+			dx[ x ] = ( blurred[ row + right ] - blurred[ row + left ] ) * 0.5f;
+			dy[ x ] = ( blurred[ rowBelow + x ] - blurred[ rowAbove + x ] ) * 0.5f;
+		}
+	}
+
+	/**
+	 * The formula is:
+	 *
+	 * <pre>
+	 *                                 dnx_x + dny_y
+	 * s = 2 / PI * arctan ---------------------------------------
+	 *                     sqrt((dnx_x - dny_y)^2 + 4 dny_x dnx_y)
+	 * </pre>
+	 *
+	 * @return the shape index or 0 if it is undefined.
+	 */
+	static float shapeIndex( float dnx_x, float dnx_y, float dny_x, float dny_y )
+	{
+		double D = Math.sqrt( ( dnx_x - dny_y ) * ( dnx_x - dny_y ) + 4 * dnx_y * dny_x );
+		float s = FACTOR * ( float ) Math.atan( ( dnx_x + dny_y ) / D );
+
+		return Float.isNaN( s ) ? 0f : s;
+	}
+
+}
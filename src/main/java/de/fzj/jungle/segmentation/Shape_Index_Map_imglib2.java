@@ -1,6 +1,7 @@
 package de.fzj.jungle.segmentation;
 
 import java.io.IOException;
+import java.util.stream.IntStream;
 
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
@@ -13,7 +14,9 @@ import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -47,93 +50,53 @@ public class Shape_Index_Map_imglib2 extends ContextCommand {
 	private Img<FloatType> shapeIndexMap;
 
 	/**
-	 * The formula is:
-	 *
-	 *                                 dnx_x + dny_y
-	 * s = 2 / PI * arctan ---------------------------------------
-	 *                     sqrt((dnx_x - dny_y)^2 + 4 dny_x dnx_y)
-	 *
-	 * where _x and _y are the x and y components of the
-	 * partial derivatives of the normal vector of the surface
-	 * defined by the intensities of the image.
-	 *
-	 * n_x and n_y are the negative partial derivatives of the
-	 * intensity, approximated by simple differences.
+	 * Computes the shape index map of an image. The first two dimensions are
+	 * assumed to be x and y, all further dimensions are processed plane by
+	 * plane.
+	 * <p>
+	 * The Hessian is computed by {@link ShapeIndexKernel} in a single pass
+	 * over the blurred image and written directly into the output. Tiles of
+	 * {@link ShapeIndexKernel#DEFAULT_TILE_HEIGHT} rows are computed
+	 * concurrently.
+	 * </p>
+	 * 
+	 * @see ShapeIndexKernel#shapeIndex(float, float, float, float)
 	 */
 	public <T extends RealType<T>> Img<FloatType> getShapeIndex(RandomAccessibleInterval<T> image) {
 		// Convert input image to FloatType
 		Converter<T, FloatType> converter = new RealFloatConverter<T>();
 		RandomAccessibleInterval<FloatType> floatView = Converters.convert(image, converter, new FloatType());
 		
-		// Factory for creating FloatType images (SIM and derivatives)
-		final ArrayImgFactory<FloatType> factory = new ArrayImgFactory<FloatType>();
+		final long[] dimensions = Intervals.dimensionsAsLongArray(floatView);
 		
-		final Img<FloatType> blurred = factory.create(floatView, new FloatType());
+		final ArrayImg<FloatType, FloatArray> blurred = ArrayImgs.floats(dimensions);
 		blur(floatView, blurred, blurRadius);
 //		ImageJFunctions.show(blurred, "Blurred");	
 		
-		final Img<FloatType> dx = factory.create(floatView, new FloatType());
-		gradient(Views.extendBorder(blurred), dx, 0);
-//		ImageJFunctions.show(dx, "dx");
-		
-		final Img<FloatType> dy = factory.create(floatView, new FloatType());
-		gradient(Views.extendBorder(blurred), dy, 1);
-//		ImageJFunctions.show(dy, "dy");
-		
-		final Img<FloatType> dxx = factory.create(dx, new FloatType());
-		gradient(Views.extendBorder(dx), dxx, 0);
-//		ImageJFunctions.show(dxx, "dxx");
-		
-		final Img<FloatType> dxy = factory.create(dx, new FloatType());
-		gradient(Views.extendBorder(dx), dxy, 1);
-//		ImageJFunctions.show(dxy, "dxy");
+		// Create a new image of the same type with same dimensions as the input
+		final ArrayImg<FloatType, FloatArray> shapeIndexMap = ArrayImgs.floats(dimensions);
 		
-		final Img<FloatType> dyx = factory.create(dy, new FloatType());
-		gradient(Views.extendBorder(dy), dyx, 0);
-//		ImageJFunctions.show(dyx, "dyx");
+		final float[] blurredData = blurred.update(null).getCurrentStorageArray();
+		final float[] shapeIndexData = shapeIndexMap.update(null).getCurrentStorageArray();
 		
-		final Img<FloatType> dyy = factory.create(dy, new FloatType());
-		gradient(Views.extendBorder(dy), dyy, 1);
-//		ImageJFunctions.show(dyy, "dyy");
+		final int width = (int) dimensions[0];
+		final int height = dimensions.length > 1 ? (int) dimensions[1] : 1;
+		final int planeSize = width * height;
+		if (planeSize == 0) {
+			return shapeIndexMap;
+		}
+		final int numPlanes = blurredData.length / planeSize;
 		
-		float factor = 2 / (float)Math.PI;
+		final int tileHeight = ShapeIndexKernel.DEFAULT_TILE_HEIGHT;
+		final int tilesPerPlane = ShapeIndexKernel.numTiles(height, tileHeight);
 		
-		// Create a new image of the same type with same dimensions as the input
-		Img<FloatType> shapeIndexMap = factory.create(floatView, new FloatType());
-		Cursor<FloatType> shapeIndexCursor = shapeIndexMap.cursor();
+		IntStream.range(0, numPlanes * tilesPerPlane).parallel().forEach(i -> {
+			int plane = i / tilesPerPlane;
+			int tile = i % tilesPerPlane;
+			ShapeIndexKernel.computeTile(blurredData, shapeIndexData, plane * planeSize, width, height, tile, tileHeight);
+		});
 		
-		// Create cursors for all images
-        Cursor<FloatType> cursorDxx = dxx.cursor();
-        Cursor<FloatType> cursorDxy = dxy.cursor();
-        Cursor<FloatType> cursorDyx = dyx.cursor();
-        Cursor<FloatType> cursorDyy = dyy.cursor();
-        
-        // Iterate
-        while (shapeIndexCursor.hasNext()) {
-            // Move all cursors forward by one pixel
-        	shapeIndexCursor.fwd();
-        	cursorDxx.fwd();
-            cursorDxy.fwd();
-            cursorDyx.fwd();
-            cursorDyy.fwd();
-            
-            float dnx_x = -cursorDxx.get().getRealFloat();
-            float dnx_y = -cursorDxy.get().getRealFloat();
-            float dny_x = -cursorDyx.get().getRealFloat();
-            float dny_y = -cursorDyy.get().getRealFloat();
-            
-			double D = Math.sqrt((dnx_x - dny_y) * (dnx_x - dny_y) + 4 * dnx_y * dny_x);
-			float s = factor * (float)Math.atan((dnx_x + dny_y) / D);
-            
-			FloatType sFloatType = new FloatType(s);		
-			FloatType zeroFloatType = new FloatType(0f);
-			
-            // set the value of this pixel of the output image to the same as the input,
-            // every Type supports T.set( T type )
-            shapeIndexCursor.get().set(Float.isNaN(s) ? zeroFloatType : sFloatType);
-        }
-        
-        return shapeIndexMap;
+		return shapeIndexMap;
 	}
 	
 	@Override
@@ -0,0 +1,384 @@
+package de.fzj.jungle.segmentation.binary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Binary morphology (erosion, dilation, opening, closing, and hole filling)
+ * with a 3x3 structuring element on {@link BitMask}s.
+ * <p>
+ * All operations work on 64 pixels at once. Erosion and dilation split the
+ * mask into bands of rows (tiles) that are processed concurrently. Each tile
+ * reads a one-row halo of its neighbours from the source buffer of the current
+ * iteration and writes into a second buffer. The buffers are swapped after
+ * each iteration, hence, {@code n} iterations require exactly two buffers.
+ * </p>
+ * <p>
+ * Pixels outside of the mask do not contribute to the result, which is
+ * identical to mirroring or replicating the border for a 3x3 structuring
+ * element.
+ * </p>
+ * <p>
+ * Tiles are executed in the {@link ForkJoinPool} of the calling thread (or
+ * the common pool if the calling thread is not a worker of a pool).
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class BinaryMorphology
+{
+
+	/** Default number of rows in a tile. */
+	public static final int DEFAULT_TILE_HEIGHT = 128;
+
+	/* Private fields */
+	private final boolean eightConnected;
+
+	private final int tileHeight;
+
+	/**
+	 * Constructs an eight-connected {@link BinaryMorphology} with default tile
+	 * height.
+	 */
+	public BinaryMorphology()
+	{
+		this( true, DEFAULT_TILE_HEIGHT );
+	}
+
+	/**
+	 * Constructs a {@link BinaryMorphology}.
+	 *
+	 * @param eightConnected
+	 *            if {@code true}, the structuring element is a 3x3 square;
+	 *            otherwise it is a cross (four-connected)
+	 * @param tileHeight
+	 *            number of rows that are processed by a single task
+	 */
+	public BinaryMorphology( boolean eightConnected, int tileHeight )
+	{
+		this.eightConnected = eightConnected;
+		this.tileHeight = Math.max( 1, tileHeight );
+	}
+
+	/**
+	 * Erodes a mask {@code iterations} times.
+	 *
+	 * @param mask
+	 *            mask to erode, will not be modified
+	 * @param iterations
+	 *            number of erosions
+	 * @return a new, eroded {@link BitMask}
+	 */
+	public BitMask erode( BitMask mask, int iterations )
+	{
+		return iterate( mask, iterations, true );
+	}
+
+	/**
+	 * Dilates a mask {@code iterations} times.
+	 *
+	 * @param mask
+	 *            mask to dilate, will not be modified
+	 * @param iterations
+	 *            number of dilations
+	 * @return a new, dilated {@link BitMask}
+	 */
+	public BitMask dilate( BitMask mask, int iterations )
+	{
+		return iterate( mask, iterations, false );
+	}
+
+	/**
+	 * Morphological opening, i.e. {@code iterations} erosions followed by
+	 * {@code iterations} dilations.
+	 */
+	public BitMask open( BitMask mask, int iterations )
+	{
+		return dilate( erode( mask, iterations ), iterations );
+	}
+
+	/**
+	 * Morphological closing, i.e. {@code iterations} dilations followed by
+	 * {@code iterations} erosions.
+	 */
+	public BitMask close( BitMask mask, int iterations )
+	{
+		return erode( dilate( mask, iterations ), iterations );
+	}
+
+	/**
+	 * Fills all background regions that are not connected to the border of
+	 * the mask. The connectivity of the background is determined by
+	 * {@link #BinaryMorphology(boolean, int)}.
+	 *
+	 * @param mask
+	 *            mask to fill, will not be modified
+	 * @return a new {@link BitMask} without holes
+	 */
+	public BitMask fillHoles( BitMask mask )
+	{
+		final int height = mask.getHeight();
+		final int wordsPerRow = mask.getWordsPerRow();
+		final long lastWordMask = mask.getLastWordMask();
+
+		if ( height == 0 || wordsPerRow == 0 ) { return mask.copy(); }
+
+		// Background
+		BitMask background = mask.copy().not();
+		final long[] bg = background.getWords();
+
+		// Background that is reachable from the border
+		BitMask reachable = new BitMask( mask.getWidth(), height );
+		final long[] r = reachable.getWords();
+
+		// Seed with the background pixels of the border
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			if ( y == 0 || y == height - 1 )
+			{
+				System.arraycopy( bg, offset, r, offset, wordsPerRow );
+			}
+			else
+			{
+				r[ offset ] |= bg[ offset ] & 1L;
+				r[ offset + wordsPerRow - 1 ] |= bg[ offset + wordsPerRow - 1 ] & ( 1L << ( mask.getWidth() - 1 ) );
+			}
+		}
+
+		final long[] neighbour = new long[ wordsPerRow ];
+
+		// Alternate forward and backward sweeps until nothing changes (seeds
+		// of the last row only propagate in backward sweeps)
+		boolean changed = true;
+		boolean forward = true;
+		for ( int sweep = 0; changed || sweep < 2; sweep++ )
+		{
+			changed = false;
+
+			for ( int i = 0; i < height; i++ )
+			{
+				int y = forward ? i : height - 1 - i;
+				int previousY = forward ? y - 1 : y + 1;
+				int offset = y * wordsPerRow;
+
+				if ( previousY >= 0 && previousY < height )
+				{
+					if ( eightConnected )
+					{
+						horizontal( r, previousY * wordsPerRow, wordsPerRow, lastWordMask, false, neighbour );
+					}
+					else
+					{
+						System.arraycopy( r, previousY * wordsPerRow, neighbour, 0, wordsPerRow );
+					}
+
+					for ( int w = 0; w < wordsPerRow; w++ )
+					{
+						long seeded = r[ offset + w ] | ( neighbour[ w ] & bg[ offset + w ] );
+						changed |= seeded != r[ offset + w ];
+						r[ offset + w ] = seeded;
+					}
+				}
+
+				changed |= fillRow( r, bg, offset, wordsPerRow );
+			}
+
+			forward = !forward;
+		}
+
+		return reachable.not();
+	}
+
+	/**
+	 * Propagates the set bits of {@code seeds} along the runs of set bits of
+	 * {@code runs} within a single row.
+	 *
+	 * @return {@code true} if {@code seeds} has been changed
+	 */
+	static boolean fillRow( long[] seeds, long[] runs, int offset, int wordsPerRow )
+	{
+		boolean changed = false;
+
+		// Propagate towards higher x
+		long carry = 0;
+		for ( int w = 0; w < wordsPerRow; w++ )
+		{
+			long m = runs[ offset + w ];
+			long s = ( seeds[ offset + w ] | ( carry & m ) ) & m;
+			long filled = ( ( ( m + s ) ^ m ) & m ) | s;
+
+			carry = ( filled >>> 63 ) & 1L;
+			changed |= filled != seeds[ offset + w ];
+			seeds[ offset + w ] = filled;
+		}
+
+		// Propagate towards lower x (bit reversed)
+		carry = 0;
+		for ( int w = wordsPerRow - 1; w >= 0; w-- )
+		{
+			long m = Long.reverse( runs[ offset + w ] );
+			long s = ( Long.reverse( seeds[ offset + w ] ) | ( carry & m ) ) & m;
+			long filled = ( ( ( m + s ) ^ m ) & m ) | s;
+
+			carry = ( filled >>> 63 ) & 1L;
+			filled = Long.reverse( filled );
+			changed |= filled != seeds[ offset + w ];
+			seeds[ offset + w ] = filled;
+		}
+
+		return changed;
+	}
+
+	private BitMask iterate( BitMask mask, int iterations, boolean erode )
+	{
+		BitMask source = mask.copy();
+		if ( iterations <= 0 ) { return source; }
+
+		BitMask target = new BitMask( mask.getWidth(), mask.getHeight() );
+
+		final int numTiles = ( mask.getHeight() + tileHeight - 1 ) / tileHeight;
+
+		for ( int i = 0; i < iterations; i++ )
+		{
+			if ( numTiles <= 1 )
+			{
+				apply( source, target, 0, mask.getHeight(), erode );
+			}
+			else
+			{
+				List< RecursiveAction > tiles = new ArrayList<>( numTiles );
+				for ( int t = 0; t < numTiles; t++ )
+				{
+					final BitMask src = source;
+					final BitMask dst = target;
+					final int rowStart = t * tileHeight;
+					final int rowEnd = Math.min( mask.getHeight(), rowStart + tileHeight );
+
+					tiles.add( new RecursiveAction()
+					{
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						protected void compute()
+						{
+							apply( src, dst, rowStart, rowEnd, erode );
+						}
+					} );
+				}
+
+				ForkJoinTask.invokeAll( tiles );
+			}
+
+			// Swap buffers
+			BitMask tmp = source;
+			source = target;
+			target = tmp;
+		}
+
+		return source;
+	}
+
+	/**
+	 * Applies a single erosion / dilation to the rows {@code [rowStart,
+	 * rowEnd)}.
+	 */
+	private void apply( BitMask source, BitMask target, int rowStart, int rowEnd, boolean erode )
+	{
+		final int height = source.getHeight();
+		final int wordsPerRow = source.getWordsPerRow();
+		final long lastWordMask = source.getLastWordMask();
+		final long[] src = source.getWords();
+		final long[] dst = target.getWords();
+
+		// Horizontally processed rows y-1, y, and y+1
+		long[] above = new long[ wordsPerRow ];
+		long[] current = new long[ wordsPerRow ];
+		long[] below = new long[ wordsPerRow ];
+
+		if ( rowStart > 0 )
+		{
+			horizontal( src, ( rowStart - 1 ) * wordsPerRow, wordsPerRow, lastWordMask, erode, above );
+		}
+		if ( rowStart < height )
+		{
+			horizontal( src, rowStart * wordsPerRow, wordsPerRow, lastWordMask, erode, current );
+		}
+
+		for ( int y = rowStart; y < rowEnd; y++ )
+		{
+			boolean hasAbove = y > 0;
+			boolean hasBelow = y < height - 1;
+
+			if ( hasBelow )
+			{
+				horizontal( src, ( y + 1 ) * wordsPerRow, wordsPerRow, lastWordMask, erode, below );
+			}
+
+			int offset = y * wordsPerRow;
+			for ( int w = 0; w < wordsPerRow; w++ )
+			{
+				// Vertical neighbours only (cross) or horizontally processed
+				// rows (square)
+				long a = hasAbove ? ( eightConnected ? above[ w ] : src[ offset - wordsPerRow + w ] ) : ( erode ? -1L : 0L );
+				long b = hasBelow ? ( eightConnected ? below[ w ] : src[ offset + wordsPerRow + w ] ) : ( erode ? -1L : 0L );
+
+				dst[ offset + w ] = erode ? ( current[ w ] & a & b ) : ( current[ w ] | a | b );
+			}
+			dst[ offset + wordsPerRow - 1 ] &= lastWordMask;
+
+			// Rotate buffers
+			long[] tmp = above;
+			above = current;
+			current = below;
+			below = tmp;
+		}
+	}
+
+	/**
+	 * Combines each pixel of a row with its left and right neighbour (AND for
+	 * erosion, OR for dilation). Pixels outside of the row are neutral.
+	 */
+	static void horizontal( long[] src, int offset, int wordsPerRow, long lastWordMask, boolean erode, long[] out )
+	{
+		final long outside = erode ? 1L : 0L;
+
+		for ( int w = 0; w < wordsPerRow; w++ )
+		{
+			long word = src[ offset + w ];
+
+			if ( erode && w == wordsPerRow - 1 )
+			{
+				// Padding bits are neutral for erosion
+				word |= ~lastWordMask;
+			}
+
+			long previous = ( w > 0 ) ? ( src[ offset + w - 1 ] >>> 63 ) : outside;
+
+			long next;
+			if ( w < wordsPerRow - 1 )
+			{
+				next = src[ offset + w + 1 ] << 63;
+				if ( erode && w + 1 == wordsPerRow - 1 )
+				{
+					next = ( src[ offset + w + 1 ] | ~lastWordMask ) << 63;
+				}
+			}
+			else
+			{
+				next = outside << 63;
+			}
+
+			long left = ( word << 1 ) | previous;
+			long right = ( word >>> 1 ) | next;
+
+			out[ w ] = erode ? ( word & left & right ) : ( word | left | right );
+		}
+
+		out[ wordsPerRow - 1 ] &= lastWordMask;
+	}
+
+}
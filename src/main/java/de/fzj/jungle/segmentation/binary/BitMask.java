@@ -0,0 +1,300 @@
+package de.fzj.jungle.segmentation.binary;
+
+import java.util.Arrays;
+
+/**
+ * A two-dimensional binary image that stores each row as packed bits in a
+ * {@code long[]}.
+ * <p>
+ * Pixel {@code (x, y)} is stored in bit {@code x % 64} of word
+ * {@code y * wordsPerRow + x / 64}. Each row starts at a word boundary. Bits
+ * beyond {@code width} in the last word of a row are always zero.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class BitMask
+{
+
+	/* Private fields */
+	private final int width;
+
+	private final int height;
+
+	private final int wordsPerRow;
+
+	private final long[] words;
+
+	/**
+	 * Constructs an empty {@link BitMask}.
+	 *
+	 * @param width
+	 *            width of the mask
+	 * @param height
+	 *            height of the mask
+	 */
+	public BitMask( int width, int height )
+	{
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = ( width + 63 ) >>> 6;
+		this.words = new long[ wordsPerRow * height ];
+	}
+
+	/**
+	 * @return the width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return the height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return the number of words per row
+	 */
+	public int getWordsPerRow()
+	{
+		return wordsPerRow;
+	}
+
+	/**
+	 * Provides direct access to the packed bits. Modifications are reflected
+	 * in {@code this}.
+	 *
+	 * @return the packed bits
+	 */
+	public long[] getWords()
+	{
+		return words;
+	}
+
+	/**
+	 * @return a mask of the valid bits in the last word of each row.
+	 */
+	public long getLastWordMask()
+	{
+		int remainder = width & 63;
+
+		return ( remainder == 0 ) ? -1L : ( 1L << remainder ) - 1;
+	}
+
+	public boolean get( int x, int y )
+	{
+		return ( words[ y * wordsPerRow + ( x >>> 6 ) ] & ( 1L << x ) ) != 0;
+	}
+
+	public void set( int x, int y, boolean value )
+	{
+		int index = y * wordsPerRow + ( x >>> 6 );
+
+		if ( value )
+		{
+			words[ index ] |= ( 1L << x );
+		}
+		else
+		{
+			words[ index ] &= ~( 1L << x );
+		}
+	}
+
+	/**
+	 * Inplace inversion of all pixels.
+	 *
+	 * @return {@code this}
+	 */
+	public BitMask not()
+	{
+		long lastWordMask = getLastWordMask();
+
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			for ( int i = 0; i < wordsPerRow; i++ )
+			{
+				words[ offset + i ] = ~words[ offset + i ];
+			}
+			words[ offset + wordsPerRow - 1 ] &= lastWordMask;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Inplace, pixel-wise AND with another {@link BitMask} of the same
+	 * dimensions.
+	 *
+	 * @return {@code this}
+	 */
+	public BitMask and( BitMask other )
+	{
+		checkDimensions( other );
+
+		for ( int i = 0; i < words.length; i++ )
+		{
+			words[ i ] &= other.words[ i ];
+		}
+
+		return this;
+	}
+
+	/**
+	 * Inplace, pixel-wise OR with another {@link BitMask} of the same
+	 * dimensions.
+	 *
+	 * @return {@code this}
+	 */
+	public BitMask or( BitMask other )
+	{
+		checkDimensions( other );
+
+		for ( int i = 0; i < words.length; i++ )
+		{
+			words[ i ] |= other.words[ i ];
+		}
+
+		return this;
+	}
+
+	/**
+	 * Inplace, pixel-wise XOR with another {@link BitMask} of the same
+	 * dimensions.
+	 *
+	 * @return {@code this}
+	 */
+	public BitMask xor( BitMask other )
+	{
+		checkDimensions( other );
+
+		for ( int i = 0; i < words.length; i++ )
+		{
+			words[ i ] ^= other.words[ i ];
+		}
+
+		return this;
+	}
+
+	/**
+	 * Inplace, pixel-wise AND NOT with another {@link BitMask} of the same
+	 * dimensions, i.e. clears all pixels that are set in {@code other}.
+	 *
+	 * @return {@code this}
+	 */
+	public BitMask andNot( BitMask other )
+	{
+		checkDimensions( other );
+
+		for ( int i = 0; i < words.length; i++ )
+		{
+			words[ i ] &= ~other.words[ i ];
+		}
+
+		return this;
+	}
+
+	/**
+	 * @return the number of set pixels (i.e. the area of the foreground).
+	 */
+	public long count()
+	{
+		long count = 0;
+		for ( int y = 0; y < height; y++ )
+		{
+			count += count( y );
+		}
+
+		return count;
+	}
+
+	/**
+	 * Counts the set pixels of a single row. Bits beyond the width of the
+	 * mask are ignored.
+	 *
+	 * @param y
+	 *            row index
+	 * @return the number of set pixels in row {@code y}
+	 */
+	public int count( int y )
+	{
+		if ( wordsPerRow == 0 ) { return 0; }
+
+		int count = 0;
+		int offset = y * wordsPerRow;
+		for ( int i = 0; i < wordsPerRow - 1; i++ )
+		{
+			count += Long.bitCount( words[ offset + i ] );
+		}
+
+		return count + Long.bitCount( words[ offset + wordsPerRow - 1 ] & getLastWordMask() );
+	}
+
+	/**
+	 * @return a deep copy of {@code this}.
+	 */
+	public BitMask copy()
+	{
+		BitMask copy = new BitMask( width, height );
+		System.arraycopy( words, 0, copy.words, 0, words.length );
+
+		return copy;
+	}
+
+	/**
+	 * Copies all pixels of another {@link BitMask} of the same dimensions into
+	 * {@code this}.
+	 *
+	 * @param other
+	 *            source
+	 */
+	public void set( BitMask other )
+	{
+		checkDimensions( other );
+		System.arraycopy( other.words, 0, words, 0, words.length );
+	}
+
+	/**
+	 * Sets all pixels to {@code false}.
+	 */
+	public void clear()
+	{
+		Arrays.fill( words, 0L );
+	}
+
+	/**
+	 * @return {@code true} if {@code other} has the same dimensions.
+	 */
+	public boolean hasSameDimensions( BitMask other )
+	{
+		return width == other.width && height == other.height;
+	}
+
+	void checkDimensions( BitMask other )
+	{
+		if ( !hasSameDimensions( other ) ) { throw new IllegalArgumentException( String.format( "Dimensions do not match: %dx%d vs. %dx%d", width, height, other.width, other.height ) ); }
+	}
+
+	@Override
+	public boolean equals( Object obj )
+	{
+		if ( this == obj ) { return true; }
+		if ( !( obj instanceof BitMask ) ) { return false; }
+
+		BitMask other = ( BitMask ) obj;
+
+		return hasSameDimensions( other ) && Arrays.equals( words, other.words );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * ( 31 * width + height ) + Arrays.hashCode( words );
+	}
+
+}
@@ -0,0 +1,200 @@
+package de.fzj.jungle.segmentation.binary;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Conversions between {@link BitMask}s and ImgLib2 or ImageJ 1.x images.
+ *
+ * @author Stefan Helfrich
+ */
+public class BitMasks
+{
+
+	private BitMasks()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * Creates a {@link BitMask} from the first two dimensions of an image.
+	 *
+	 * @param img
+	 *            two-dimensional binary image
+	 * @return a new {@link BitMask}
+	 */
+	public static BitMask fromImg( RandomAccessibleInterval< BitType > img )
+	{
+		final int width = ( int ) img.dimension( 0 );
+		final int height = ( img.numDimensions() > 1 ) ? ( int ) img.dimension( 1 ) : 1;
+
+		BitMask mask = new BitMask( width, height );
+		long[] words = mask.getWords();
+		int wordsPerRow = mask.getWordsPerRow();
+
+		Cursor< BitType > cursor = Views.flatIterable( img ).cursor();
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			for ( int x = 0; x < width; x++ )
+			{
+				if ( cursor.next().get() )
+				{
+					words[ offset + ( x >>> 6 ) ] |= 1L << x;
+				}
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Creates a two-dimensional image from a {@link BitMask}.
+	 *
+	 * @param mask
+	 *            {@link BitMask} to convert
+	 * @return a new {@link Img}
+	 */
+	public static Img< BitType > toImg( BitMask mask )
+	{
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		final int wordsPerRow = mask.getWordsPerRow();
+		final long[] words = mask.getWords();
+
+		Img< BitType > img = ArrayImgs.bits( width, height );
+
+		Cursor< BitType > cursor = Views.flatIterable( img ).cursor();
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			for ( int x = 0; x < width; x++ )
+			{
+				cursor.next().set( ( words[ offset + ( x >>> 6 ) ] & ( 1L << x ) ) != 0 );
+			}
+		}
+
+		return img;
+	}
+
+	/**
+	 * Creates a {@link BitMask} from the first two dimensions of an image by
+	 * applying a lower and an upper threshold in a single pass. A pixel is set
+	 * if {@code lower < value < upper}.
+	 *
+	 * @param img
+	 *            two-dimensional image
+	 * @param lower
+	 *            lower (exclusive) threshold
+	 * @param upper
+	 *            upper (exclusive) threshold
+	 * @return a new {@link BitMask}
+	 */
+	public static < T extends RealType< T > > BitMask threshold( RandomAccessibleInterval< T > img, double lower, double upper )
+	{
+		final int width = ( int ) img.dimension( 0 );
+		final int height = ( img.numDimensions() > 1 ) ? ( int ) img.dimension( 1 ) : 1;
+
+		BitMask mask = new BitMask( width, height );
+		long[] words = mask.getWords();
+		int wordsPerRow = mask.getWordsPerRow();
+
+		Cursor< T > cursor = Views.flatIterable( img ).cursor();
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			for ( int x = 0; x < width; x++ )
+			{
+				double value = cursor.next().getRealDouble();
+				if ( value > lower && value < upper )
+				{
+					words[ offset + ( x >>> 6 ) ] |= 1L << x;
+				}
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Creates a binary {@link ByteProcessor} (0 for background, 255 for
+	 * foreground) from a {@link BitMask}. The result can directly be used
+	 * with ImageJ's binary operations and the ParticleAnalyzer.
+	 *
+	 * @param mask
+	 *            {@link BitMask} to convert
+	 * @return a new {@link ByteProcessor}
+	 */
+	public static ByteProcessor toByteProcessor( BitMask mask )
+	{
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		final int wordsPerRow = mask.getWordsPerRow();
+		final long[] words = mask.getWords();
+
+		ByteProcessor bp = new ByteProcessor( width, height );
+		byte[] pixels = ( byte[] ) bp.getPixels();
+
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			int row = y * width;
+			for ( int w = 0; w < wordsPerRow; w++ )
+			{
+				long word = words[ offset + w ];
+
+				// Only visit set bits
+				while ( word != 0 )
+				{
+					int bit = Long.numberOfTrailingZeros( word );
+					pixels[ row + ( w << 6 ) + bit ] = ( byte ) 255;
+					word &= word - 1;
+				}
+			}
+		}
+
+		return bp;
+	}
+
+	/**
+	 * Creates a {@link BitMask} from a {@link ByteProcessor}. All non-zero
+	 * pixels are considered foreground.
+	 *
+	 * @param bp
+	 *            {@link ByteProcessor} to convert
+	 * @return a new {@link BitMask}
+	 */
+	public static BitMask fromByteProcessor( ByteProcessor bp )
+	{
+		final int width = bp.getWidth();
+		final int height = bp.getHeight();
+
+		BitMask mask = new BitMask( width, height );
+		long[] words = mask.getWords();
+		int wordsPerRow = mask.getWordsPerRow();
+		byte[] pixels = ( byte[] ) bp.getPixels();
+
+		for ( int y = 0; y < height; y++ )
+		{
+			int offset = y * wordsPerRow;
+			int row = y * width;
+			for ( int x = 0; x < width; x++ )
+			{
+				if ( pixels[ row + x ] != 0 )
+				{
+					words[ offset + ( x >>> 6 ) ] |= 1L << x;
+				}
+			}
+		}
+
+		return mask;
+	}
+
+}
@@ -0,0 +1,60 @@
+package de.fzj.jungle.segmentation.binary;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * A connected component of a {@link BitMask} as found by a
+ * {@link ConnectedComponentLabeler}.
+ * <p>
+ * The outline is the traced outer boundary along pixel edges (i.e. the
+ * vertices are pixel corners), which corresponds to a traced ROI in ImageJ.
+ * Holes are enclosed by the outline. Geometric descriptors (area, centroid)
+ * of the outline are provided by
+ * {@link de.fzj.jungle.segmentation.CellGeometry}.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class ConnectedComponent
+{
+
+	/* Private fields */
+	private final int label;
+
+	private final Rectangle bounds;
+
+	private final Polygon outline;
+
+	ConnectedComponent( int label, Rectangle bounds, Polygon outline )
+	{
+		this.label = label;
+		this.bounds = bounds;
+		this.outline = outline;
+	}
+
+	/**
+	 * @return the (1-based) label of the component in raster order.
+	 */
+	public int getLabel()
+	{
+		return label;
+	}
+
+	/**
+	 * @return the bounding box of the component.
+	 */
+	public Rectangle getBounds()
+	{
+		return new Rectangle( bounds );
+	}
+
+	/**
+	 * @return the traced outer outline of the component.
+	 */
+	public Polygon getOutline()
+	{
+		return outline;
+	}
+
+}
@@ -8,11 +8,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import de.fzj.jungle.segmentation.Cell;
-import ij.gui.PolygonRoi;
-import ij.gui.Roi;
-import ij.measure.Measurements;
+import de.fzj.jungle.segmentation.CellGeometry;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 /**
  * {@link Filter} that splits a {@link Cell} when the area deviation from the
@@ -40,13 +37,9 @@ public class ConvexHullFilter implements Filter< Cell >
 		{
 			// Compute convex hull of cell
 			Polygon convexHullPolygon = c.getCellRoi().getConvexHull();
-			Roi convexHullRoi = new PolygonRoi( convexHullPolygon, Roi.POLYGON );
 
-			// Obtain area of convex hull
-			ip.setRoi( convexHullRoi );
-			ImageStatistics stats = ImageStatistics.getStatistics( ip, Measurements.AREA | Measurements.CENTROID, c.getCalibration() );
-
-			double convexHullArea = stats.area;
+			// Obtain area of convex hull (without modifying the shared ip)
+			double convexHullArea = CellGeometry.of( convexHullPolygon ).getArea( c.getCalibration() );
 
 			// Obtain area of cell
 			double cellArea = c.getEnclosedArea();
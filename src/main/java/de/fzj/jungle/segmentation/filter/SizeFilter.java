@@ -77,14 +77,15 @@ public class SizeFilter implements Filter<Cell> {
 		
 		while (iter.hasNext()) {
 			Cell cell = iter.next();
+			double area = cell.getEnclosedArea();
 			
-			if (cell.getEnclosedArea() < this.settings.getSingleCellThreshold()) {
+			if (area < this.settings.getSingleCellThreshold()) {
 				continue;
 			}
-			if (cell.getEnclosedArea() < this.settings.getMultipleCellsThreshold()) {
+			if (area < this.settings.getMultipleCellsThreshold()) {
 				singleCellList.add(cell);
 			} else {
-				if (cell.getEnclosedArea() < this.settings.getBackgroundThreshold()) {
+				if (area < this.settings.getBackgroundThreshold()) {
 					multipleCellList.add(cell);
 				}
 			}
@@ -378,4 +378,42 @@ public class BasicSplittingEnergy extends SplittingEnergy
 		return ( distance / minimum );
 	}
 
+	/**
+	 * Computes the same energy as
+	 * {@link #computeEnergy(Point, Point, Point, Point)} in constant time.
+	 * The segment lengths are taken from the prefix-summed arc lengths of
+	 * {@code contour} and the orientation is determined once for the whole
+	 * contour.
+	 */
+	@Override
+	public double computeEnergy( IndexedContour contour, int i, int j )
+	{
+		// 1. Compute distance between two points
+		double distance = contour.distance( i, j );
+
+		if ( distance == 0 ) { return Double.MAX_VALUE - 1; }
+
+		if ( !contour.isInsideConnection( i, j ) ) { return Double.MAX_VALUE; }
+
+		// 2. Compute length of contour-segments generated by splitting at the
+		// two points
+		double lengthABSegment = contour.arcLength( i, j );
+		double lengthBASegment = contour.getPerimeter() - lengthABSegment;
+
+		// 3. Determine minimum of segment-lengths
+		double minimum = Math.min( lengthABSegment, lengthBASegment );
+
+		// 4. Compute energy
+		return ( distance / minimum );
+	}
+
+	/**
+	 * The shorter of both segments is at most half of the perimeter.
+	 */
+	@Override
+	public double lowerBound( IndexedContour contour, double distance )
+	{
+		return 2 * distance / contour.getPerimeter();
+	}
+
 }
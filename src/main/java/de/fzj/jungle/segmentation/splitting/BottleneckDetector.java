@@ -6,11 +6,8 @@ import java.awt.geom.Line2D;
 import java.awt.geom.PathIterator;
 import java.rmi.UnexpectedException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.NoSuchElementException;
 
 import de.fzj.jungle.segmentation.Cell;
@@ -33,6 +30,7 @@ public class BottleneckDetector {
 	/* Private fields */
 	private Cell cell;
 	private SplittingEnergy splittingEnergy;
+	private boolean concavePointsOnly = false;
 	
 	/**
 	 * Constructs a {@link BottleneckDetector} for a {@link Cell} with a default
@@ -61,6 +59,23 @@ public class BottleneckDetector {
 		this.splittingEnergy = energy;
 	}
 
+	/**
+	 * @return {@code true} if only concave points of the contour are
+	 *         considered as splitting points
+	 */
+	public boolean isConcavePointsOnly() {
+		return concavePointsOnly;
+	}
+
+	/**
+	 * @param concavePointsOnly
+	 *            if {@code true}, only concave points of the contour are
+	 *            considered as splitting points (if there are at least two)
+	 */
+	public void setConcavePointsOnly(boolean concavePointsOnly) {
+		this.concavePointsOnly = concavePointsOnly;
+	}
+
 	public Cell[] execute() throws UnexpectedException {
 		// Find optimal assignment according to the defined {@link #BottleneckDetector.splittingEnergy splitting energy}.
 		try {
@@ -73,7 +88,50 @@ public class BottleneckDetector {
 		}
 	}
 	
+	/**
+	 * Finds the optimal assignment, i.e. the pair of points with the lowest
+	 * splitting energy.
+	 * 
+	 * @return the optimal {@link Assignment}
+	 * @throws NoSuchElementException
+	 *             if there is no pair of points
+	 */
 	public Assignment findBottleneck() {
+		List<Assignment> candidates = findBestCandidates(1);
+		
+		if (candidates.isEmpty()) {
+			throw new NoSuchElementException("No pair of points to split the contour.");
+		}
+		
+		return candidates.get(0);
+	}
+	
+	/**
+	 * Finds the {@code k} assignments with the lowest splitting energies.
+	 * 
+	 * @param k
+	 *            number of candidate cuts
+	 * @return up to {@code k} {@link Assignment}s sorted by energy (best
+	 *         first)
+	 */
+	public List<Assignment> findBestCandidates(int k) {
+		return findBestCandidates(k, false);
+	}
+	
+	/**
+	 * Finds the {@code k} assignments with the lowest splitting energies.
+	 * Candidates are streamed through a bounded selection, hence, only the
+	 * returned {@link Assignment}s are allocated.
+	 * 
+	 * @param k
+	 *            number of candidate cuts
+	 * @param perInnerContour
+	 *            if {@code true} and the cell has inner contours, the
+	 *            {@code k} best candidates are kept for each inner contour
+	 * @return {@link Assignment}s sorted by energy (best first; grouped by
+	 *         inner contour if {@code perInnerContour} is set)
+	 */
+	public List<Assignment> findBestCandidates(int k, boolean perInnerContour) {
 		/*
 		 * Check if the ROI is of type composite / check for inner contours.
 		 * 
@@ -89,188 +147,93 @@ public class BottleneckDetector {
 		 */
 		// Rois might be Composite although they only consist of one Roi.
 		if ((this.cell.getCellRoi().getType() == Roi.COMPOSITE) && (((ShapeRoi) this.cell.getCellRoi()).getRois().length > 1)) {
-			ShapeRoi roi = (ShapeRoi) this.cell.getCellRoi();
-			
-			/*
-			 * Sort ROIs returned by getRois() according to their perimeter. The
-			 * ROI with the greatest perimeter is the outer contour.
-			 */
-			double highestPerimeter = 0.0;
-			Roi outerContourRoi = null;
-			
-			Roi[] rois = roi.getRois();
-			
-			for (Roi r : rois) {
-				double perimeter = r.getLength();
-				if (perimeter > highestPerimeter) {
-					outerContourRoi = r;
-					highestPerimeter = perimeter;
-				}
-			}
-			
-			// Iterator for outer contour
-			PathIterator polygonIter = outerContourRoi.getPolygon().getPathIterator(null);
-			
-			// Iterator for inner contour
-			PathIterator polygonIter2;
-			
-			// Work with DistanceSplittingEnergy (see above)
-			SplittingEnergy distanceEnergy = new DistanceSplittingEnergy();
-			LinkedList<Assignment> energies = new LinkedList<Assignment>();
-			
-			while(!polygonIter.isDone()) {				
-				polygonIter.next();
-				
-				double[] coords = new double[6];
-				
-				int segmentType = polygonIter.currentSegment(coords);
-				
-				Point A;
-				
-				switch (segmentType) {
-				case PathIterator.SEG_MOVETO: 
-				case PathIterator.SEG_LINETO:
-					A = new Point((int) coords[0], (int) coords[1]);
-					break;
-				case PathIterator.SEG_CLOSE:
-					continue;
-				default:
-					throw new IllegalArgumentException("Bad path segment");
-				};
-				
-				for (Roi r : roi.getRois()) {
-					// FIXME BUG!! This check does not yield the required result
-					if (r.equals(outerContourRoi)) {
-						continue;
-					}
-					
-					// Iterator for inner contour
-					polygonIter2 = r.getPolygon().getPathIterator(null);
-						
-					while(!polygonIter2.isDone()) {							
-						polygonIter2.next();
-						
-						double[] coords2 = new double[6];
-						
-						int segmentType2 = polygonIter2.currentSegment(coords2);
-						
-						Point B;
-						
-						switch (segmentType2) {
-						case PathIterator.SEG_MOVETO: 
-						case PathIterator.SEG_LINETO:
-							B = new Point((int) coords2[0], (int) coords2[1]);
-							break;
-						case PathIterator.SEG_CLOSE:
-							continue;
-						default:
-							throw new IllegalArgumentException("Bad path segment");
-						};
-						
-						double energy = distanceEnergy.computeEnergy(A, B);
-						Assignment assig = new Assignment(A, B, energy, outerContourRoi.getPolygon(), r.getPolygon());
-						
-						// FIXME keep one assignment per inner contour to decrease the memory consumption
-						energies.add(assig);
-					}
-				}
-			}
-			
-			Collections.sort(energies);
+			return findBestInnerCandidates(k, perInnerContour);
+		}
+		
+		// Search the pairs of points with the lowest energies on the primitive
+		// contour representation
+		IndexedContour contour = new IndexedContour(this.cell.getPolygon());
+		TopKSelection selection = BottleneckSearch.findBestPairs(contour, this.splittingEnergy, this.concavePointsOnly, k);
+		
+		List<Assignment> candidates = new ArrayList<Assignment>(selection.size());
+		for (int slot : selection.sortedSlots()) {
+			int i = selection.getA(slot);
+			int j = selection.getB(slot);
 			
-			// Return computed assignment
-			// TODO NoSuchElementException Ursache??
-			return energies.getFirst();
+			candidates.add(new Assignment(contour.getPoint(i), contour.getPoint(j), selection.getEnergy(slot), i, j));
 		}
 		
-		// Iterate over contour and compare each pair of points
-		// Take care of not comparing both, A-B and B-A		
-		PathIterator polygonIter = this.cell.getPolygon().getPathIterator(null);
-		PathIterator polygonIter2;
+		return candidates;
+	}
+	
+	/**
+	 * Finds the best pairs of points with one point on the outer contour and
+	 * one point on an inner contour of a composite ROI.
+	 */
+	private List<Assignment> findBestInnerCandidates(int k, boolean perInnerContour) {
+		// getRois() creates new Rois with each call, hence, only call it once
+		Roi[] rois = ((ShapeRoi) this.cell.getCellRoi()).getRois();
 		
-		LinkedList<Assignment> energies = new LinkedList<Assignment>();
-		List<Boolean> flags = new ArrayList<Boolean>(Collections.nCopies(this.cell.getPolygon().npoints+1, false));
+		/*
+		 * Sort ROIs returned by getRois() according to their perimeter. The
+		 * ROI with the greatest perimeter is the outer contour.
+		 */
+		double highestPerimeter = 0.0;
+		int outerIndex = 0;
 		
-		ListIterator<Boolean> flagIter = flags.listIterator();
+		Polygon[] polygons = new Polygon[rois.length];
+		for (int r = 0; r < rois.length; r++) {
+			polygons[r] = rois[r].getPolygon();
+			
+			double perimeter = rois[r].getLength();
+			if (perimeter > highestPerimeter) {
+				outerIndex = r;
+				highestPerimeter = perimeter;
+			}
+		}
 		
-		Point previousPointA = null;
+		Polygon outer = polygons[outerIndex];
 		
-		while(!polygonIter.isDone()) {
-			flagIter.next();
-			flagIter.set(true);
-			
-			polygonIter.next();
-			
-			double[] coords = new double[6];
-			
-			int segmentType = polygonIter.currentSegment(coords);
-			
-			Point A;
-			
-			switch (segmentType) {
-			case PathIterator.SEG_MOVETO: 
-			case PathIterator.SEG_LINETO:
-				A = new Point((int) coords[0], (int) coords[1]);
-				break;
-			case PathIterator.SEG_CLOSE:
+		// Rank by squared distances (same order as DistanceSplittingEnergy, see
+		// above) to avoid a square root per pair
+		TopKSelection[] selections = new TopKSelection[perInnerContour ? rois.length : 1];
+		for (int s = 0; s < selections.length; s++) {
+			selections[s] = new TopKSelection(k);
+		}
+		
+		for (int r = 0; r < rois.length; r++) {
+			if (r == outerIndex) {
 				continue;
-			default:
-				throw new IllegalArgumentException("Bad path segment");
-			};
-			
-			// FIXME concurrency problem?!
-			Iterator<Boolean> flagIter2 = flags.iterator();
-			
-			polygonIter2 = this.cell.getPolygon().getPathIterator(null);
+			}
 			
-			Point previousPointB = null;
+			Polygon inner = polygons[r];
+			TopKSelection selection = selections[perInnerContour ? r : 0];
 			
-			while(!polygonIter2.isDone()) {							
-				polygonIter2.next();
-				
-				if (flagIter2.next()) {
-					continue;
-				}
-				
-				double[] coords2 = new double[6];
-				
-				int segmentType2 = polygonIter2.currentSegment(coords2);
-				
-				Point B;
-				
-				switch (segmentType2) {
-				case PathIterator.SEG_MOVETO: 
-				case PathIterator.SEG_LINETO:
-					B = new Point((int) coords2[0], (int) coords2[1]);
-					break;
-				case PathIterator.SEG_CLOSE:
-					continue;
-				default:
-					throw new IllegalArgumentException("Bad path segment");
-				};
-				
-				/*
-				 * If A.equals(B) we have a crossing on a single outer contour.
-				 * Allowing this results in an energy of 0, which most likely
-				 * will be the optimal assignment. This is not expected
-				 * behaviour!
-				 */
-				if (!A.equals(B)) {
-					double energy = this.splittingEnergy.computeEnergy(A, previousPointA, B, previousPointB);
-					Assignment assig = new Assignment(A, B, energy);
+			for (int a = 0; a < outer.npoints; a++) {
+				for (int b = 0; b < inner.npoints; b++) {
+					long dx = inner.xpoints[b] - outer.xpoints[a];
+					long dy = inner.ypoints[b] - outer.ypoints[a];
 					
-					energies.add(assig);
+					selection.offer(dx * dx + dy * dy, a, b, r);
 				}
-				
-				previousPointB = B;
 			}
-			
-			previousPointA = A;
 		}
 		
-		Collections.sort(energies);
+		List<Assignment> candidates = new ArrayList<Assignment>();
+		for (TopKSelection selection : selections) {
+			for (int slot : selection.sortedSlots()) {
+				Polygon inner = polygons[selection.getGroup(slot)];
+				int a = selection.getA(slot);
+				int b = selection.getB(slot);
+				
+				Point A = new Point(outer.xpoints[a], outer.ypoints[a]);
+				Point B = new Point(inner.xpoints[b], inner.ypoints[b]);
+				
+				candidates.add(new Assignment(A, B, Math.sqrt(selection.getEnergy(slot)), outer, inner));
+			}
+		}
 		
-		return energies.getFirst();
+		return candidates;
 	}
 	
 	private Cell[] splitCell(Assignment assig) {
@@ -387,9 +350,9 @@ public class BottleneckDetector {
 			Cell c;
 			
 			if (newCellRoi == null) {
-				c = new Cell(newCellShapeRoi.getPolygon(), newCellShapeRoi, this.cell.getImageProcessor(), this.cell.getCalibration());
+				c = new Cell(newCellShapeRoi.getPolygon(), newCellShapeRoi, this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
 			} else {
-				c = new Cell(newCellRoi.getPolygon(), newCellRoi, this.cell.getImageProcessor(), this.cell.getCalibration());
+				c = new Cell(newCellRoi.getPolygon(), newCellRoi, this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
 			}
 			
 			return new Cell[]{c};
@@ -398,6 +361,10 @@ public class BottleneckDetector {
 		/*
 		 * Normal procedure if A and B are on one contour.
 		 */
+		if (assig.getIndexA() >= 0 && assig.getIndexB() >= 0) {
+			return splitCellAtIndices(Math.min(assig.getIndexA(), assig.getIndexB()), Math.max(assig.getIndexA(), assig.getIndexB()));
+		}
+		
 		Point A = assig.getA();
 		Point B = assig.getB();
 
@@ -485,8 +452,33 @@ public class BottleneckDetector {
 			
 		}
 		
-		Cell cellAB = new Cell(path1, new PolygonRoi(path1, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration());
-		Cell cellBA = new Cell(path2, new PolygonRoi(path2, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration());
+		Cell cellAB = new Cell(path1, new PolygonRoi(path1, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
+		Cell cellBA = new Cell(path2, new PolygonRoi(path2, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
+		
+		return new Cell[]{cellAB, cellBA};
+	}
+	
+	/**
+	 * Splits the contour of {@link #cell} into the paths {@code i, ..., j} and
+	 * {@code j, ..., n-1, 0, ..., i}.
+	 */
+	private Cell[] splitCellAtIndices(int i, int j) {
+		Polygon polygon = this.cell.getPolygon();
+		int n = polygon.npoints;
+		
+		Polygon path1 = new Polygon();
+		for (int k = j; k != i; k = (k + 1) % n) {
+			path1.addPoint(polygon.xpoints[k], polygon.ypoints[k]);
+		}
+		path1.addPoint(polygon.xpoints[i], polygon.ypoints[i]);
+		
+		Polygon path2 = new Polygon();
+		for (int k = i; k <= j; k++) {
+			path2.addPoint(polygon.xpoints[k], polygon.ypoints[k]);
+		}
+		
+		Cell cellAB = new Cell(path1, new PolygonRoi(path1, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
+		Cell cellBA = new Cell(path2, new PolygonRoi(path2, PolygonRoi.POLYGON), this.cell.getImageProcessor(), this.cell.getCalibration(), this.cell.getIdAllocator());
 		
 		return new Cell[]{cellAB, cellBA};
 	}
@@ -600,7 +592,11 @@ public class BottleneckDetector {
 		}
 	}
 	
-	private class Assignment implements Comparable<Assignment> {
+	/**
+	 * A candidate cut between two points A and B together with its splitting
+	 * energy.
+	 */
+	public static class Assignment implements Comparable<Assignment> {
 		
 		/* Private fields */
 		private Point A;
@@ -608,6 +604,8 @@ public class BottleneckDetector {
 		private double energy;
 		private Polygon outerContour;
 		private Polygon innerContour;
+		private int indexA = -1;
+		private int indexB = -1;
 		
 		/**
 		 * @param a
@@ -619,6 +617,21 @@ public class BottleneckDetector {
 			this(a, b, energy, null, null);
 		}
 		
+		/**
+		 * @param a
+		 * @param b
+		 * @param energy
+		 * @param indexA
+		 *            index of {@code a} in the contour
+		 * @param indexB
+		 *            index of {@code b} in the contour
+		 */
+		public Assignment(Point a, Point b, double energy, int indexA, int indexB) {
+			this(a, b, energy, null, null);
+			this.indexA = indexA;
+			this.indexB = indexB;
+		}
+		
 		/**
 		 * @param a
 		 * @param b
@@ -715,6 +728,20 @@ public class BottleneckDetector {
 			this.innerContour = innerContour;
 		}
 
+		/**
+		 * @return the index of A in the contour (or -1 if unknown)
+		 */
+		public int getIndexA() {
+			return indexA;
+		}
+
+		/**
+		 * @return the index of B in the contour (or -1 if unknown)
+		 */
+		public int getIndexB() {
+			return indexB;
+		}
+
 		@Override
 		public int compareTo(Assignment o) {
 			return ((Double)this.getEnergy()).compareTo(o.getEnergy());
@@ -0,0 +1,165 @@
+package de.fzj.jungle.segmentation.splitting;
+
+import java.util.Arrays;
+
+/**
+ * Finds the pairs of vertices of an {@link IndexedContour} with the lowest
+ * {@link SplittingEnergy}.
+ * <p>
+ * Candidate vertices are sorted by their x-coordinate. For each vertex, the
+ * candidates are visited in order of increasing horizontal distance until the
+ * {@link SplittingEnergy#lowerBound(IndexedContour, double) lower bound} of
+ * the energy exceeds the worst energy that is currently kept. Optionally, only
+ * concave vertices are considered as candidates.
+ * </p>
+ * <p>
+ * Pairs are streamed into a {@link TopKSelection}, hence, no object is
+ * allocated per pair.
+ * </p>
+ * <p>
+ * The pruning by the lower bound is lossless and depends on the
+ * {@link SplittingEnergy}: in the worst case (e.g. a lower bound of zero) all
+ * O(m&sup2;) pairs of the m candidates are still visited, where m is the
+ * number of vertices of the contour. Restricting the candidates to concave
+ * vertices (disabled by default) changes the result and hardly reduces m for
+ * traced pixel contours, whose staircase steps make about half of the
+ * vertices concave.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+class BottleneckSearch
+{
+
+	private BottleneckSearch()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * Finds the pair of vertices with the lowest energy (see
+	 * {@link #findBestPairs(IndexedContour, SplittingEnergy, boolean, int)}).
+	 *
+	 * @return the indices {@code {i, j}} with {@code i < j} or {@code null} if
+	 *         there is no valid pair
+	 */
+	static int[] findBestPair( IndexedContour contour, SplittingEnergy energy, boolean concavePointsOnly )
+	{
+		TopKSelection best = findBestPairs( contour, energy, concavePointsOnly, 1 );
+
+		return ( best.size() == 0 ) ? null : new int[] { best.getA( 0 ), best.getB( 0 ) };
+	}
+
+	/**
+	 * Finds the {@code k} pairs of vertices with the lowest energies. Pairs
+	 * with identical coordinates are ignored. Ties are resolved in favor of
+	 * the pair with the lowest indices.
+	 *
+	 * @param contour
+	 *            {@link IndexedContour} to split
+	 * @param energy
+	 *            {@link SplittingEnergy} to minimize
+	 * @param concavePointsOnly
+	 *            if {@code true}, only concave vertices are considered (if
+	 *            there are at least two)
+	 * @param k
+	 *            number of pairs to keep
+	 * @return the selected pairs with indices {@code a < b} (group 0)
+	 */
+	static TopKSelection findBestPairs( IndexedContour contour, SplittingEnergy energy, boolean concavePointsOnly, int k )
+	{
+		int[] candidates = selectCandidates( contour, concavePointsOnly );
+		final int m = candidates.length;
+
+		// Sort candidates by x-coordinate (primitive keys: x in the upper, the
+		// index in the lower 32 bits)
+		int minX = Integer.MAX_VALUE;
+		for ( int c : candidates )
+		{
+			minX = Math.min( minX, contour.getX( c ) );
+		}
+
+		long[] keys = new long[ m ];
+		for ( int q = 0; q < m; q++ )
+		{
+			keys[ q ] = ( ( long ) ( contour.getX( candidates[ q ] ) - minX ) << 32 ) | candidates[ q ];
+		}
+		Arrays.sort( keys );
+
+		int[] order = new int[ m ];
+		int[] sortedX = new int[ m ];
+		for ( int q = 0; q < m; q++ )
+		{
+			order[ q ] = ( int ) keys[ q ];
+			sortedX[ q ] = contour.getX( order[ q ] );
+		}
+
+		TopKSelection selection = new TopKSelection( k );
+
+		for ( int p = 0; p < m; p++ )
+		{
+			final int i = order[ p ];
+
+			for ( int direction = -1; direction <= 1; direction += 2 )
+			{
+				for ( int q = p + direction; q >= 0 && q < m; q += direction )
+				{
+					// All remaining candidates are even further away
+					if ( energy.lowerBound( contour, Math.abs( sortedX[ q ] - sortedX[ p ] ) ) > selection.threshold() )
+					{
+						break;
+					}
+
+					final int j = order[ q ];
+
+					// Visit each pair once
+					if ( j <= i )
+					{
+						continue;
+					}
+
+					if ( contour.getX( i ) == contour.getX( j ) && contour.getY( i ) == contour.getY( j ) )
+					{
+						continue;
+					}
+
+					selection.offer( energy.computeEnergy( contour, i, j ), i, j, 0 );
+				}
+			}
+		}
+
+		return selection;
+	}
+
+	/**
+	 * @return the indices of all vertices or only of the concave vertices
+	 */
+	static int[] selectCandidates( IndexedContour contour, boolean concavePointsOnly )
+	{
+		final int n = contour.size();
+
+		if ( concavePointsOnly )
+		{
+			int[] concave = new int[ n ];
+			int count = 0;
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( contour.isConcave( i ) )
+				{
+					concave[ count++ ] = i;
+				}
+			}
+
+			if ( count >= 2 ) { return Arrays.copyOf( concave, count ); }
+		}
+
+		int[] all = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			all[ i ] = i;
+		}
+
+		return all;
+	}
+
+}
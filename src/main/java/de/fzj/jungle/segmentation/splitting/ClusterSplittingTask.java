@@ -0,0 +1,255 @@
+package de.fzj.jungle.segmentation.splitting;
+
+import java.rmi.UnexpectedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import de.fzj.jungle.segmentation.Cell;
+import de.fzj.jungle.segmentation.filter.Filter;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+
+/**
+ * Splits a cluster of touching cells recursively.
+ * <p>
+ * The cluster is split by a {@link BottleneckDetector}, the parts are
+ * filtered, and each part that is still considered a cluster by the
+ * {@link Filter} is split by a subtask. All subtasks of a cluster are forked
+ * at once, hence, the clusters of a crowded frame are split in parallel by the
+ * {@link java.util.concurrent.ForkJoinPool} the frame is processed in and no
+ * cluster waits for the clusters of other branches. Clusters that have not
+ * been resolved after a maximum depth are discarded.
+ * </p>
+ * <p>
+ * Each single cell is tagged with the path of its cluster (the indices of
+ * the clusters and parts it has been split from). {@link #splitAll} sorts the
+ * cells by depth and path, i.e. they are returned in the same order as by
+ * the former sequential loop (round by round, in the order of the clusters)
+ * as long as the {@link Filter} keeps the order of its input.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class ClusterSplittingTask extends RecursiveTask< List< ClusterSplittingTask.Part > >
+{
+
+	private static final long serialVersionUID = 1L;
+
+	/** Default number of nested splits of a cluster. */
+	public static final int DEFAULT_MAX_DEPTH = 5;
+
+	/**
+	 * By default, all vertices of the contour of a cluster are candidates for
+	 * splitting (see {@link BottleneckDetector#setConcavePointsOnly(boolean)}).
+	 */
+	public static final boolean DEFAULT_CONCAVE_POINTS_ONLY = false;
+
+	/** Orders parts by depth first, then by their path. */
+	private static final Comparator< Part > PATH_ORDER = ( a, b ) -> {
+		if ( a.path.length != b.path.length ) { return Integer.compare( a.path.length, b.path.length ); }
+		for ( int i = 0; i < a.path.length; i++ )
+		{
+			if ( a.path[ i ] != b.path[ i ] ) { return Integer.compare( a.path[ i ], b.path[ i ] ); }
+		}
+		return 0;
+	};
+
+	/* Private fields */
+	private final Cell cluster;
+
+	private final Filter< Cell > filter;
+
+	private final ImageProcessor ip;
+
+	private final int[] path;
+
+	private final int maxDepth;
+
+	private final boolean concavePointsOnly;
+
+	/**
+	 * Constructs a {@link ClusterSplittingTask}.
+	 *
+	 * @param cluster
+	 *            {@link Cell} that consists of multiple cells
+	 * @param filter
+	 *            {@link Filter} that decides whether parts are single cells
+	 * @param ip
+	 *            {@link ImageProcessor} that is passed to {@code filter}
+	 * @param path
+	 *            indices of the clusters {@code cluster} has been split from
+	 *            (its length minus one is the number of splits that resulted
+	 *            in {@code cluster})
+	 * @param maxDepth
+	 *            maximum number of nested splits
+	 * @param concavePointsOnly
+	 *            if {@code true}, the cluster is only split between concave
+	 *            points of its contour
+	 */
+	private ClusterSplittingTask( Cell cluster, Filter< Cell > filter, ImageProcessor ip, int[] path, int maxDepth, boolean concavePointsOnly )
+	{
+		this.cluster = cluster;
+		this.filter = filter;
+		this.ip = ip;
+		this.path = path;
+		this.maxDepth = maxDepth;
+		this.concavePointsOnly = concavePointsOnly;
+	}
+
+	/**
+	 * Splits all clusters in parallel.
+	 *
+	 * @param clusters
+	 *            {@link Cell}s that consist of multiple cells
+	 * @param filter
+	 *            {@link Filter} that decides whether parts are single cells
+	 * @param ip
+	 *            {@link ImageProcessor} that is passed to {@code filter}
+	 * @param maxDepth
+	 *            maximum number of nested splits
+	 * @param concavePointsOnly
+	 *            if {@code true}, clusters are only split between concave
+	 *            points of their contour
+	 * @return the single {@link Cell}s by depth in the order of their clusters
+	 */
+	public static List< Cell > splitAll( Collection< Cell > clusters, Filter< Cell > filter, ImageProcessor ip, int maxDepth, boolean concavePointsOnly )
+	{
+		if ( maxDepth <= 0 ) { return new ArrayList<>(); }
+
+		List< ClusterSplittingTask > tasks = new ArrayList<>( clusters.size() );
+		int index = 0;
+		for ( Cell c : clusters )
+		{
+			tasks.add( new ClusterSplittingTask( c, filter, ip, new int[] { index++ }, maxDepth, concavePointsOnly ) );
+		}
+
+		ForkJoinTask.invokeAll( tasks );
+
+		List< Part > parts = new ArrayList<>();
+		for ( ClusterSplittingTask task : tasks )
+		{
+			parts.addAll( task.join() );
+		}
+
+		// NB: the sort is stable
+		parts.sort( PATH_ORDER );
+
+		List< Cell > result = new ArrayList<>( parts.size() );
+		for ( Part part : parts )
+		{
+			result.add( part.cell );
+		}
+
+		return result;
+	}
+
+	@Override
+	protected List< Part > compute()
+	{
+		Filter.Result< Cell > filterResult = filter.filter( split(), ip );
+
+		List< Part > result = new ArrayList<>();
+		int index = 0;
+		for ( Cell c : filterResult.singleCellList )
+		{
+			result.add( new Part( c, append( path, index++ ) ) );
+		}
+
+		// Fork the subtasks of this cluster only
+		if ( path.length < maxDepth )
+		{
+			List< ClusterSplittingTask > tasks = new ArrayList<>( filterResult.multipleCellList.size() );
+			index = 0;
+			for ( Cell c : filterResult.multipleCellList )
+			{
+				tasks.add( new ClusterSplittingTask( c, filter, ip, append( path, index++ ), maxDepth, concavePointsOnly ) );
+			}
+
+			ForkJoinTask.invokeAll( tasks );
+
+			for ( ClusterSplittingTask task : tasks )
+			{
+				result.addAll( task.join() );
+			}
+		}
+
+		return result;
+	}
+
+	private static int[] append( int[] path, int index )
+	{
+		int[] appended = Arrays.copyOf( path, path.length + 1 );
+		appended[ path.length ] = index;
+
+		return appended;
+	}
+
+	/**
+	 * @return the parts of {@link #cluster} that differ from the cluster
+	 */
+	private List< Cell > split()
+	{
+		List< Cell > parts = new ArrayList<>();
+
+		try
+		{
+			BottleneckDetector detector = new BottleneckDetector( cluster );
+			detector.setConcavePointsOnly( concavePointsOnly );
+			Cell[] cellArray = detector.execute();
+
+			// Might result in a single cell when an inner contour is available
+			for ( Cell splitCell : cellArray )
+			{
+				// Cancel if a split did not result in a change
+				if ( splitCell.getCellRoi().equals( cluster.getCellRoi() ) )
+				{
+					continue;
+				}
+				parts.add( splitCell );
+			}
+		}
+		catch ( UnexpectedException e )
+		{
+			// Catch exception and add problematic Roi to Manager
+			synchronized ( RoiManager.class )
+			{
+				RoiManager manager = RoiManager.getInstance();
+				if ( manager == null )
+				{
+					manager = new RoiManager( true );
+				}
+
+				Roi roi = cluster.getCellRoi();
+				roi.setName( "Debug A==B[" + cluster.getCellId() + "]" );
+				manager.addRoi( roi );
+			}
+		}
+
+		return parts;
+	}
+
+	/**
+	 * A single cell and the path of the clusters it has been split from.
+	 */
+	static class Part
+	{
+
+		private final Cell cell;
+
+		private final int[] path;
+
+		Part( Cell cell, int[] path )
+		{
+			this.cell = cell;
+			this.path = path;
+		}
+
+	}
+
+}
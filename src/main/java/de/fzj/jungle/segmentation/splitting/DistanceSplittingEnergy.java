@@ -28,4 +28,16 @@ public class DistanceSplittingEnergy extends SplittingEnergy
 		return computeEnergy( a, b );
 	}
 
+	@Override
+	public double computeEnergy( IndexedContour contour, int i, int j )
+	{
+		return contour.distance( i, j );
+	}
+
+	@Override
+	public double lowerBound( IndexedContour contour, double distance )
+	{
+		return distance;
+	}
+
 }
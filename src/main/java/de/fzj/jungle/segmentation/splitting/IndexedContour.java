@@ -0,0 +1,193 @@
+package de.fzj.jungle.segmentation.splitting;
+
+import java.awt.Point;
+import java.awt.Polygon;
+
+import de.fzj.jungle.segmentation.Orientation;
+
+/**
+ * Primitive representation of a closed contour that supports constant-time
+ * queries of the arc length between two vertices.
+ * <p>
+ * The vertices are stored in {@code int[]} arrays, the arc lengths from the
+ * first vertex are prefix-summed, and the orientation is determined once from
+ * the signed area (shoelace formula) of the whole contour.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class IndexedContour
+{
+
+	/* Private fields */
+	private final int n;
+
+	private final int[] x;
+
+	private final int[] y;
+
+	/** {@code arc[k]} is the length of the contour from vertex 0 to k. */
+	private final double[] arc;
+
+	private final double perimeter;
+
+	/** Twice the signed area (positive for clockwise contours). */
+	private final long signedArea2;
+
+	/**
+	 * Constructs an {@link IndexedContour} from a {@link Polygon}.
+	 *
+	 * @param polygon
+	 *            closed contour
+	 */
+	public IndexedContour( Polygon polygon )
+	{
+		this.n = polygon.npoints;
+		this.x = new int[ n ];
+		this.y = new int[ n ];
+		System.arraycopy( polygon.xpoints, 0, x, 0, n );
+		System.arraycopy( polygon.ypoints, 0, y, 0, n );
+
+		this.arc = new double[ n + 1 ];
+
+		long area2 = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			int j = ( i + 1 == n ) ? 0 : i + 1;
+
+			arc[ i + 1 ] = arc[ i ] + Math.hypot( x[ j ] - x[ i ], y[ j ] - y[ i ] );
+			area2 += ( long ) x[ i ] * y[ j ] - ( long ) x[ j ] * y[ i ];
+		}
+
+		this.perimeter = arc[ n ];
+		this.signedArea2 = area2;
+	}
+
+	/**
+	 * @return the number of vertices
+	 */
+	public int size()
+	{
+		return n;
+	}
+
+	public int getX( int i )
+	{
+		return x[ i ];
+	}
+
+	public int getY( int i )
+	{
+		return y[ i ];
+	}
+
+	public Point getPoint( int i )
+	{
+		return new Point( x[ i ], y[ i ] );
+	}
+
+	/**
+	 * @return the index of the vertex preceding vertex {@code i}
+	 */
+	public int previous( int i )
+	{
+		return ( i == 0 ) ? n - 1 : i - 1;
+	}
+
+	/**
+	 * @return the index of the vertex following vertex {@code i}
+	 */
+	public int next( int i )
+	{
+		return ( i + 1 == n ) ? 0 : i + 1;
+	}
+
+	/**
+	 * @return the Euclidean distance between vertices {@code i} and {@code j}
+	 */
+	public double distance( int i, int j )
+	{
+		return Math.hypot( x[ j ] - x[ i ], y[ j ] - y[ i ] );
+	}
+
+	/**
+	 * Computes the length of the contour segment that starts at vertex
+	 * {@code i} and follows the contour until vertex {@code j}.
+	 *
+	 * @return the arc length from {@code i} to {@code j}
+	 */
+	public double arcLength( int i, int j )
+	{
+		double length = arc[ j ] - arc[ i ];
+
+		return ( length < 0 ) ? length + perimeter : length;
+	}
+
+	/**
+	 * @return the length of the contour
+	 */
+	public double getPerimeter()
+	{
+		return perimeter;
+	}
+
+	/**
+	 * @return the orientation of the contour (in image coordinates, i.e. with
+	 *         the y-axis pointing downwards) or {@code null} if the contour
+	 *         does not enclose an area
+	 */
+	public Orientation getOrientation()
+	{
+		if ( signedArea2 == 0 ) { return null; }
+
+		return ( signedArea2 > 0 ) ? Orientation.CLOCKWISE : Orientation.COUNTERCLOCKWISE;
+	}
+
+	/**
+	 * Checks if the contour turns against its orientation at vertex {@code i}.
+	 *
+	 * @return {@code true} if vertex {@code i} is a concave point
+	 */
+	public boolean isConcave( int i )
+	{
+		int p = previous( i );
+		int q = next( i );
+
+		long cross = ( long ) ( x[ i ] - x[ p ] ) * ( y[ q ] - y[ i ] ) - ( long ) ( y[ i ] - y[ p ] ) * ( x[ q ] - x[ i ] );
+
+		return ( signedArea2 > 0 ) ? cross < 0 : cross > 0;
+	}
+
+	/**
+	 * Checks if the outside normals at {@code i} and {@code j} (derived from
+	 * the preceding vertices) point away from the connection between both
+	 * vertices, i.e. the connection runs inside of the contour.
+	 *
+	 * @return {@code true} if the connection between {@code i} and {@code j}
+	 *         is an inside connection
+	 */
+	public boolean isInsideConnection( int i, int j )
+	{
+		if ( signedArea2 == 0 ) { return false; }
+
+		int sign = ( signedArea2 > 0 ) ? 1 : -1;
+
+		int pi = previous( i );
+		int pj = previous( j );
+
+		// Outside normals
+		long nxA = -sign * ( long ) ( y[ pi ] - y[ i ] );
+		long nyA = sign * ( long ) ( x[ pi ] - x[ i ] );
+		long nxB = -sign * ( long ) ( y[ pj ] - y[ j ] );
+		long nyB = sign * ( long ) ( x[ pj ] - x[ j ] );
+
+		// Degenerate normals do not allow for a decision
+		if ( ( nxA == 0 && nyA == 0 ) || ( nxB == 0 && nyB == 0 ) ) { return false; }
+
+		long abx = x[ j ] - x[ i ];
+		long aby = y[ j ] - y[ i ];
+
+		return ( nxA * abx + nyA * aby >= 0 ) && ( -nxB * abx - nyB * aby >= 0 );
+	}
+
+}
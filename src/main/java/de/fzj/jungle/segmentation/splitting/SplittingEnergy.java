@@ -46,6 +46,43 @@ public abstract class SplittingEnergy
 
 	public abstract double computeEnergy( Point a, Point prevA, Point b, Point prevB );
 
+	/**
+	 * Computes an energy for splitting a contour at vertices {@code i} and
+	 * {@code j}. Implementations should override this method to work on the
+	 * primitive representation directly; the default implementation
+	 * delegates to {@link #computeEnergy(Point, Point, Point, Point)}.
+	 * 
+	 * @param contour
+	 *            {@link IndexedContour} that is split
+	 * @param i
+	 *            index of the first splitting point
+	 * @param j
+	 *            index of the second splitting point
+	 * @return an energy value.
+	 */
+	public double computeEnergy( IndexedContour contour, int i, int j )
+	{
+		return computeEnergy( contour.getPoint( i ), contour.getPoint( contour.previous( i ) ), contour.getPoint( j ), contour.getPoint( contour.previous( j ) ) );
+	}
+
+	/**
+	 * Provides a lower bound of the energy of all splits of {@code contour}
+	 * between two points that are at least {@code distance} apart. The bound
+	 * has to be non-decreasing in {@code distance}. It is used to skip point
+	 * pairs that cannot improve on the best energy found so far.
+	 * 
+	 * @param contour
+	 *            {@link IndexedContour} that is split
+	 * @param distance
+	 *            minimum distance between the splitting points
+	 * @return a lower bound of the energy ({@code -Infinity} disables
+	 *         pruning)
+	 */
+	public double lowerBound( IndexedContour contour, double distance )
+	{
+		return Double.NEGATIVE_INFINITY;
+	}
+
 	/**
 	 * @return the a
 	 */
@@ -0,0 +1,214 @@
+package de.fzj.jungle.segmentation.splitting;
+
+/**
+ * Keeps the {@code k} best (i.e. lowest energy) candidate cuts of a stream of
+ * candidates without allocating an object per candidate.
+ * <p>
+ * A candidate consists of an energy, two vertex indices {@code a} and
+ * {@code b}, and a group (e.g. the index of an inner contour). Candidates are
+ * ordered by energy; ties are resolved by {@code a}, {@code b}, and
+ * {@code group}. The retained candidates are stored in a bounded max-heap of
+ * primitive arrays, hence, offering a candidate is {@code O(log k)}.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+class TopKSelection
+{
+
+	/* Private fields */
+	private final int capacity;
+
+	private int size;
+
+	private final double[] energies;
+
+	private final int[] as;
+
+	private final int[] bs;
+
+	private final int[] groups;
+
+	/**
+	 * Constructs an empty {@link TopKSelection}.
+	 *
+	 * @param k
+	 *            number of candidates to keep
+	 */
+	TopKSelection( int k )
+	{
+		if ( k < 1 ) { throw new IllegalArgumentException( "At least one candidate has to be kept." ); }
+
+		this.capacity = k;
+		this.energies = new double[ k ];
+		this.as = new int[ k ];
+		this.bs = new int[ k ];
+		this.groups = new int[ k ];
+	}
+
+	/**
+	 * Offers a candidate, which is kept if it is among the {@code k} best
+	 * candidates offered so far.
+	 */
+	void offer( double energy, int a, int b, int group )
+	{
+		if ( size < capacity )
+		{
+			set( size, energy, a, b, group );
+			siftUp( size++ );
+		}
+		else if ( compare( energy, a, b, group, 0 ) < 0 )
+		{
+			// Replace the worst retained candidate
+			set( 0, energy, a, b, group );
+			siftDown( 0 );
+		}
+	}
+
+	/**
+	 * @return the energy a candidate has to undercut (or match) to be kept,
+	 *         {@code +Infinity} as long as fewer than {@code k} candidates
+	 *         have been offered
+	 */
+	double threshold()
+	{
+		return ( size < capacity ) ? Double.POSITIVE_INFINITY : energies[ 0 ];
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	double getEnergy( int slot )
+	{
+		return energies[ slot ];
+	}
+
+	int getA( int slot )
+	{
+		return as[ slot ];
+	}
+
+	int getB( int slot )
+	{
+		return bs[ slot ];
+	}
+
+	int getGroup( int slot )
+	{
+		return groups[ slot ];
+	}
+
+	/**
+	 * @return the slots of the retained candidates from best to worst
+	 */
+	int[] sortedSlots()
+	{
+		int[] slots = new int[ size ];
+		for ( int s = 0; s < size; s++ )
+		{
+			slots[ s ] = s;
+		}
+
+		// Insertion sort (k is small)
+		for ( int s = 1; s < size; s++ )
+		{
+			int slot = slots[ s ];
+			int t = s - 1;
+			while ( t >= 0 && compare( energies[ slot ], as[ slot ], bs[ slot ], groups[ slot ], slots[ t ] ) < 0 )
+			{
+				slots[ t + 1 ] = slots[ t ];
+				t--;
+			}
+			slots[ t + 1 ] = slot;
+		}
+
+		return slots;
+	}
+
+	private void set( int slot, double energy, int a, int b, int group )
+	{
+		energies[ slot ] = energy;
+		as[ slot ] = a;
+		bs[ slot ] = b;
+		groups[ slot ] = group;
+	}
+
+	/**
+	 * Compares a candidate with the candidate in {@code slot}.
+	 */
+	private int compare( double energy, int a, int b, int group, int slot )
+	{
+		int c = Double.compare( energy, energies[ slot ] );
+		if ( c != 0 ) { return c; }
+
+		c = Integer.compare( a, as[ slot ] );
+		if ( c != 0 ) { return c; }
+
+		c = Integer.compare( b, bs[ slot ] );
+		if ( c != 0 ) { return c; }
+
+		return Integer.compare( group, groups[ slot ] );
+	}
+
+	private void siftUp( int slot )
+	{
+		while ( slot > 0 )
+		{
+			int parent = ( slot - 1 ) / 2;
+			if ( compare( energies[ slot ], as[ slot ], bs[ slot ], groups[ slot ], parent ) <= 0 )
+			{
+				break;
+			}
+			swap( slot, parent );
+			slot = parent;
+		}
+	}
+
+	private void siftDown( int slot )
+	{
+		while ( true )
+		{
+			int left = 2 * slot + 1;
+			int right = left + 1;
+			int largest = slot;
+
+			if ( left < size && compare( energies[ left ], as[ left ], bs[ left ], groups[ left ], largest ) > 0 )
+			{
+				largest = left;
+			}
+			if ( right < size && compare( energies[ right ], as[ right ], bs[ right ], groups[ right ], largest ) > 0 )
+			{
+				largest = right;
+			}
+			if ( largest == slot )
+			{
+				break;
+			}
+
+			swap( slot, largest );
+			slot = largest;
+		}
+	}
+
+	private void swap( int s, int t )
+	{
+		double e = energies[ s ];
+		energies[ s ] = energies[ t ];
+		energies[ t ] = e;
+
+		int tmp = as[ s ];
+		as[ s ] = as[ t ];
+		as[ t ] = tmp;
+
+		tmp = bs[ s ];
+		bs[ s ] = bs[ t ];
+		bs[ t ] = tmp;
+
+		tmp = groups[ s ];
+		groups[ s ] = groups[ t ];
+		groups[ t ] = tmp;
+	}
+
+}
@@ -0,0 +1,195 @@
+package de.fzj.jungle.util;
+
+/**
+ * Radix-2 fast Fourier transforms of complex data that is stored in separate
+ * arrays of real and imaginary parts.
+ * <p>
+ * Two-dimensional data is stored row by row. All dimensions have to be powers
+ * of two (see {@link #nextPowerOfTwo(int)}). The forward transform is not
+ * scaled, the inverse transform is scaled by {@code 1 / n}.
+ * </p>
+ *
+ * @author Stefan Helfrich
+ */
+public class FFT
+{
+
+	private FFT()
+	{
+		// NB: static utility class
+	}
+
+	/**
+	 * @return the smallest power of two that is larger than or equal to
+	 *         {@code n}
+	 */
+	public static int nextPowerOfTwo( int n )
+	{
+		int power = 1;
+		while ( power < n )
+		{
+			power <<= 1;
+		}
+
+		return power;
+	}
+
+	/**
+	 * Transforms two-dimensional data in place.
+	 *
+	 * @param re
+	 *            real parts ({@code width * height} values)
+	 * @param im
+	 *            imaginary parts ({@code width * height} values)
+	 * @param width
+	 *            number of columns (power of two)
+	 * @param height
+	 *            number of rows (power of two)
+	 * @param inverse
+	 *            {@code true} for the inverse transform
+	 */
+	public static void transform2D( double[] re, double[] im, int width, int height, boolean inverse )
+	{
+		checkPowerOfTwo( width );
+		checkPowerOfTwo( height );
+
+		// Rows
+		double[] rowCos = cosTable( width );
+		double[] rowSin = sinTable( width, inverse );
+		for ( int y = 0; y < height; y++ )
+		{
+			transform( re, im, y * width, width, rowCos, rowSin );
+		}
+
+		// Columns (copied to contiguous buffers)
+		double[] colCos = cosTable( height );
+		double[] colSin = sinTable( height, inverse );
+		double[] bufferRe = new double[ height ];
+		double[] bufferIm = new double[ height ];
+		for ( int x = 0; x < width; x++ )
+		{
+			for ( int y = 0, k = x; y < height; y++, k += width )
+			{
+				bufferRe[ y ] = re[ k ];
+				bufferIm[ y ] = im[ k ];
+			}
+
+			transform( bufferRe, bufferIm, 0, height, colCos, colSin );
+
+			for ( int y = 0, k = x; y < height; y++, k += width )
+			{
+				re[ k ] = bufferRe[ y ];
+				im[ k ] = bufferIm[ y ];
+			}
+		}
+
+		if ( inverse )
+		{
+			final double scale = 1.0 / ( ( double ) width * height );
+			for ( int k = 0; k < width * height; k++ )
+			{
+				re[ k ] *= scale;
+				im[ k ] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * Transforms one-dimensional data in place (unscaled in both directions).
+	 *
+	 * @param re
+	 *            real parts
+	 * @param im
+	 *            imaginary parts
+	 * @param inverse
+	 *            {@code true} for the inverse transform
+	 */
+	public static void transform( double[] re, double[] im, boolean inverse )
+	{
+		checkPowerOfTwo( re.length );
+
+		transform( re, im, 0, re.length, cosTable( re.length ), sinTable( re.length, inverse ) );
+	}
+
+	/**
+	 * Iterative Cooley-Tukey transform of {@code n} values starting at
+	 * {@code offset}.
+	 */
+	private static void transform( double[] re, double[] im, int offset, int n, double[] cos, double[] sin )
+	{
+		// Bit-reversal permutation
+		for ( int i = 1, j = 0; i < n; i++ )
+		{
+			int bit = n >> 1;
+			for ( ; ( j & bit ) != 0; bit >>= 1 )
+			{
+				j ^= bit;
+			}
+			j ^= bit;
+
+			if ( i < j )
+			{
+				double tmp = re[ offset + i ];
+				re[ offset + i ] = re[ offset + j ];
+				re[ offset + j ] = tmp;
+				tmp = im[ offset + i ];
+				im[ offset + i ] = im[ offset + j ];
+				im[ offset + j ] = tmp;
+			}
+		}
+
+		// Butterflies
+		for ( int length = 2; length <= n; length <<= 1 )
+		{
+			final int half = length >> 1;
+			final int step = n / length;
+			for ( int start = offset; start < offset + n; start += length )
+			{
+				for ( int k = 0; k < half; k++ )
+				{
+					final double wr = cos[ k * step ];
+					final double wi = sin[ k * step ];
+					final int a = start + k;
+					final int b = a + half;
+
+					final double tr = re[ b ] * wr - im[ b ] * wi;
+					final double ti = re[ b ] * wi + im[ b ] * wr;
+					re[ b ] = re[ a ] - tr;
+					im[ b ] = im[ a ] - ti;
+					re[ a ] += tr;
+					im[ a ] += ti;
+				}
+			}
+		}
+	}
+
+	private static double[] cosTable( int n )
+	{
+		double[] table = new double[ Math.max( 1, n / 2 ) ];
+		for ( int k = 0; k < table.length; k++ )
+		{
+			table[ k ] = Math.cos( 2 * Math.PI * k / n );
+		}
+
+		return table;
+	}
+
+	private static double[] sinTable( int n, boolean inverse )
+	{
+		final double sign = inverse ? 1.0 : -1.0;
+
+		double[] table = new double[ Math.max( 1, n / 2 ) ];
+		for ( int k = 0; k < table.length; k++ )
+		{
+			table[ k ] = sign * Math.sin( 2 * Math.PI * k / n );
+		}
+
+		return table;
+	}
+
+	private static void checkPowerOfTwo( int n )
+	{
+		if ( n < 1 || ( n & ( n - 1 ) ) != 0 ) { throw new IllegalArgumentException( n + " is not a power of two." ); }
+	}
+
+}
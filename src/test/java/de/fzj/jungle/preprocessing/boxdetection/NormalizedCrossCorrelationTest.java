@@ -0,0 +1,134 @@
+/**
+ *
+ */
+package de.fzj.jungle.preprocessing.boxdetection;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fzj.jungle.preprocessing.boxdetection.NormalizedCrossCorrelation.Kernel;
+
+/**
+ * @author Stefan Helfrich <s.helfrich@fz-juelich.de>
+ * @version 0.1
+ *
+ */
+public class NormalizedCrossCorrelationTest {
+
+	/** {@link ImageTools#statsCorrelation} accumulates in single precision. */
+	private static final double EPSILON = 1e-3;
+
+	private static final int WIDTH = 67;
+
+	private static final int HEIGHT = 53;
+
+	private float[] pixels;
+
+	private float[][] kernelValues;
+
+	private Kernel[] kernels;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(42);
+
+		this.pixels = randomValues(random, WIDTH * HEIGHT);
+
+		// Kernels of different (odd) sizes, one of them is constant
+		int[][] sizes = { { 11, 7 }, { 5, 9 }, { 15, 15 }, { 3, 3 } };
+		this.kernelValues = new float[][] { randomValues(random, 11 * 7), randomValues(random, 5 * 9), randomValues(random, 15 * 15), new float[9] };
+		this.kernels = new Kernel[sizes.length];
+		for (int n = 0; n < sizes.length; n++) {
+			kernels[n] = new Kernel(kernelValues[n], sizes[n][0], sizes[n][1]);
+		}
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.boxdetection.NormalizedCrossCorrelation#correlate(Kernel[])}.
+	 */
+	@Test
+	public void testCorrelateMatchesStatsCorrelation() {
+		NormalizedCrossCorrelation ncc = new NormalizedCrossCorrelation(pixels, WIDTH, HEIGHT);
+		ncc.setFourierThreshold(Integer.MAX_VALUE);
+		float[][] correlations = ncc.correlate(kernels);
+
+		float[][] image = toArray(pixels, WIDTH, HEIGHT);
+
+		for (int n = 0; n < kernels.length; n++) {
+			int ew = kernels[n].getWidth() / 2;
+			int eh = kernels[n].getHeight() / 2;
+			float[][] expected = ImageTools.statsCorrelation(image, toArray(kernelValues[n], kernels[n].getWidth(), kernels[n].getHeight()));
+
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					boolean border = x < ew || x >= WIDTH - ew || y < eh || y >= HEIGHT - eh;
+					float value = border ? 0f : expected[x - ew][y - eh];
+					if (Float.isNaN(value)) {
+						// NB: constant kernels are defined as uncorrelated
+						value = 0f;
+					}
+					assertEquals("kernel " + n + " at (" + x + ", " + y + ")", value, correlations[n][y * WIDTH + x], EPSILON);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.boxdetection.NormalizedCrossCorrelation#correlate(Kernel[])}.
+	 */
+	@Test
+	public void testFourierMatchesSpatial() {
+		NormalizedCrossCorrelation spatial = new NormalizedCrossCorrelation(pixels, WIDTH, HEIGHT);
+		spatial.setFourierThreshold(Integer.MAX_VALUE);
+		float[][] expected = spatial.correlate(kernels);
+
+		// An odd number of kernels, i.e. the last transform holds one kernel
+		NormalizedCrossCorrelation fourier = new NormalizedCrossCorrelation(pixels, WIDTH, HEIGHT);
+		fourier.setFourierThreshold(0);
+		float[][] correlations = fourier.correlate(kernels[0], kernels[1], kernels[2]);
+
+		for (int n = 0; n < correlations.length; n++) {
+			assertArrayEquals("kernel " + n, expected[n], correlations[n], 1e-4f);
+		}
+
+		// Kernels above the threshold are correlated in the frequency domain
+		NormalizedCrossCorrelation mixed = new NormalizedCrossCorrelation(pixels, WIDTH, HEIGHT);
+		mixed.setFourierThreshold(64);
+		correlations = mixed.correlate(kernels);
+
+		for (int n = 0; n < correlations.length; n++) {
+			assertArrayEquals("kernel " + n, expected[n], correlations[n], 1e-4f);
+		}
+	}
+
+	/**
+	 * @return {@code values} (row by row) indexed by x and y
+	 */
+	private static float[][] toArray(float[] values, int width, int height) {
+		float[][] array = new float[width][height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				array[x][y] = values[y * width + x];
+			}
+		}
+
+		return array;
+	}
+
+	private static float[] randomValues(Random random, int n) {
+		float[] values = new float[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = random.nextInt(256);
+		}
+
+		return values;
+	}
+
+}
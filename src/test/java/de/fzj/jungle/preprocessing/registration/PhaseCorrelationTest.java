@@ -0,0 +1,135 @@
+/**
+ * 
+ */
+package de.fzj.jungle.preprocessing.registration;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Stefan Helfrich <s.helfrich@fz-juelich.de>
+ * @version 0.1
+ * 
+ */
+public class PhaseCorrelationTest {
+
+	private static final int WIDTH = 200;
+
+	private static final int HEIGHT = 150;
+
+	/** Accuracy of the estimated shifts (in pixels). */
+	private static final double TOLERANCE = 0.05;
+
+	private double[][] blobs;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// Gaussian blobs (x, y, sigma, amplitude)
+		Random random = new Random(3);
+		this.blobs = new double[40][];
+		for (int i = 0; i < blobs.length; i++) {
+			blobs[i] = new double[] { random.nextDouble() * WIDTH, random.nextDouble() * HEIGHT, 2 + random.nextDouble() * 6, 50 + random.nextDouble() * 200 };
+		}
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.PhaseCorrelation#estimateShift(float[])}.
+	 */
+	@Test
+	public void testIntegerShift() {
+		PhaseCorrelation correlation = new PhaseCorrelation(image(0, 0), WIDTH, HEIGHT);
+
+		double[] shift = correlation.estimateShift(image(4, 9));
+
+		assertEquals(4, shift[0], TOLERANCE);
+		assertEquals(9, shift[1], TOLERANCE);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.PhaseCorrelation#estimateShift(float[])}.
+	 */
+	@Test
+	public void testSubPixelShift() {
+		PhaseCorrelation correlation = new PhaseCorrelation(image(0, 0), WIDTH, HEIGHT);
+
+		double[] shift = correlation.estimateShift(image(-5.3, 3.6));
+
+		assertEquals(-5.3, shift[0], TOLERANCE);
+		assertEquals(3.6, shift[1], TOLERANCE);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.PhaseCorrelation#estimateShift(float[])}.
+	 */
+	@Test
+	public void testSmallShift() {
+		PhaseCorrelation correlation = new PhaseCorrelation(image(0, 0), WIDTH, HEIGHT);
+
+		// The peak alone is biased towards zero for shifts of a few pixels
+		double[] shift = correlation.estimateShift(image(1, -0.4));
+
+		assertEquals(1, shift[0], TOLERANCE);
+		assertEquals(-0.4, shift[1], TOLERANCE);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.PhaseCorrelation#align(float[])}.
+	 */
+	@Test
+	public void testAlign() {
+		PhaseCorrelation correlation = new PhaseCorrelation(image(0, 0), WIDTH, HEIGHT);
+
+		double[][] matrix = correlation.align(image(12, -7));
+
+		assertEquals(1.0, matrix[0][0], 0.0);
+		assertEquals(0.0, matrix[0][1], 0.0);
+		assertEquals(12, matrix[0][2], TOLERANCE);
+		assertEquals(-7, matrix[1][2], TOLERANCE);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.PhaseCorrelation#align(PhaseCorrelation)}.
+	 */
+	@Test
+	public void testAlignSpectrum() {
+		PhaseCorrelation correlation = new PhaseCorrelation(image(0, 0), WIDTH, HEIGHT);
+		PhaseCorrelation next = new PhaseCorrelation(image(3.2, -1.5), WIDTH, HEIGHT);
+
+		double[][] matrix = correlation.align(next);
+		assertEquals(3.2, matrix[0][2], TOLERANCE);
+		assertEquals(-1.5, matrix[1][2], TOLERANCE);
+
+		// The spectrum of next is reused as reference
+		matrix = next.align(image(4.2, -2.5));
+		assertEquals(1, matrix[0][2], TOLERANCE);
+		assertEquals(-1, matrix[1][2], TOLERANCE);
+	}
+
+	/**
+	 * @return the blobs shifted by (dx, dy), i.e. image(x + d) matches the
+	 *         unshifted image at x
+	 */
+	private float[] image(double dx, double dy) {
+		float[] pixels = new float[WIDTH * HEIGHT];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				double value = 10;
+				for (double[] blob : blobs) {
+					double u = x - dx - blob[0];
+					double v = y - dy - blob[1];
+					value += blob[3] * Math.exp(-(u * u + v * v) / (2 * blob[2] * blob[2]));
+				}
+				pixels[y * WIDTH + x] = (float) value;
+			}
+		}
+		return pixels;
+	}
+
+}
@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package de.fzj.jungle.preprocessing.registration;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares {@link TransformTable} with the composition of the former
+ * {@code Compress_Matrices} (landmark equations solved for every record and
+ * every composed slice) on fixed transformation files.
+ *
+ * @author Stefan Helfrich <s.helfrich@fz-juelich.de>
+ * @version 0.1
+ *
+ */
+public class TransformTableTest {
+
+	/** {@link Compress_Matrices#solveEQ} is regularized by 1e-8 per division. */
+	private static final double EPSILON = 1e-5;
+
+	private String stack;
+
+	private String twoStack;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		this.stack = new File(getClass().getResource("stack.txt").toURI()).getPath();
+		this.twoStack = new File(getClass().getResource("twostack.txt").toURI()).getPath();
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.TransformTable#read(String)}.
+	 */
+	@Test
+	public void testReadAccumulates() throws Exception {
+		assertMatches(legacyRead(stack), TransformTable.read(stack));
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.TransformTable#read(String)}.
+	 */
+	@Test
+	public void testReadTwoStackAlign() throws Exception {
+		assertMatches(legacyRead(twoStack), TransformTable.read(twoStack));
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.TransformTable#compose(java.util.List)}.
+	 */
+	@Test
+	public void testCompose() throws Exception {
+		SortedMap<Integer, double[][]> expected = legacyCompose(legacyRead(stack), legacyRead(twoStack), legacyLandmarks(stack));
+
+		TransformTable composed = TransformTable.compose(Arrays.asList(TransformTable.read(stack), TransformTable.read(twoStack)));
+
+		// Slices 1 and 2 are only in the first, slice 6 only in the second file
+		assertEquals(6, composed.size());
+		assertMatches(expected, composed);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.preprocessing.registration.TransformTable#write(String)}.
+	 */
+	@Test
+	public void testWriteRead() throws Exception {
+		TransformTable composed = TransformTable.read(stack).compose(TransformTable.read(twoStack));
+		File file = File.createTempFile("TransformTableTest", ".bin");
+		file.deleteOnExit();
+
+		composed.write(file.getPath());
+		TransformTable read = TransformTable.read(file.getPath());
+
+		assertEquals(composed.size(), read.size());
+		for (int n = 0; n < composed.size(); n++) {
+			assertEquals(composed.getIndex(n), read.getIndex(n));
+			for (int row = 0; row < 2; row++) {
+				assertArrayEquals(composed.getTransform(n)[row], read.getTransform(n)[row], EPSILON);
+			}
+		}
+	}
+
+	private static void assertMatches(SortedMap<Integer, double[][]> expected, TransformTable table) {
+		assertEquals(expected.size(), table.size());
+		int n = 0;
+		for (Map.Entry<Integer, double[][]> entry : expected.entrySet()) {
+			assertEquals(entry.getKey().intValue(), table.getIndex(n));
+			for (int row = 0; row < 2; row++) {
+				assertArrayEquals(entry.getValue()[row], table.getTransform(n)[row], EPSILON);
+			}
+			n++;
+		}
+	}
+
+	/**
+	 * Reads a file the way the former {@code Compress_Matrices} did, i.e. the
+	 * landmark equations of every record are solved and, unless the file
+	 * aligns two stacks, accumulated until the direction changes. The first
+	 * record of a slice is kept.
+	 */
+	private static SortedMap<Integer, double[][]> legacyRead(String path) throws Exception {
+		Compress_Matrices solver = new Compress_Matrices();
+		SortedMap<Integer, double[][]> list = new TreeMap<Integer, double[][]>();
+
+		try (TransformFile.Reader reader = TransformFile.open(path)) {
+			boolean twoStackAlign = reader.isTwoStackAlign();
+			double[][] global = identity();
+			boolean forward = false;
+
+			while (reader.hasNext()) {
+				TransformFile.Record record = reader.next();
+				int index = record.getSourceIndex();
+				if (!forward && !twoStackAlign && 1 < index && index > record.getTargetIndex()) {
+					global = identity();
+					forward = true;
+				}
+
+				double[][] mat;
+				if (record.getTransformation() == Transformation.RIGID_BODY) {
+					mat = solver.solveRBEQ(record.getSourcePoints(), record.getTargetPoints());
+					double[][] src = { { 500, 250 }, { 250, 750 }, { 750, 750 } };
+					double[][] tgt = new double[3][2];
+					for (int i = 0; i < 3; i++) {
+						tgt[i][0] = mat[0][1] * src[i][0] + mat[0][2] * src[i][1] + mat[0][0];
+						tgt[i][1] = mat[1][2] * src[i][1] + mat[1][1] * src[i][0] + mat[1][0];
+					}
+					mat = solver.solveEQ(src, tgt);
+				} else {
+					mat = solver.solveEQ(record.getSourcePoints(), record.getTargetPoints());
+				}
+
+				if (!twoStackAlign) {
+					mat = multiply(mat, global);
+					global = mat;
+				}
+				if (!list.containsKey(index)) {
+					list.put(index, mat);
+				}
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * @return the source points of the first record, made non-collinear for
+	 *         {@link Transformation#RIGID_BODY}
+	 */
+	private static double[][] legacyLandmarks(String path) throws Exception {
+		try (TransformFile.Reader reader = TransformFile.open(path)) {
+			TransformFile.Record record = reader.next();
+			double[][] points = record.getSourcePoints();
+			double[][] landmarks = { points[0].clone(), points[1].clone(), points[2].clone() };
+			if (record.getTransformation() == Transformation.RIGID_BODY) {
+				landmarks[1][0] *= 0.5;
+				landmarks[2][0] *= 1.5;
+				landmarks[1][1] = landmarks[2][1];
+			}
+			return landmarks;
+		}
+	}
+
+	/**
+	 * Composes two lists the way the former {@code Compress_Matrices} did:
+	 * slices in both lists are squished through the landmarks of the first
+	 * file.
+	 */
+	private static SortedMap<Integer, double[][]> legacyCompose(SortedMap<Integer, double[][]> a, SortedMap<Integer, double[][]> b, double[][] landmarks) {
+		Compress_Matrices solver = new Compress_Matrices();
+		SortedMap<Integer, double[][]> result = new TreeMap<Integer, double[][]>(b);
+
+		for (Map.Entry<Integer, double[][]> entry : a.entrySet()) {
+			double[][] second = b.get(entry.getKey());
+			if (second == null) {
+				result.put(entry.getKey(), entry.getValue());
+			} else {
+				double[][] squished = new double[3][2];
+				for (int i = 0; i < 3; i++) {
+					squished[i] = apply(second, apply(entry.getValue(), landmarks[i]));
+				}
+				result.put(entry.getKey(), solver.solveEQ(landmarks, squished));
+			}
+		}
+
+		return result;
+	}
+
+	private static double[] apply(double[][] m, double[] p) {
+		return new double[] { m[0][0] * p[0] + m[0][1] * p[1] + m[0][2], m[1][0] * p[0] + m[1][1] * p[1] + m[1][2] };
+	}
+
+	private static double[][] multiply(double[][] a, double[][] b) {
+		double[][] c = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				for (int k = 0; k < 3; k++) {
+					c[i][j] += a[i][k] * b[k][j];
+				}
+			}
+		}
+		return c;
+	}
+
+	private static double[][] identity() {
+		return new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+	}
+
+}
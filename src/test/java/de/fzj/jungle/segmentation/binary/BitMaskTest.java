@@ -0,0 +1,89 @@
+/**
+ *
+ */
+package de.fzj.jungle.segmentation.binary;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Stefan Helfrich <s.helfrich@fz-juelich.de>
+ * @version 0.1
+ *
+ */
+public class BitMaskTest {
+
+	/** Two words per row, the second one only partially used. */
+	private static final int WIDTH = 70;
+
+	private static final int HEIGHT = 9;
+
+	private BitMask mask;
+
+	private boolean[][] pixels;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(7);
+		this.mask = new BitMask(WIDTH, HEIGHT);
+		this.pixels = new boolean[HEIGHT][WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				pixels[y][x] = random.nextBoolean();
+				mask.set(x, y, pixels[y][x]);
+			}
+		}
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.segmentation.binary.BitMask#count()}.
+	 */
+	@Test
+	public void testCount() {
+		long expected = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			int row = 0;
+			for (int x = 0; x < WIDTH; x++) {
+				row += pixels[y][x] ? 1 : 0;
+			}
+			assertEquals(row, mask.count(y));
+			expected += row;
+		}
+
+		assertEquals(expected, mask.count());
+		assertEquals(WIDTH * HEIGHT - expected, mask.copy().not().count());
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.segmentation.binary.BitMask#count()}.
+	 */
+	@Test
+	public void testCountIgnoresPadding() {
+		long expected = mask.count();
+
+		// Set the unused bits of the last word of each row
+		long[] words = mask.getWords();
+		for (int y = 0; y < HEIGHT; y++) {
+			words[y * mask.getWordsPerRow() + mask.getWordsPerRow() - 1] |= ~mask.getLastWordMask();
+		}
+
+		assertEquals(expected, mask.count());
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.segmentation.binary.BitMask#count()}.
+	 */
+	@Test
+	public void testCountEmpty() {
+		assertEquals(0, new BitMask(WIDTH, HEIGHT).count());
+		assertEquals(0, new BitMask(0, HEIGHT).count());
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package de.fzj.jungle.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Stefan Helfrich <s.helfrich@fz-juelich.de>
+ * @version 0.1
+ * 
+ */
+public class FFTTest {
+
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * Test method for {@link de.fzj.jungle.util.FFT#transform(double[], double[], boolean)}.
+	 */
+	@Test
+	public void testTransformMatchesDFT() {
+		Random random = new Random(1);
+		int n = 32;
+		double[] re = new double[n];
+		double[] im = new double[n];
+		for (int i = 0; i < n; i++) {
+			re[i] = random.nextDouble();
+			im[i] = random.nextDouble();
+		}
+		double[] re0 = re.clone();
+		double[] im0 = im.clone();
+
+		FFT.transform(re, im, false);
+
+		for (int k = 0; k < n; k++) {
+			double sumRe = 0;
+			double sumIm = 0;
+			for (int j = 0; j < n; j++) {
+				double angle = -2 * Math.PI * j * k / n;
+				sumRe += re0[j] * Math.cos(angle) - im0[j] * Math.sin(angle);
+				sumIm += re0[j] * Math.sin(angle) + im0[j] * Math.cos(angle);
+			}
+			assertEquals(sumRe, re[k], EPSILON);
+			assertEquals(sumIm, im[k], EPSILON);
+		}
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.util.FFT#transform2D(double[], double[], int, int, boolean)}.
+	 */
+	@Test
+	public void testTransform2DRoundTrip() {
+		Random random = new Random(2);
+		int width = 64;
+		int height = 16;
+		double[] re = new double[width * height];
+		double[] im = new double[width * height];
+		for (int i = 0; i < re.length; i++) {
+			re[i] = random.nextGaussian();
+			im[i] = random.nextGaussian();
+		}
+		double[] re0 = re.clone();
+		double[] im0 = im.clone();
+
+		FFT.transform2D(re, im, width, height, false);
+		FFT.transform2D(re, im, width, height, true);
+
+		assertArrayEquals(re0, re, EPSILON);
+		assertArrayEquals(im0, im, EPSILON);
+	}
+
+	/**
+	 * Test method for {@link de.fzj.jungle.util.FFT#nextPowerOfTwo(int)}.
+	 */
+	@Test
+	public void testNextPowerOfTwo() {
+		assertEquals(1, FFT.nextPowerOfTwo(1));
+		assertEquals(256, FFT.nextPowerOfTwo(256));
+		assertEquals(512, FFT.nextPowerOfTwo(257));
+	}
+
+}